@@ -0,0 +1,181 @@
+/**
+ * Adaptive replacement cache eviction
+ * 
+ * Copyright (c) 2012, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *    
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+/**
+ * Adaptive Replacement Cache (Megiddo and Modha), per set. Entries read
+ * only once since they were cached are in T1, entries read again in T2,
+ * and the hashes of recent victims of each are remembered in ghost lists
+ * B1 and B2. A new key found in B1 means T1 is too small, one found in B2
+ * that T2 is; the target size of T1 moves accordingly, and victims come
+ * from whichever list is over its share. A scan fills T1 and leaves T2,
+ * the entries that are actually reused, alone.
+ *
+ * Each slot holds its list and the tick of its last access, so a hit (a
+ * move to the front of T2) is two plain stores. The ghost lists only
+ * change under the lock.
+ */
+class ARCPolicy implements EvictionPolicy {
+	private static final byte EMPTY = 0;
+	private static final byte T1 = 1;
+	private static final byte T2 = 2;
+
+	private final int slots;
+	private final byte[] list;
+	private final long[] lastUsed;
+	private final int[] hashes;
+	private long tick = 0;
+	// Target size of T1
+	private int target = 0;
+	private Ghosts b1 = null;
+	private Ghosts b2 = null;
+
+	static final Factory FACTORY = new Factory() {
+		public EvictionPolicy[] create(int numSets, int maxElemsPerSet) {
+			EvictionPolicy[] policies = new EvictionPolicy[numSets];
+			for (int i = 0; i < numSets; i++) {
+				policies[i] = new ARCPolicy(maxElemsPerSet);
+			}
+			return policies;
+		}
+	};
+
+	ARCPolicy(int slots) {
+		this.slots = slots;
+		list = new byte[slots];
+		lastUsed = new long[slots];
+		hashes = new int[slots];
+		b1 = new Ghosts(slots);
+		b2 = new Ghosts(slots);
+	}
+
+	public void hit(int slot) {
+		list[slot] = T2;
+		lastUsed[slot] = ++tick;
+	}
+
+	public void inserted(int slot, int hash) {
+		if (b1.remove(hash)) {
+			target = Math.min(slots, target + Math.max(b2.size() / Math.max(b1.size(), 1), 1));
+			list[slot] = T2;
+		} else if (b2.remove(hash)) {
+			target = Math.max(0, target - Math.max(b1.size() / Math.max(b2.size(), 1), 1));
+			list[slot] = T2;
+		} else {
+			list[slot] = T1;
+		}
+		lastUsed[slot] = ++tick;
+		hashes[slot] = hash;
+	}
+
+	public void updated(int slot) {
+		lastUsed[slot] = ++tick;
+	}
+
+	public void removed(int slot) {
+		list[slot] = EMPTY;
+	}
+
+	public int victim(int hash, long[] pinned) {
+		// Pinned entries count towards the size of T1, but cannot be evicted
+		int t1Size = 0;
+		int t1Oldest = -1;
+		int t2Oldest = -1;
+		for (int i = 0; i < slots; i++) {
+			boolean evictable = !EvictionPolicies.isPinned(pinned, i);
+			if (list[i] == T1) {
+				t1Size++;
+				if (evictable && (t1Oldest < 0 || lastUsed[i] < lastUsed[t1Oldest])) {
+					t1Oldest = i;
+				}
+			} else if (list[i] == T2 && evictable && (t2Oldest < 0 || lastUsed[i] < lastUsed[t2Oldest])) {
+				t2Oldest = i;
+			}
+		}
+		if (t1Oldest >= 0 && (t2Oldest < 0 || t1Size > target || (t1Size == target && b2.contains(hash)))) {
+			b1.add(hashes[t1Oldest]);
+			return t1Oldest;
+		}
+		if (t2Oldest < 0) {
+			return -1;
+		}
+		b2.add(hashes[t2Oldest]);
+		return t2Oldest;
+	}
+
+	public boolean isReferenced(int slot) {
+		return list[slot] == T2;
+	}
+
+	/**
+	 * Hashes of recent victims, oldest first, dropping the oldest when full
+	 */
+	private static class Ghosts {
+		private final int[] hashes;
+		private int size = 0;
+
+		Ghosts(int capacity) {
+			hashes = new int[capacity];
+		}
+
+		int size() {
+			return size;
+		}
+
+		void add(int hash) {
+			if (size == hashes.length) {
+				System.arraycopy(hashes, 1, hashes, 0, size - 1);
+				size--;
+			}
+			hashes[size++] = hash;
+		}
+
+		boolean contains(int hash) {
+			return indexOf(hash) >= 0;
+		}
+
+		boolean remove(int hash) {
+			int index = indexOf(hash);
+			if (index < 0) {
+				return false;
+			}
+			System.arraycopy(hashes, index + 1, hashes, index, size - index - 1);
+			size--;
+			return true;
+		}
+
+		private int indexOf(int hash) {
+			for (int i = 0; i < size; i++) {
+				if (hashes[i] == hash) {
+					return i;
+				}
+			}
+			return -1;
+		}
+	}
+}
@@ -513,6 +513,14 @@ public class AutoGrader {
 		delay(STORE_DELAY);
 	}
 	
+	/**
+	 * Sets how long KVStore sleeps per access, e.g. for a benchmark outside runTest
+	 * @param storeDelay delay in milliseconds
+	 */
+	public static void setStoreDelay(long storeDelay) {
+		STORE_DELAY = storeDelay;
+	}
+	
 	/**
 	 * Helper method to put the current thread to sleep for sleepTime duration
 	 * @param sleepTime time to sleep in milliseconds
@@ -0,0 +1,118 @@
+/**
+ * Bloom filter over String keys
+ * 
+ * Copyright (c) 2012, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *    
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A plain (non-counting) bloom filter. mightContain() never returns false
+ * for a key that has been added; it returns true for a key that has not
+ * been added with a probability that depends on bitsPerKey.
+ */
+public class BloomFilter {
+	private long[] bits = null;
+	private int numHashes = 0;
+
+	/**
+	 * @param expectedKeys number of keys that will be added
+	 * @param bitsPerKey 10 bits per key gives roughly a 1% false positive rate
+	 */
+	public BloomFilter(int expectedKeys, int bitsPerKey) {
+		long numBits = Math.max(64, (long) expectedKeys * bitsPerKey);
+		bits = new long[(int) Math.min(Integer.MAX_VALUE, (numBits + 63) / 64)];
+		// ln(2) * bitsPerKey hash functions minimizes false positives
+		numHashes = Math.max(1, Math.min(30, (int) Math.round(bitsPerKey * 0.69)));
+	}
+
+	private BloomFilter(long[] bits, int numHashes) {
+		this.bits = bits;
+		this.numHashes = numHashes;
+	}
+
+	public void add(String key) {
+		long numBits = (long) bits.length * 64;
+		int h1 = key.hashCode();
+		int h2 = mix(h1);
+		for (int i = 0; i < numHashes; i++) {
+			long bit = ((h1 + (long) i * h2) & Long.MAX_VALUE) % numBits;
+			bits[(int) (bit >>> 6)] |= 1L << bit;
+		}
+	}
+
+	public boolean mightContain(String key) {
+		long numBits = (long) bits.length * 64;
+		int h1 = key.hashCode();
+		int h2 = mix(h1);
+		for (int i = 0; i < numHashes; i++) {
+			long bit = ((h1 + (long) i * h2) & Long.MAX_VALUE) % numBits;
+			if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return number of bytes writeTo() will write
+	 */
+	public int serializedSize() {
+		return 8 + bits.length * 8;
+	}
+
+	public void writeTo(ByteBuffer out) {
+		out.putInt(numHashes);
+		out.putInt(bits.length);
+		for (long word : bits) {
+			out.putLong(word);
+		}
+	}
+
+	/**
+	 * Reads a filter written by writeTo() starting at the buffer's position
+	 */
+	public static BloomFilter readFrom(ByteBuffer in) {
+		int numHashes = in.getInt();
+		long[] bits = new long[in.getInt()];
+		for (int i = 0; i < bits.length; i++) {
+			bits[i] = in.getLong();
+		}
+		return new BloomFilter(bits, numHashes);
+	}
+
+	/**
+	 * Derives a second, independent-enough hash from String.hashCode()
+	 */
+	static int mix(int h) {
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return h | 1;
+	}
+}
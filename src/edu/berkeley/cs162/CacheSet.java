@@ -0,0 +1,124 @@
+/**
+ * Storage for one set of a KVCache
+ * 
+ * Copyright (c) 2012, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *    
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+/**
+ * Holds the entries of one KVCache set in a fixed number of slots, along
+ * with the set's EvictionPolicy, the total weight of its entries and which
+ * of them are dirty, i.e. pinned until the store has their value. How
+ * the keys and values are kept is up to the subclass: HeapCacheSet keeps
+ * them as Strings, OffHeapCacheSet in direct memory.
+ *
+ * Everything here assumes the set's lock is held for writing, except
+ * find() and value(), which KVCache.getOptimistic() also calls under an
+ * optimistic stamp. Those may then see a slot half way through a change
+ * and must not loop or allocate without bound because of it; they may
+ * throw, in which case the caller finds its stamp invalid and retries.
+ */
+abstract class CacheSet {
+	final EvictionPolicy policy;
+	// Total weight of the entries
+	long bytes = 0;
+	// Bit per slot, set while its entry is dirty
+	private final long[] dirty;
+
+	CacheSet(EvictionPolicy policy, int capacity) {
+		this.policy = policy;
+		dirty = new long[(capacity + 63) >>> 6];
+	}
+
+	/**
+	 * @return number of slots
+	 */
+	abstract int capacity();
+
+	/**
+	 * Compares the hash of each slot before the key itself
+	 * @return the slot holding key, or -1
+	 */
+	abstract int find(String key, int hash);
+
+	abstract boolean isEmpty(int slot);
+
+	abstract String key(int slot);
+
+	abstract String value(int slot);
+
+	abstract int hash(int slot);
+
+	/**
+	 * Puts an entry in slot, replacing whatever was there
+	 */
+	abstract void store(int slot, String key, int hash, String value);
+
+	/**
+	 * Empties slot without telling the policy
+	 */
+	abstract void clear(int slot);
+
+	/**
+	 * @return what an entry would take in this set, in bytes
+	 */
+	abstract long weigh(String key, String value);
+
+	/**
+	 * @return what the entry in slot takes, in bytes
+	 */
+	long weight(int slot) {
+		return weigh(key(slot), value(slot));
+	}
+
+	boolean isDirty(int slot) {
+		return (dirty[slot >>> 6] & (1L << slot)) != 0;
+	}
+
+	/**
+	 * @return the dirty bits of the slots, for EvictionPolicy.victim(); a
+	 * live view, not to be changed
+	 */
+	long[] pinned() {
+		return dirty;
+	}
+
+	void setDirty(int slot, boolean isDirty) {
+		if (isDirty) {
+			dirty[slot >>> 6] |= 1L << slot;
+		} else {
+			dirty[slot >>> 6] &= ~(1L << slot);
+		}
+	}
+
+	/**
+	 * Empties slot and tells the policy
+	 */
+	void clearSlot(int slot) {
+		clear(slot);
+		setDirty(slot, false);
+		policy.removed(slot);
+	}
+}
@@ -0,0 +1,175 @@
+/**
+ * Cache hit rate of each eviction policy on a trace
+ * 
+ * Copyright (c) 2012, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *    
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Replays a trace of key reads against a KVCache with each of the
+ * EvictionPolicies and prints the hit rate of each. A miss is filled the
+ * way KVServer.get() fills it, so what is measured is the cache alone.
+ *
+ * The trace is either a file with one read per line, the key being the
+ * last word on the line (so "GET key" logs work as they are), or one of
+ * these generated ones:
+ *   zipf - Zipf-distributed reads (s = 0.99) over 100 times as many keys
+ *          as the cache holds
+ *   scan - the same, interrupted every so often by a batch job reading
+ *          a long run of keys that are never read again
+ *   loop - keys read in a loop a little longer than the cache
+ * With no trace given, all three generated ones are run.
+ *
+ * USAGE: CacheTraceBenchmark [trace] [numSets] [maxElemsPerSet]
+ */
+public class CacheTraceBenchmark {
+	private static int numSets = 100;
+	private static int maxElemsPerSet = 10;
+	private static final int GENERATED_READS = 2000000;
+
+	public static void main(String[] args) throws Exception {
+		if (args.length > 1) {
+			numSets = Integer.parseInt(args[1]);
+		}
+		if (args.length > 2) {
+			maxElemsPerSet = Integer.parseInt(args[2]);
+		}
+
+		String[] traces = args.length > 0 ? new String[] { args[0] } : new String[] { "zipf", "scan", "loop" };
+		StringBuilder header = new StringBuilder("trace");
+		for (EvictionPolicies policy : EvictionPolicies.values()) {
+			header.append("\t").append(policy);
+		}
+		System.out.println(header);
+		for (String name : traces) {
+			String[] trace = load(name);
+			StringBuilder line = new StringBuilder(name);
+			for (EvictionPolicies policy : EvictionPolicies.values()) {
+				line.append(String.format("\t%.2f%%", 100 * hitRate(trace, policy)));
+			}
+			System.out.println(line);
+		}
+	}
+
+	private static double hitRate(String[] trace, EvictionPolicy.Factory policy) {
+		KVCache cache = new KVCache(numSets, maxElemsPerSet, policy);
+		long hits = 0;
+		for (String key : trace) {
+			Lock lock = cache.getWriteLock(key);
+			lock.lock();
+			try {
+				if (cache.get(key) != null) {
+					hits++;
+				} else {
+					cache.put(key, key);
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
+		return (double) hits / trace.length;
+	}
+
+	private static String[] load(String name) throws Exception {
+		int capacity = numSets * maxElemsPerSet;
+		Random random = new Random(162);
+		String[] trace = new String[GENERATED_READS];
+		if (name.equals("zipf") || name.equals("scan")) {
+			Zipf zipf = new Zipf(capacity * 100, 0.99);
+			int scanned = 0;
+			for (int i = 0; i < trace.length; i++) {
+				if (name.equals("scan") && i % (capacity * 20) < capacity * 5) {
+					// A batch job: a quarter of the reads go to keys read once
+					trace[i] = "scan" + scanned++;
+				} else {
+					trace[i] = "key" + zipf.next(random);
+				}
+			}
+		} else if (name.equals("loop")) {
+			int loop = capacity + capacity / 4;
+			for (int i = 0; i < trace.length; i++) {
+				trace[i] = "key" + (i % loop);
+			}
+		} else {
+			List<String> keys = new ArrayList<String>();
+			BufferedReader reader = new BufferedReader(new FileReader(name));
+			try {
+				String line = null;
+				while ((line = reader.readLine()) != null) {
+					line = line.trim();
+					if (!line.isEmpty()) {
+						keys.add(line.substring(line.lastIndexOf(' ') + 1));
+					}
+				}
+			} finally {
+				reader.close();
+			}
+			trace = keys.toArray(new String[keys.size()]);
+		}
+		return trace;
+	}
+
+	/**
+	 * Draws ranks 0..n-1 with probability proportional to 1 / (rank + 1)^s,
+	 * by binary search over the cumulative distribution
+	 */
+	private static class Zipf {
+		private final double[] cumulative;
+
+		Zipf(int n, double s) {
+			cumulative = new double[n];
+			double sum = 0;
+			for (int i = 0; i < n; i++) {
+				sum += 1 / Math.pow(i + 1, s);
+				cumulative[i] = sum;
+			}
+			for (int i = 0; i < n; i++) {
+				cumulative[i] /= sum;
+			}
+		}
+
+		int next(Random random) {
+			double u = random.nextDouble();
+			int low = 0;
+			int high = cumulative.length - 1;
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				if (cumulative[mid] < u) {
+					low = mid + 1;
+				} else {
+					high = mid;
+				}
+			}
+			return low;
+		}
+	}
+}
@@ -0,0 +1,117 @@
+/**
+ * Second-chance eviction
+ * 
+ * Copyright (c) 2012, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *    
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Second chance, KVCache's original policy: a use bit per slot, set by
+ * reads and cleared by writes, and a hand that sweeps the set clearing use
+ * bits until it finds a slot without one.
+ *
+ * The bits of 64 slots share a word, which optimistic readers set bits in
+ * while other readers, or the sweep under the lock, change other bits of
+ * it. Each change is a compare-and-set of the word, so none of them
+ * undoes another: no read loses its use bit, and no bit the sweep has
+ * cleared comes back without a read.
+ */
+class ClockPolicy implements EvictionPolicy {
+	// Use bit of slot i is bit (i % 64) of useBits[i / 64]
+	private final AtomicLongArray useBits;
+	private final int slots;
+	// Next slot the sweep looks at
+	private int hand = 0;
+
+	static final Factory FACTORY = new Factory() {
+		public EvictionPolicy[] create(int numSets, int maxElemsPerSet) {
+			EvictionPolicy[] policies = new EvictionPolicy[numSets];
+			for (int i = 0; i < numSets; i++) {
+				policies[i] = new ClockPolicy(maxElemsPerSet);
+			}
+			return policies;
+		}
+	};
+
+	ClockPolicy(int slots) {
+		this.slots = slots;
+		useBits = new AtomicLongArray((slots + 63) >>> 6);
+	}
+
+	public void hit(int slot) {
+		// Hot entries are read far more often than swept: skip the write
+		long bit = 1L << slot;
+		while (true) {
+			long word = useBits.get(slot >>> 6);
+			if ((word & bit) != 0 || useBits.compareAndSet(slot >>> 6, word, word | bit)) {
+				return;
+			}
+		}
+	}
+
+	public void inserted(int slot, int hash) {
+		clear(slot);
+	}
+
+	public void updated(int slot) {
+		clear(slot);
+	}
+
+	public void removed(int slot) {
+		clear(slot);
+	}
+
+	public int victim(int hash, long[] pinned) {
+		// Two sweeps clear every use bit there is to clear
+		for (int i = 0; i < 2 * slots; i++) {
+			int slot = hand;
+			hand = (hand + 1) % slots;
+			if (EvictionPolicies.isPinned(pinned, slot)) {
+				continue;
+			}
+			if (!isReferenced(slot)) {
+				return slot;
+			}
+			clear(slot);
+		}
+		return -1;
+	}
+
+	public boolean isReferenced(int slot) {
+		return (useBits.get(slot >>> 6) & (1L << slot)) != 0;
+	}
+
+	private void clear(int slot) {
+		long bit = 1L << slot;
+		while (true) {
+			long word = useBits.get(slot >>> 6);
+			if ((word & bit) == 0 || useBits.compareAndSet(slot >>> 6, word, word & ~bit)) {
+				return;
+			}
+		}
+	}
+}
@@ -0,0 +1,196 @@
+/**
+ * In-memory StorageEngine with a compact key index
+ * 
+ * Copyright (c) 2012, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *    
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+import java.nio.charset.Charset;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Keeps everything in memory like MemoryEngine, but indexes the keys as
+ * UTF-8 in KeyTries instead of as Strings in a hash map. For the keys we
+ * see, which share long prefixes, that saves most of the String object,
+ * its array header and the map entry per key; see KeyMemoryBenchmark.
+ * Values are kept as they are given.
+ *
+ * Keys hash to one of LOCK_STRIPES tries, each behind its own read-write
+ * lock, so that gets run in parallel and writers to different stripes do
+ * not wait for each other. The price is that every lookup encodes its key
+ * to UTF-8 first.
+ *
+ * Iteration goes through the stripes in turn, copying out a batch of pairs
+ * at a time under the read lock and resuming after the last key copied.
+ */
+public class CompactMemoryEngine implements StorageEngine {
+	private static final int LOCK_STRIPES = 16;
+	private static final int ITERATOR_BATCH = 256;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private KeyTrie[] tries = null;
+	private ReentrantReadWriteLock[] locks = null;
+
+	public CompactMemoryEngine() {
+		tries = new KeyTrie[LOCK_STRIPES];
+		locks = new ReentrantReadWriteLock[LOCK_STRIPES];
+		for (int i = 0; i < LOCK_STRIPES; i++) {
+			tries[i] = new KeyTrie();
+			locks[i] = new ReentrantReadWriteLock();
+		}
+	}
+
+	public String get(String key) {
+		byte[] keyBytes = key.getBytes(UTF8);
+		int stripe = stripeFor(key);
+		locks[stripe].readLock().lock();
+		try {
+			return (String) tries[stripe].get(keyBytes);
+		} finally {
+			locks[stripe].readLock().unlock();
+		}
+	}
+
+	public boolean put(String key, String value) {
+		byte[] keyBytes = key.getBytes(UTF8);
+		int stripe = stripeFor(key);
+		locks[stripe].writeLock().lock();
+		try {
+			return tries[stripe].put(keyBytes, value) == null;
+		} finally {
+			locks[stripe].writeLock().unlock();
+		}
+	}
+
+	public boolean remove(String key) {
+		byte[] keyBytes = key.getBytes(UTF8);
+		int stripe = stripeFor(key);
+		locks[stripe].writeLock().lock();
+		try {
+			return tries[stripe].remove(keyBytes) != null;
+		} finally {
+			locks[stripe].writeLock().unlock();
+		}
+	}
+
+	public boolean[] apply(WriteBatch batch) throws KVException {
+		return WriteBatch.applyEach(this, batch);
+	}
+
+	public Iterator<Map.Entry<String, String>> iterator() {
+		return new TrieIterator();
+	}
+
+	public void clear() {
+		for (int i = 0; i < LOCK_STRIPES; i++) {
+			locks[i].writeLock().lock();
+			try {
+				tries[i].clear();
+			} finally {
+				locks[i].writeLock().unlock();
+			}
+		}
+	}
+
+	public void close() {
+	}
+
+	/**
+	 * @return number of keys stored
+	 */
+	public int size() {
+		int size = 0;
+		for (int i = 0; i < LOCK_STRIPES; i++) {
+			locks[i].readLock().lock();
+			try {
+				size += tries[i].size();
+			} finally {
+				locks[i].readLock().unlock();
+			}
+		}
+		return size;
+	}
+
+	private int stripeFor(String key) {
+		return (key.hashCode() & Integer.MAX_VALUE) % LOCK_STRIPES;
+	}
+
+	private class TrieIterator implements Iterator<Map.Entry<String, String>> {
+		// Stripe of the current batch; -1 before the first one
+		private int stripe = -1;
+		private byte[] after = null;
+		private ArrayList<byte[]> keys = new ArrayList<byte[]>();
+		private ArrayList<Object> values = new ArrayList<Object>();
+		private int position = 0;
+
+		public boolean hasNext() {
+			while (position == keys.size() && stripe < LOCK_STRIPES) {
+				if (keys.size() == ITERATOR_BATCH) {
+					// A full batch: the stripe may have more after it
+					after = keys.get(keys.size() - 1);
+				} else {
+					stripe++;
+					after = null;
+					if (stripe == LOCK_STRIPES) {
+						break;
+					}
+				}
+				fetch();
+			}
+			return position < keys.size();
+		}
+
+		public Map.Entry<String, String> next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			String key = new String(keys.get(position), UTF8);
+			String value = (String) values.get(position);
+			position++;
+			return new AbstractMap.SimpleImmutableEntry<String, String>(key, value);
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+		private void fetch() {
+			keys.clear();
+			values.clear();
+			position = 0;
+			locks[stripe].readLock().lock();
+			try {
+				tries[stripe].collect(after, ITERATOR_BATCH, keys, values);
+			} finally {
+				locks[stripe].readLock().unlock();
+			}
+		}
+	}
+}
@@ -0,0 +1,107 @@
+package edu.berkeley.cs162;
+
+import static org.junit.Assert.*;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class CompactMemoryEngineTest {
+	CompactMemoryEngine engine = null;
+
+	@Before
+	public void setUp() {
+		engine = new CompactMemoryEngine();
+	}
+
+	@Test
+	public void putGetRemove() {
+		assertTrue(engine.put("tenant1/user/7", "7"));
+		assertTrue(engine.put("tenant1/user/70", "70"));
+		assertTrue(engine.put("tenant1/user", "users"));
+		assertTrue(engine.put("\u00fcber", "\u00e9t\u00e9"));
+		assertTrue(engine.put("", "empty"));
+		assertFalse(engine.put("tenant1/user/7", "VII"));
+		assertEquals("VII", engine.get("tenant1/user/7"));
+		assertEquals("70", engine.get("tenant1/user/70"));
+		assertEquals("users", engine.get("tenant1/user"));
+		assertEquals("\u00e9t\u00e9", engine.get("\u00fcber"));
+		assertEquals("empty", engine.get(""));
+		assertNull(engine.get("tenant1/user/"));
+		assertNull(engine.get("tenant1/user/700"));
+
+		assertTrue(engine.remove("tenant1/user/7"));
+		assertFalse(engine.remove("tenant1/user/7"));
+		assertFalse(engine.remove("tenant1/"));
+		assertNull(engine.get("tenant1/user/7"));
+		assertEquals("70", engine.get("tenant1/user/70"));
+		assertEquals(4, engine.size());
+	}
+
+	@Test
+	public void trieMatchesTreeMap() {
+		Charset utf8 = Charset.forName("UTF-8");
+		Random random = new Random(162);
+		KeyTrie trie = new KeyTrie();
+		TreeMap<String, Object> expected = new TreeMap<String, Object>();
+		for (int i = 0; i < 20000; i++) {
+			// Few distinct characters, so that keys share prefixes and split edges
+			StringBuilder key = new StringBuilder("t/");
+			int length = random.nextInt(6);
+			for (int j = 0; j < length; j++) {
+				key.append((char) ('a' + random.nextInt(3)));
+			}
+			byte[] bytes = key.toString().getBytes(utf8);
+			if (random.nextInt(3) == 0) {
+				assertEquals(expected.remove(key.toString()), trie.remove(bytes));
+			} else {
+				assertEquals(expected.put(key.toString(), i), trie.put(bytes, i));
+			}
+			assertEquals(expected.get(key.toString()), trie.get(bytes));
+			assertEquals(expected.size(), trie.size());
+		}
+
+		// In order, a few keys at a time
+		ArrayList<byte[]> keys = new ArrayList<byte[]>();
+		ArrayList<Object> values = new ArrayList<Object>();
+		byte[] after = null;
+		Iterator<Map.Entry<String, Object>> pairs = expected.entrySet().iterator();
+		do {
+			keys.clear();
+			values.clear();
+			trie.collect(after, 7, keys, values);
+			for (int i = 0; i < keys.size(); i++) {
+				Map.Entry<String, Object> pair = pairs.next();
+				assertEquals(pair.getKey(), new String(keys.get(i), utf8));
+				assertEquals(pair.getValue(), values.get(i));
+				after = keys.get(i);
+			}
+		} while (keys.size() == 7);
+		assertFalse(pairs.hasNext());
+	}
+
+	@Test
+	public void iteratesEveryPair() {
+		for (int i = 0; i < 5000; i++) {
+			engine.put("tenant" + (i % 3) + "/order/" + i, "v" + i);
+		}
+		TreeMap<String, String> seen = new TreeMap<String, String>();
+		Iterator<Map.Entry<String, String>> pairs = engine.iterator();
+		while (pairs.hasNext()) {
+			Map.Entry<String, String> pair = pairs.next();
+			assertNull(seen.put(pair.getKey(), pair.getValue()));
+		}
+		assertEquals(5000, seen.size());
+		assertEquals("v1234", seen.get("tenant1/order/1234"));
+
+		engine.clear();
+		assertEquals(0, engine.size());
+		assertFalse(engine.iterator().hasNext());
+	}
+}
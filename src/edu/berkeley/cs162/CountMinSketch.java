@@ -0,0 +1,120 @@
+/**
+ * Approximate access counts for cache admission
+ * 
+ * Copyright (c) 2012, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *    
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Estimates how often each key hash has been seen recently, for
+ * TinyLFUPolicy. Four rows of 4-bit counters, sixteen to a long, each row
+ * indexed by a different mix of the hash; the estimate is the smallest of
+ * the four counters, which can only overcount. Once ten times as many
+ * increments as the cache has entries have been counted, every counter is
+ * halved, so that the counts follow what is popular now.
+ *
+ * Optimistic readers of every set increment concurrently. A counter is
+ * checked and bumped with a compare-and-set of its word, so a race can
+ * never carry a full counter over into the next one; the count of
+ * increments toward the halving is a plain one and may lose a few.
+ */
+class CountMinSketch {
+	private static final int ROWS = 4;
+	private static final int MAX_COUNT = 15;
+	private static final int MIN_COUNTERS = 1024;
+	private static final long[] SEEDS = { 0x97cb3127L, 0xab7a2f1bL, 0xc2b2ae3dL, 0x27d4eb2fL };
+	private static final long HALF_MASK = 0x7777777777777777L;
+
+	// Row r, counter i is the (i % 16)th nibble of table[r * rowLongs + i / 16]
+	private final AtomicLongArray table;
+	private final int rowLongs;
+	private final int counterMask;
+	private final int sampleSize;
+	private int additions = 0;
+
+	/**
+	 * @param capacity number of entries in the cache
+	 */
+	CountMinSketch(int capacity) {
+		// Too few counters and every key collides with a scan's worth of others
+		int counters = Integer.highestOneBit(Math.max(capacity, MIN_COUNTERS) - 1) << 1;
+		rowLongs = counters / 16;
+		counterMask = counters - 1;
+		table = new AtomicLongArray(ROWS * rowLongs);
+		sampleSize = 10 * Math.max(capacity, 1);
+	}
+
+	void increment(int hash) {
+		boolean added = false;
+		for (int row = 0; row < ROWS; row++) {
+			int counter = index(hash, row);
+			int word = row * rowLongs + (counter >>> 4);
+			int shift = (counter & 15) << 2;
+			while (true) {
+				long value = table.get(word);
+				if (((value >>> shift) & MAX_COUNT) == MAX_COUNT) {
+					break;
+				}
+				if (table.compareAndSet(word, value, value + (1L << shift))) {
+					added = true;
+					break;
+				}
+			}
+		}
+		if (added && ++additions >= sampleSize) {
+			halve();
+		}
+	}
+
+	/**
+	 * @return estimated recent count of hash, at most 15
+	 */
+	int frequency(int hash) {
+		int frequency = MAX_COUNT;
+		for (int row = 0; row < ROWS; row++) {
+			int counter = index(hash, row);
+			long word = table.get(row * rowLongs + (counter >>> 4));
+			frequency = Math.min(frequency, (int) ((word >>> ((counter & 15) << 2)) & MAX_COUNT));
+		}
+		return frequency;
+	}
+
+	private void halve() {
+		for (int i = 0; i < table.length(); i++) {
+			long value;
+			do {
+				value = table.get(i);
+			} while (!table.compareAndSet(i, value, (value >>> 1) & HALF_MASK));
+		}
+		additions /= 2;
+	}
+
+	private int index(int hash, int row) {
+		long h = (hash + SEEDS[row]) * SEEDS[row];
+		return (int) (h ^ (h >>> 32)) & counterMask;
+	}
+}
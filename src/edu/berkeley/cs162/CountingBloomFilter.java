@@ -0,0 +1,123 @@
+/**
+ * Bloom filter that supports removal
+ * 
+ * Copyright (c) 2012, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *    
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A bloom filter with a 4-bit counter per position instead of a bit, so
+ * that keys can be removed again. A key must only be removed after it has
+ * been added, and only as many times as it has been added; then
+ * mightContain() never returns false for a key that is present.
+ *
+ * Counters that reach 15 stick there, trading a slightly higher false
+ * positive rate for never underflowing. All operations are lock-free.
+ */
+public class CountingBloomFilter {
+	private static final int COUNTERS_PER_WORD = 16;
+	private static final long MAX_COUNT = 15;
+
+	private AtomicLongArray words = null;
+	private long numCounters = 0;
+	private int numHashes = 0;
+
+	/**
+	 * @param expectedKeys number of keys that will be present at one time
+	 * @param countersPerKey 10 counters per key gives roughly a 1% false
+	 * positive rate
+	 */
+	public CountingBloomFilter(int expectedKeys, int countersPerKey) {
+		numCounters = Math.max(COUNTERS_PER_WORD, (long) expectedKeys * countersPerKey);
+		words = new AtomicLongArray((int) Math.min(Integer.MAX_VALUE, (numCounters + COUNTERS_PER_WORD - 1) / COUNTERS_PER_WORD));
+		numCounters = (long) words.length() * COUNTERS_PER_WORD;
+		numHashes = Math.max(1, Math.min(30, (int) Math.round(countersPerKey * 0.69)));
+	}
+
+	public void add(String key) {
+		int h1 = key.hashCode();
+		int h2 = BloomFilter.mix(h1);
+		for (int i = 0; i < numHashes; i++) {
+			update(counter(h1, h2, i), 1);
+		}
+	}
+
+	public void remove(String key) {
+		int h1 = key.hashCode();
+		int h2 = BloomFilter.mix(h1);
+		for (int i = 0; i < numHashes; i++) {
+			update(counter(h1, h2, i), -1);
+		}
+	}
+
+	/**
+	 * @return false if key has definitely not been added (or has been
+	 * removed again), true if it may have been
+	 */
+	public boolean mightContain(String key) {
+		int h1 = key.hashCode();
+		int h2 = BloomFilter.mix(h1);
+		for (int i = 0; i < numHashes; i++) {
+			long counter = counter(h1, h2, i);
+			long word = words.get((int) (counter / COUNTERS_PER_WORD));
+			if (((word >>> shift(counter)) & MAX_COUNT) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public void clear() {
+		for (int i = 0; i < words.length(); i++) {
+			words.set(i, 0);
+		}
+	}
+
+	private long counter(int h1, int h2, int i) {
+		return ((h1 + (long) i * h2) & Long.MAX_VALUE) % numCounters;
+	}
+
+	private static int shift(long counter) {
+		return (int) (counter % COUNTERS_PER_WORD) * 4;
+	}
+
+	private void update(long counter, int delta) {
+		int index = (int) (counter / COUNTERS_PER_WORD);
+		int shift = shift(counter);
+		while (true) {
+			long word = words.get(index);
+			long count = (word >>> shift) & MAX_COUNT;
+			if (count == MAX_COUNT || (delta < 0 && count == 0)) {
+				// Saturated counters no longer know how many keys they hold
+				return;
+			}
+			if (words.compareAndSet(index, word, word + ((long) delta << shift))) {
+				return;
+			}
+		}
+	}
+}
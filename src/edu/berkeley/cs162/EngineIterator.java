@@ -0,0 +1,78 @@
+/**
+ * Iterator shared by the hash-indexed StorageEngines
+ * 
+ * Copyright (c) 2012, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *    
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+import java.util.AbstractMap;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Walks an enumeration of keys and looks each value up as it goes, skipping
+ * keys that have been removed since the enumeration was taken. The
+ * enumerations of ConcurrentHashMap are weakly consistent, so this never
+ * throws ConcurrentModificationException while writers are active.
+ */
+abstract class EngineIterator implements Iterator<Map.Entry<String, String>> {
+	private Enumeration<String> keys = null;
+	private Map.Entry<String, String> nextEntry = null;
+
+	EngineIterator(Enumeration<String> keys) {
+		this.keys = keys;
+	}
+
+	/**
+	 * @return the current value of key, or null if it no longer exists
+	 */
+	abstract String lookup(String key);
+
+	public boolean hasNext() {
+		while (nextEntry == null && keys.hasMoreElements()) {
+			String key = keys.nextElement();
+			String value = lookup(key);
+			if (value != null) {
+				nextEntry = new AbstractMap.SimpleImmutableEntry<String, String>(key, value);
+			}
+		}
+		return nextEntry != null;
+	}
+
+	public Map.Entry<String, String> next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		Map.Entry<String, String> entry = nextEntry;
+		nextEntry = null;
+		return entry;
+	}
+
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+}
@@ -0,0 +1,63 @@
+/**
+ * The eviction policies that come with KVCache
+ * 
+ * Copyright (c) 2012, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *    
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+/**
+ * The EvictionPolicy factories to pick from for a KVServer's cache, e.g.
+ * by name with EvictionPolicies.valueOf("ARC").
+ *
+ * CLOCK is the default. LRU suits recency-heavy workloads, LFU stable
+ * popularity. ARC and TINY_LFU adapt between the two and keep one-off
+ * scans from flushing out the entries that are read again; CacheTraceBenchmark
+ * compares them all on a trace.
+ */
+public enum EvictionPolicies implements EvictionPolicy.Factory {
+	CLOCK(ClockPolicy.FACTORY),
+	LRU(LRUPolicy.FACTORY),
+	LFU(LFUPolicy.FACTORY),
+	ARC(ARCPolicy.FACTORY),
+	TINY_LFU(TinyLFUPolicy.FACTORY);
+
+	private final EvictionPolicy.Factory factory;
+
+	private EvictionPolicies(EvictionPolicy.Factory factory) {
+		this.factory = factory;
+	}
+
+	public EvictionPolicy[] create(int numSets, int maxElemsPerSet) {
+		return factory.create(numSets, maxElemsPerSet);
+	}
+
+	/**
+	 * @param pinned as passed to EvictionPolicy.victim()
+	 * @return whether slot may not be evicted
+	 */
+	static boolean isPinned(long[] pinned, int slot) {
+		return (pinned[slot >>> 6] & (1L << slot)) != 0;
+	}
+}
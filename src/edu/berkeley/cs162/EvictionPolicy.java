@@ -0,0 +1,97 @@
+/**
+ * Chooses which entry of a cache set to evict
+ * 
+ * Copyright (c) 2012, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *    
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+/**
+ * Decides which entry a full KVCache set gives up for a new one. KVCache
+ * creates one EvictionPolicy per set, through a Factory, and identifies
+ * entries by their slot in the set; a policy keeps whatever it needs per
+ * slot in arrays of its own. KVCache fills empty slots itself and only asks
+ * for a victim once the set is full, or over its share of a byte budget.
+ *
+ * Every method but hit() is called with the set's write lock held. hit()
+ * is also called by optimistic readers, concurrently with other hits and
+ * with the locked methods, for a slot that may have been reused since. It
+ * should only update per-slot state with plain writes and leave anything
+ * that moves entries between lists to the locked methods; a lost or
+ * misplaced hit then costs some accuracy, never consistency.
+ *
+ * EvictionPolicies has the policies that come with KVCache.
+ */
+public interface EvictionPolicy {
+
+	public interface Factory {
+		/**
+		 * @return one policy for each set of a new cache
+		 */
+		public EvictionPolicy[] create(int numSets, int maxElemsPerSet);
+	}
+
+	/**
+	 * The entry in slot was read
+	 */
+	public void hit(int slot);
+
+	/**
+	 * A new entry was cached in slot, which was empty or the last victim
+	 * @param hash hash code of its key
+	 */
+	public void inserted(int slot, int hash);
+
+	/**
+	 * The entry in slot was given a new value
+	 */
+	public void updated(int slot);
+
+	/**
+	 * The entry in slot was deleted; the slot is empty now
+	 */
+	public void removed(int slot);
+
+	/**
+	 * Called when the set is full and a new entry has to go in, or when it
+	 * is over its byte budget, in which case the entry just inserted may be
+	 * named too. Should name an occupied slot if there is one; KVCache
+	 * asks again, a bounded number of times, if it gets an empty slot.
+	 * Pinned slots hold dirty entries, which must stay: the policy picks
+	 * among the others, as if the pinned ones were not there, and must not
+	 * record them as evicted.
+	 * @param hash hash code of the new entry's key
+	 * @param pinned bit (slot % 64) of pinned[slot / 64] is set for each
+	 * slot that may not be named, see EvictionPolicies.isPinned()
+	 * @return the slot to evict, or -1 if every occupied slot is pinned;
+	 * removed() or inserted() follows for it
+	 */
+	public int victim(int hash, long[] pinned);
+
+	/**
+	 * @return whether the entry in slot has been read since it was cached,
+	 * as far as the policy keeps track; shown by KVCache.toXML()
+	 */
+	public boolean isReferenced(int slot);
+}
@@ -0,0 +1,199 @@
+/**
+ * Batches writes that wait to be made durable
+ * 
+ * Copyright (c) 2012, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *    
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Lets concurrent writers share one expensive commit, such as an fsync.
+ * Writers enqueue an item and get a Commit back; a single flusher thread
+ * takes whatever has queued up (at most maxBatch items), hands it to
+ * commit() in one call, and only then releases the writers of that batch.
+ * While one commit is in progress the next batch builds up, so under load
+ * each commit covers many writes.
+ *
+ * With maxWaitMicros > 0 the flusher also holds a batch that is not yet
+ * full for up to that long, trading a little latency at low load for
+ * bigger batches.
+ *
+ * A failed commit fails the writers of its batch only. Subclasses that
+ * cannot go on after a failure (see GroupCommitLog) refuse further items
+ * themselves.
+ */
+abstract class GroupCommit<T> {
+	private int maxBatch = 1;
+	private long maxWaitNanos = 0;
+
+	// Guarded by this
+	private ArrayList<T> items = new ArrayList<T>();
+	private ArrayList<Commit> commits = new ArrayList<Commit>();
+	private boolean stopped = false;
+
+	private Thread flusher = null;
+
+	/**
+	 * One write, done once it is durable
+	 */
+	static class Commit {
+		private boolean done = false;
+		private IOException failure = null;
+
+		/**
+		 * Blocks until the write is durable
+		 * @throws IOException if it could not be made durable
+		 */
+		synchronized void await() throws IOException {
+			boolean interrupted = false;
+			while (!done) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					// The write is already queued; its outcome still matters
+					interrupted = true;
+				}
+			}
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+			if (failure != null) {
+				throw failure;
+			}
+		}
+
+		private synchronized void finish(IOException failure) {
+			this.failure = failure;
+			done = true;
+			notifyAll();
+		}
+	}
+
+	/**
+	 * @param maxBatch most items committed together
+	 * @param maxWaitMicros how long to wait for a batch to fill up
+	 * @param name for the flusher thread
+	 */
+	GroupCommit(int maxBatch, long maxWaitMicros, String name) {
+		this.maxBatch = Math.max(1, maxBatch);
+		this.maxWaitNanos = maxWaitMicros * 1000;
+		flusher = new Thread(new Flusher(), name);
+		flusher.setDaemon(true);
+		flusher.start();
+	}
+
+	/**
+	 * Makes a batch of items durable, in the order they were enqueued.
+	 * Called on the flusher thread only.
+	 * @throws IOException to fail every writer of the batch
+	 */
+	abstract void commit(List<T> batch) throws IOException;
+
+	/**
+	 * Queues an item; call await() on the result to wait until it is
+	 * durable. Must not be called concurrently with stop().
+	 * @throws IOException if stopped
+	 */
+	synchronized Commit enqueue(T item) throws IOException {
+		if (stopped) {
+			throw new IOException("Stopped");
+		}
+		Commit commit = new Commit();
+		items.add(item);
+		commits.add(commit);
+		notifyAll();
+		return commit;
+	}
+
+	/**
+	 * Waits for everything enqueued so far to be committed, then stops the
+	 * flusher
+	 */
+	void stop() {
+		synchronized (this) {
+			stopped = true;
+			notifyAll();
+		}
+		try {
+			flusher.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private class Flusher implements Runnable {
+		public void run() {
+			while (true) {
+				List<T> batch;
+				ArrayList<Commit> batchCommits;
+				synchronized (GroupCommit.this) {
+					while (items.isEmpty() && !stopped) {
+						waitQuietly(0);
+					}
+					if (items.isEmpty()) {
+						return;
+					}
+					long deadline = System.nanoTime() + maxWaitNanos;
+					long remaining = maxWaitNanos;
+					while (items.size() < maxBatch && !stopped && remaining > 0) {
+						waitQuietly(remaining);
+						remaining = deadline - System.nanoTime();
+					}
+
+					int count = Math.min(maxBatch, items.size());
+					batch = new ArrayList<T>(items.subList(0, count));
+					batchCommits = new ArrayList<Commit>(commits.subList(0, count));
+					items.subList(0, count).clear();
+					commits.subList(0, count).clear();
+				}
+
+				IOException error = null;
+				try {
+					commit(batch);
+				} catch (IOException e) {
+					error = e;
+				}
+				for (Commit commit : batchCommits) {
+					commit.finish(error);
+				}
+			}
+		}
+
+		private void waitQuietly(long nanos) {
+			try {
+				if (nanos == 0) {
+					GroupCommit.this.wait();
+				} else {
+					GroupCommit.this.wait(nanos / 1000000, (int) (nanos % 1000000));
+				}
+			} catch (InterruptedException e) {
+				// Only stop() stops the flusher
+			}
+		}
+	}
+}
@@ -0,0 +1,107 @@
+/**
+ * Append-only log file with group commit
+ * 
+ * Copyright (c) 2012, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *    
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+/**
+ * Makes appends to a log file durable without an fsync per append.
+ * Writers enqueue their records and get a Commit back; the flusher of
+ * GroupCommit takes whatever has queued up (at most maxBatch records),
+ * writes it with one gathering FileChannel write, forces it to the device,
+ * and only then releases the writers of that batch. While one force is in
+ * progress the next batch builds up, so under load each fsync covers many
+ * appends.
+ *
+ * Records reach the file in the order they were appended. After a failed
+ * write the file may end in a partial record, so no further appends are
+ * taken.
+ */
+class GroupCommitLog extends GroupCommit<ByteBuffer> {
+	static final int DEFAULT_MAX_BATCH = 256;
+	static final long DEFAULT_MAX_WAIT_MICROS = 0;
+
+	private FileChannel channel = null;
+
+	// Guarded by this
+	private IOException failure = null;
+
+	/**
+	 * @param channel file to append to, positioned at its end
+	 * @param maxBatch most records written and forced together
+	 * @param maxWaitMicros how long to wait for a batch to fill up
+	 * @param name for the flusher thread
+	 */
+	GroupCommitLog(FileChannel channel, int maxBatch, long maxWaitMicros, String name) {
+		super(maxBatch, maxWaitMicros, name);
+		this.channel = channel;
+	}
+
+	/**
+	 * Queues a record; call await() on the result to wait until it is
+	 * durable. Must not be called concurrently with close().
+	 * @throws IOException if the log is closed or an earlier write failed
+	 */
+	synchronized Commit append(ByteBuffer record) throws IOException {
+		if (failure != null) {
+			throw failure;
+		}
+		return enqueue(record);
+	}
+
+	/**
+	 * Waits for everything appended so far to be durable, then closes the
+	 * file
+	 */
+	void close() throws IOException {
+		stop();
+		channel.close();
+	}
+
+	void commit(List<ByteBuffer> records) throws IOException {
+		ByteBuffer[] batch = records.toArray(new ByteBuffer[records.size()]);
+		try {
+			long left = 0;
+			for (ByteBuffer record : batch) {
+				left += record.remaining();
+			}
+			while (left > 0) {
+				left -= channel.write(batch);
+			}
+			channel.force(false);
+		} catch (IOException e) {
+			synchronized (this) {
+				failure = e;
+			}
+			throw e;
+		}
+	}
+}
@@ -0,0 +1,99 @@
+package edu.berkeley.cs162;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class GroupCommitLogTest {
+	static final String FILE = "GroupCommitLogTest.log";
+
+	@After
+	public void tearDown() {
+		new File(FILE).delete();
+	}
+
+	@Test
+	public void concurrentAppendsAllReachTheFile() throws Exception {
+		final GroupCommitLog log = new GroupCommitLog(new RandomAccessFile(FILE, "rw").getChannel(), 16, 500, "test");
+		final int threads = 8;
+		final int appends = 100;
+		ArrayList<Thread> writers = new ArrayList<Thread>();
+		final ArrayList<Throwable> errors = new ArrayList<Throwable>();
+		for (int t = 0; t < threads; t++) {
+			final int id = t;
+			Thread writer = new Thread(new Runnable() {
+				public void run() {
+					try {
+						for (int i = 0; i < appends; i++) {
+							ByteBuffer record = ByteBuffer.allocate(8);
+							record.putInt(id).putInt(i).flip();
+							log.append(record).await();
+						}
+					} catch (IOException e) {
+						synchronized (errors) {
+							errors.add(e);
+						}
+					}
+				}
+			});
+			writer.start();
+			writers.add(writer);
+		}
+		for (Thread writer : writers) {
+			writer.join();
+		}
+		log.close();
+		assertTrue(errors.isEmpty());
+
+		// Every record is there, and each writer's records are in order
+		RandomAccessFile in = new RandomAccessFile(FILE, "r");
+		assertEquals(threads * appends * 8, in.length());
+		int[] next = new int[threads];
+		for (int i = 0; i < threads * appends; i++) {
+			int id = in.readInt();
+			assertEquals(next[id]++, in.readInt());
+		}
+		in.close();
+
+		try {
+			log.append(ByteBuffer.allocate(1));
+			fail("a closed log takes no appends");
+		} catch (IOException e) {
+		}
+	}
+
+	@Test
+	public void failedCommitFailsOnlyItsBatch() throws Exception {
+		final boolean[] broken = { true };
+		final ArrayList<String> committed = new ArrayList<String>();
+		GroupCommit<String> group = new GroupCommit<String>(16, 0, "test") {
+			void commit(List<String> batch) throws IOException {
+				if (broken[0]) {
+					throw new IOException("Device error");
+				}
+				committed.addAll(batch);
+			}
+		};
+		try {
+			group.enqueue("lost").await();
+			fail("commit is broken");
+		} catch (IOException e) {
+			assertEquals("Device error", e.getMessage());
+		}
+
+		// Later writes are committed once the device recovers
+		broken[0] = false;
+		group.enqueue("kept").await();
+		group.stop();
+		assertEquals(1, committed.size());
+		assertEquals("kept", committed.get(0));
+	}
+}
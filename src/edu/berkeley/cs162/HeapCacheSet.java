@@ -0,0 +1,99 @@
+/**
+ * KVCache set kept on the heap
+ * 
+ * Copyright (c) 2012, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *    
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+/**
+ * Keeps a set's entries in parallel arrays of keys, values and key
+ * hashes. An empty slot has a null key.
+ */
+class HeapCacheSet extends CacheSet {
+	// Heap taken by an entry besides the characters of its key and value
+	private static final int ENTRY_OVERHEAD = 64;
+
+	private final String[] keys;
+	private final String[] values;
+	private final int[] hashes;
+
+	HeapCacheSet(int maxElems, EvictionPolicy policy) {
+		super(policy, maxElems);
+		keys = new String[maxElems];
+		values = new String[maxElems];
+		hashes = new int[maxElems];
+	}
+
+	int capacity() {
+		return keys.length;
+	}
+
+	int find(String key, int hash) {
+		for (int i = 0; i < keys.length; i++) {
+			if (hashes[i] == hash) {
+				String k = keys[i];
+				if (k != null && k.equals(key)) {
+					return i;
+				}
+			}
+		}
+		return -1;
+	}
+
+	boolean isEmpty(int slot) {
+		return keys[slot] == null;
+	}
+
+	String key(int slot) {
+		return keys[slot];
+	}
+
+	String value(int slot) {
+		return values[slot];
+	}
+
+	int hash(int slot) {
+		return hashes[slot];
+	}
+
+	void store(int slot, String key, int hash, String value) {
+		keys[slot] = key;
+		hashes[slot] = hash;
+		values[slot] = value;
+	}
+
+	void clear(int slot) {
+		keys[slot] = null;
+		values[slot] = null;
+		hashes[slot] = 0;
+	}
+
+	/**
+	 * About what the two Strings take on the heap
+	 */
+	long weigh(String key, String value) {
+		return ENTRY_OVERHEAD + 2L * (key.length() + value.length());
+	}
+}
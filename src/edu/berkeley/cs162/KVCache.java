@@ -32,11 +32,11 @@ package edu.berkeley.cs162;
 
 import java.io.FileInputStream;
 import java.io.FileWriter;
-import java.util.Iterator;
-import java.util.LinkedList;
+import java.nio.ByteBuffer;
 import java.util.Scanner;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock.WriteLock;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.StampedLock;
 
 import javax.xml.stream.XMLOutputFactory;
 import javax.xml.stream.XMLStreamWriter;
@@ -46,32 +46,142 @@ import javax.xml.stream.XMLStreamWriter;
  * A set-associate cache which has a fixed maximum number of sets (numSets).
  * Each set has a maximum number of elements (MAX_ELEMS_PER_SET).
  * If a set is full and another entry is added, an entry is dropped based on the eviction policy.
+ *
+ * Each set keeps its entries in fixed slots, see CacheSet: on the heap, in
+ * parallel arrays of keys, values and key hashes, or, for caches too large
+ * to leave to the garbage collector, in direct memory (OffHeapCacheSet).
+ * A lookup compares hashes before keys, and neither lookups nor evictions
+ * allocate anything. Empty slots are filled first; once a set is full, its
+ * EvictionPolicy picks the entry to give up (second chance unless told
+ * otherwise).
+ *
+ * A cache can also be given a budget in bytes, for values whose sizes vary
+ * too much for a count of entries to say anything about memory use. Each
+ * entry then weighs roughly what its key and value take on the heap, or
+ * exactly what they take in direct memory. Every
+ * set has an even share of the budget and may borrow up to
+ * SET_BORROW_FACTOR times that share while the cache as a whole is under
+ * budget; once it is over, a put evicts from its own set down to the
+ * share, and then from other sets that are over theirs (those it can lock
+ * without waiting), until the cache is back under budget.
+ *
+ * The sets are spread over a fixed number of lock stripes: a key hashes to
+ * a stripe, and then to one of the sets the stripe holds. Each stripe is
+ * guarded by a StampedLock. Writers take it exclusively, through
+ * getWriteLock(). Readers can use getOptimistic() instead, which takes no
+ * lock at all on a hit: it reads the set under an optimistic stamp and only
+ * retries, under the shared read lock, if a writer got in the way.
+ *
+ * Since a key's stripe never changes, the number of sets can change while
+ * the cache is in use: resize() rebuilds one stripe at a time, each under
+ * its own lock, so only the keys of that stripe wait, and only for as long
+ * as it takes to move its few entries. It can also be left to a background
+ * thread that grows the cache while the hit rate is short of a target and
+ * growing still helps, see autoResize().
+ *
+ * Finally, a cache can remember keys found missing from the store, so that
+ * repeated reads of them are answered without going to the store either,
+ * see cacheMisses(). These negative entries are kept apart from the others,
+ * in a MissTable per stripe, so they neither take slots from values nor
+ * count against the byte budget. They expire after a fixed time and are
+ * dropped as soon as their key is put or deleted.
+ *
+ * A value read from the store is cached with fill() rather than put(), so
+ * that the store can be read without holding the set's lock: put() and
+ * del() move the key's version on, and fill() only caches the value if the
+ * version is still the one getVersion() gave before the read. A write that
+ * raced the read thus always wins over it.
+ *
+ * For a KVServer writing behind, putDirty() caches a value the store does
+ * not have yet. The entry is dirty until clean() is called for it, and is
+ * never evicted meanwhile: policies are told to pick their victim among
+ * the other entries.
  */
 public class KVCache implements KeyValueInterface {	
-	private int numSets = 100;
+	private volatile int numSets = 100;
 	private int maxElemsPerSet = 10;
+	// Optimistic reads that fail validation this often take the read lock
+	private static final int OPTIMISTIC_ATTEMPTS = 2;
+	private static final int SET_BORROW_FACTOR = 4;
+	private static final int MAX_LOCK_STRIPES = 64;
+	// Keys of a stripe share this many versions, see getVersion()
+	private static final int VERSIONS_PER_STRIPE = 64;
+	
+	private Stripe[] stripes = null;
+	private EvictionPolicy.Factory policy = null;
+	// Holds the entries of an off-heap cache; null for one on the heap
+	private OffHeapArena arena = null;
+	// 0 for no byte budget
+	private long maxBytes = 0;
+	private volatile long setShare = 0;
+	private AtomicLong totalBytes = new AtomicLong();
+	// Where the next reclaim() starts looking; races are harmless
+	private int reclaimHand = 0;
+	private Thread resizer = null;
+	// How long a key is known missing for; 0 until cacheMisses()
+	private volatile long missTtlMillis = 0;
+	
+	private static class Stripe {
+		final StampedLock lock = new StampedLock();
+		final Lock writeLock = lock.asWriteLock();
+		// Replaced, never changed, by a resize
+		CacheSet[] sets;
+		// Counted by getOptimistic() with plain, racy increments
+		long hits = 0;
+		long misses = 0;
+		// Keys known to be missing from the store, or null
+		volatile MissTable missing = null;
+		// Moved on by every put() and del() of the keys sharing one
+		final long[] versions = new long[VERSIONS_PER_STRIPE];
+		
+		Stripe(CacheSet[] sets) {
+			this.sets = sets;
+		}
+	}
 	
-	private LinkedList<cacheEntry>[] cacheSet = null;
-	private WriteLock[] arrayOfLocks = null;
 	/**
 	 * Creates a new LRU cache.
 	 * @param cacheSize	the maximum number of entries that will be kept in this cache.
 	 */
 	public KVCache(int numSets, int maxElemsPerSet) {
+		this(numSets, maxElemsPerSet, EvictionPolicies.CLOCK);
+	}
+	
+	/**
+	 * @param policy	chooses what each full set evicts, see EvictionPolicies
+	 */
+	public KVCache(int numSets, int maxElemsPerSet, EvictionPolicy.Factory policy) {
+		this(numSets, maxElemsPerSet, policy, 0);
+	}
+	
+	/**
+	 * @param policy	chooses what each full set evicts, see EvictionPolicies
+	 * @param maxBytes	budget for the weight of all entries, or 0 for none
+	 */
+	public KVCache(int numSets, int maxElemsPerSet, EvictionPolicy.Factory policy, long maxBytes) {
+		this(numSets, maxElemsPerSet, policy, maxBytes, false);
+	}
+	
+	/**
+	 * @param policy	chooses what each full set evicts, see EvictionPolicies
+	 * @param maxBytes	budget for the weight of all entries, or 0 for none
+	 * @param offHeap	whether to keep the entries in direct memory rather
+	 * than on the heap; a get then creates its value String anew each time
+	 */
+	public KVCache(int numSets, int maxElemsPerSet, EvictionPolicy.Factory policy, long maxBytes, boolean offHeap) {
+		if(offHeap){
+			arena = new OffHeapArena(OffHeapArena.DEFAULT_SLAB_SIZE);
+		}
+		this.maxBytes = maxBytes;
+		this.setShare = Math.max(1, maxBytes / numSets);
 		this.numSets = numSets;
 		this.maxElemsPerSet = maxElemsPerSet;     
+		this.policy = policy;
 		// TODO: Implement Me!
-		cacheSet = (LinkedList<cacheEntry>[]) new LinkedList[this.numSets];
-		
-		for(int j = 0; j < this.numSets; j++){
-			cacheSet[j] = new LinkedList<cacheEntry>();
-		}
-		
-		arrayOfLocks = new WriteLock[this.numSets];
+		stripes = new Stripe[Math.min(numSets, MAX_LOCK_STRIPES)];
 		
-		for(int i = 0; i < this.numSets; i++){
-			ReentrantReadWriteLock rwl = new ReentrantReadWriteLock();
-			arrayOfLocks[i] = rwl.writeLock();
+		for(int j = 0; j < stripes.length; j++){
+			stripes[j] = new Stripe(newSets(setsOfStripe(j, numSets)));
 		}
 	}
 
@@ -87,18 +197,73 @@ public class KVCache implements KeyValueInterface {
 		AutoGrader.agCacheGetDelay();
         
 		// TODO: Implement Me!
-		int setLocation = getSetId(key);
 		String toReturn = null;
-		LinkedList<cacheEntry> kvSet = cacheSet[setLocation];
+		int hash = key.hashCode();
+		CacheSet set = setOf(stripeOf(hash), hash);
+		int slot = set.find(key, hash);
+		if(slot >= 0){
+			toReturn = set.value(slot);
+			set.policy.hit(slot);
+		}
 		
-		cacheEntry entry = null;
-		for(int i = 0; i < kvSet.size(); i++){
-			entry = kvSet.get(i);
-			if(entry.key.equals(key)){
-				toReturn = entry.value;
-				entry.useBit = true;
-				break;
+		// Must be called before returning
+		AutoGrader.agCacheGetFinished(key);
+		return toReturn;
+	}
+	
+	/**
+	 * Like get(), but needs no lock held: the set is read optimistically and
+	 * the read is validated against writers afterwards. These are the
+	 * lookups the hit rate is counted over.
+	 * @param key the key whose associated value is to be returned.
+	 * @return the value associated to this key, or null if no value with this key exists in the cache.
+	 */
+	public String getOptimistic(String key) {
+		// Must be called before anything else
+		AutoGrader.agCacheGetStarted(key);
+		AutoGrader.agCacheGetDelay();
+		
+		int hash = key.hashCode();
+		Stripe stripe = stripeOf(hash);
+		CacheSet set = null;
+		int slot = -1;
+		String toReturn = null;
+		boolean valid = false;
+		for(int attempt = 0; attempt < OPTIMISTIC_ATTEMPTS && !valid; attempt++){
+			long stamp = stripe.lock.tryOptimisticRead();
+			if(stamp == 0){
+				//A writer holds the stripe
+				continue;
 			}
+			try{
+				set = setOf(stripe, hash);
+				slot = set.find(key, hash);
+				toReturn = slot < 0 ? null : set.value(slot);
+			} catch (RuntimeException e) {
+				//What a writer was changing under us may make no sense at all
+				if(stripe.lock.validate(stamp)){
+					throw e;
+				}
+				continue;
+			}
+			valid = stripe.lock.validate(stamp);
+		}
+		if(!valid){
+			long stamp = stripe.lock.readLock();
+			try{
+				set = setOf(stripe, hash);
+				slot = set.find(key, hash);
+				toReturn = slot < 0 ? null : set.value(slot);
+			} finally {
+				stripe.lock.unlockRead(stamp);
+			}
+		}
+		if(slot >= 0){
+			//Unlocked: the slot may have been reused since, see EvictionPolicy
+			set.policy.hit(slot);
+			stripe.hits++;
+		} else {
+			stripe.misses++;
 		}
 		
 		// Must be called before returning
@@ -121,66 +286,80 @@ public class KVCache implements KeyValueInterface {
 		AutoGrader.agCachePutDelay();
 
 		// TODO: Implement Me!
-		int setLocation = getSetId(key);
-		
-		//Find the set
-		LinkedList<cacheEntry> kvSet = cacheSet[setLocation];
-
-		//First we will search to see if the List Exists 
-		cacheEntry entry = null;
-		boolean found = false;
+		int hash = key.hashCode();
+		Stripe stripe = stripeOf(hash);
+		stripe.versions[versionOf(hash)]++;
+		install(stripe, key, hash, value, false);
+		// Must be called before returning
+		AutoGrader.agCachePutFinished(key, value);
+	}
+	
+	/**
+	 * Like put(), for a value the store does not have yet: the entry is
+	 * dirty, and will not be evicted, until clean() is called for key. If
+	 * every entry of its set is dirty already, it is not cached at all.
+	 * Assumes the corresponding set has already been locked for writing.
+	 */
+	public void putDirty(String key, String value) {
+		// Must be called before anything else
+		AutoGrader.agCachePutStarted(key, value);
+		AutoGrader.agCachePutDelay();
 		
-		for(int i = 0; i < kvSet.size(); i++){
-			entry = kvSet.get(i);
-			
-			
-			//Check if the key matches
-			//Assuming "==" matches the string characters
-			if(entry.key.equals(key)){
-				entry.value = value;
-				entry.useBit = false;
-				found = true;
-				break;
-			}
+		int hash = key.hashCode();
+		Stripe stripe = stripeOf(hash);
+		stripe.versions[versionOf(hash)]++;
+		install(stripe, key, hash, value, true);
+		// Must be called before returning
+		AutoGrader.agCachePutFinished(key, value);
+	}
+	
+	/**
+	 * Lets key's entry be evicted again, its value having reached the store.
+	 * Assumes the corresponding set has already been locked for writing.
+	 */
+	public void clean(String key) {
+		int hash = key.hashCode();
+		CacheSet set = setOf(stripeOf(hash), hash);
+		int slot = set.find(key, hash);
+		if(slot >= 0){
+			set.setDirty(slot, false);
 		}
-		
-		//If we haven't found entry in the scan
-		if(!found){
-			boolean addComplete = false;
-			
-			/* ****************************************************
-			 * Since we're moving around nodes in the LinkedList, 
-			 * we need to account for that when we scan           */
-			
-			//Default Case.
-			//When there is space available
-			if(kvSet.size() < this.maxElemsPerSet){
-				cacheEntry newEntry = new cacheEntry(key, value);
-				kvSet.add(newEntry);
-				addComplete = true;
-			}
-			
-			entry = null;
-			//Case when list is full
-			while(!addComplete){
-				//Always check the head (this is a changing element)
-				entry = kvSet.getFirst();
-				if(entry.useBit){
-					entry.useBit = false;
-					kvSet.removeFirst();
-					kvSet.add(entry);
-				} else {
-					cacheEntry newEntry = new cacheEntry(key, value);
-					//Remove head
-					kvSet.removeFirst();
-					//Add new entry
-					kvSet.add(newEntry);
-					addComplete = true;
-				}
-			}
+	}
+	
+	/**
+	 * Like put(), for a value just read from the store: caches it only if
+	 * key has not been put or deleted since the read began, and leaves the
+	 * version alone, so that fills of other keys sharing it go ahead.
+	 * Assumes the corresponding set has already been locked for writing.
+	 * @param version	what getVersion() returned before the store was read
+	 * @return	whether the value was cached
+	 */
+	public boolean fill(String key, String value, long version) {
+		int hash = key.hashCode();
+		Stripe stripe = stripeOf(hash);
+		if(stripe.versions[versionOf(hash)] != version){
+			return false;
 		}
+		// Must be called before anything else
+		AutoGrader.agCachePutStarted(key, value);
+		AutoGrader.agCachePutDelay();
+		install(stripe, key, hash, value, false);
 		// Must be called before returning
 		AutoGrader.agCachePutFinished(key, value);
+		return true;
+	}
+	
+	/**
+	 * To be read before the store is, for fill() or putMissing(). Keys
+	 * share versions, a stripe's keys being spread over VERSIONS_PER_STRIPE
+	 * of them, so a write may also turn away fills of other keys; those
+	 * are just left for the next get.
+	 * Assumes the corresponding set has already been locked for writing.
+	 * @return	the version of key
+	 */
+	public long getVersion(String key) {
+		int hash = key.hashCode();
+		return stripeOf(hash).versions[versionOf(hash)];
 	}
 
 	/**
@@ -194,59 +373,473 @@ public class KVCache implements KeyValueInterface {
 		AutoGrader.agCacheDelDelay();
 		
 		// TODO: Implement Me!
-		int setLocation = getSetId(key);
-		
-		//Find the set
-		LinkedList<cacheEntry> kvSet = cacheSet[setLocation];
-		//First we will search to see if the List Exists 
-		cacheEntry entry = null;
-		
-		for(int i = 0; i < kvSet.size(); i++){
-			entry = kvSet.get(i);
-			if(entry.key.equals(key)){
-				kvSet.remove(i);
-				break;
-			}
+		int hash = key.hashCode();
+		Stripe stripe = stripeOf(hash);
+		stripe.versions[versionOf(hash)]++;
+		if(stripe.missing != null){
+			stripe.missing.remove(key, hash);
+		}
+		CacheSet set = setOf(stripe, hash);
+		int slot = set.find(key, hash);
+		if(slot >= 0){
+			evict(set, slot);
 		}
 		// Must be called before returning
 		AutoGrader.agCacheDelFinished(key);
 	}
 	
 	/**
-	 * @param key
-	 * @return	the write lock of the set that contains key.
+	 * Starts remembering keys found missing from the store, see putMissing().
+	 * Call before the cache is in use.
+	 * @param maxMissing	keys to remember at most, split evenly over the
+	 * lock stripes
+	 * @param ttlMillis	how long to remember each for; a key written to the
+	 * store without the cache hearing of it reads as missing until then
 	 */
-	public WriteLock getWriteLock(String key) {
-	    // TODO: Implement Me!
-		int setLocation = getSetId(key);
-		//Find the set
-		LinkedList<cacheEntry> kvSet = cacheSet[setLocation];
-		//First we will search to see if the List Exists 
-		cacheEntry entry = null;
-		
-		return arrayOfLocks[setLocation];
-		
-		/*
-		//If the key exists in the cache, return the lock
-		for(int i = 0; i < kvSet.size(); i++){
-			entry = kvSet.get(i);
-			if(entry.key == key){
-				return arrayOfLocks[setLocation];
+	public void cacheMisses(int maxMissing, long ttlMillis) {
+		for(Stripe stripe : stripes){
+			stripe.missing = new MissTable(Math.max(1, maxMissing / stripes.length));
+		}
+		missTtlMillis = ttlMillis;
+	}
+	
+	/**
+	 * Records that key is missing from the store, if misses are cached at
+	 * all, so that isMissing() says so until the record expires or key is
+	 * put or deleted. Like fill(), does nothing if key was written since
+	 * the store was searched.
+	 * Assumes the corresponding set has already been locked for writing.
+	 * @param version	what getVersion() returned before the store was read
+	 * @return	whether the miss was recorded
+	 */
+	public boolean putMissing(String key, long version) {
+		int hash = key.hashCode();
+		Stripe stripe = stripeOf(hash);
+		if(stripe.missing == null || stripe.versions[versionOf(hash)] != version){
+			return false;
+		}
+		long now = System.currentTimeMillis();
+		stripe.missing.add(key, hash, now + missTtlMillis, now);
+		return true;
+	}
+	
+	/**
+	 * Needs no lock held, like getOptimistic(), and must not be called
+	 * holding the set's lock either.
+	 * @return	whether key was recently found missing from the store
+	 */
+	public boolean isMissing(String key) {
+		int hash = key.hashCode();
+		Stripe stripe = stripeOf(hash);
+		MissTable missing = stripe.missing;
+		if(missing == null){
+			return false;
+		}
+		long now = System.currentTimeMillis();
+		for(int attempt = 0; attempt < OPTIMISTIC_ATTEMPTS; attempt++){
+			long stamp = stripe.lock.tryOptimisticRead();
+			if(stamp == 0){
+				continue;
+			}
+			boolean found = missing.contains(key, hash, now);
+			if(stripe.lock.validate(stamp)){
+				return found;
+			}
+		}
+		long stamp = stripe.lock.readLock();
+		try{
+			return missing.contains(key, hash, now);
+		} finally {
+			stripe.lock.unlockRead(stamp);
+		}
+	}
+	
+	/**
+	 * @return	total weight of the cached entries, in bytes
+	 */
+	public long getBytes() {
+		return totalBytes.get();
+	}
+	
+	public int getNumSets() {
+		return numSets;
+	}
+	
+	/**
+	 * @return	lookups by getOptimistic() that found their key, ever
+	 */
+	public long getHits() {
+		long hits = 0;
+		for(Stripe stripe : stripes){
+			hits += stripe.hits;
+		}
+		return hits;
+	}
+	
+	/**
+	 * @return	lookups by getOptimistic() that did not find their key, ever
+	 */
+	public long getMisses() {
+		long misses = 0;
+		for(Stripe stripe : stripes){
+			misses += stripe.misses;
+		}
+		return misses;
+	}
+	
+	/**
+	 * Changes the number of sets while gets and puts go on, one lock stripe
+	 * at a time. When shrinking, the entries read since they were cached
+	 * are the last to be evicted. Must not be called while holding the
+	 * write lock of any set.
+	 * @param numSets	at least the number of lock stripes, which is the
+	 * number of sets the cache was created with, up to 64
+	 */
+	public synchronized void resize(int numSets) {
+		if(numSets < stripes.length){
+			throw new IllegalArgumentException("A cache with " + stripes.length + " lock stripes needs as many sets");
+		}
+		this.numSets = numSets;
+		setShare = Math.max(1, maxBytes / numSets);
+		for(int j = 0; j < stripes.length; j++){
+			Stripe stripe = stripes[j];
+			CacheSet[] sets = newSets(setsOfStripe(j, numSets));
+			long stamp = stripe.lock.writeLock();
+			try{
+				CacheSet[] old = stripe.sets;
+				stripe.sets = sets;
+				//Entries read since they were cached go last, so they outlive the others
+				for(int pass = 0; pass < 2; pass++){
+					for(CacheSet set : old){
+						for(int slot = 0; slot < set.capacity(); slot++){
+							if(set.isEmpty(slot) || set.policy.isReferenced(slot) != (pass == 1)){
+								continue;
+							}
+							boolean referenced = pass == 1;
+							String key = set.key(slot);
+							String value = set.value(slot);
+							int hash = set.hash(slot);
+							boolean dirty = set.isDirty(slot);
+							evict(set, slot);
+							CacheSet to = setOf(stripe, hash);
+							int moved = store(to, key, hash, value, dirty);
+							if(moved >= 0 && referenced){
+								to.policy.hit(moved);
+							}
+						}
+					}
+				}
+				if(maxBytes > 0){
+					for(CacheSet set : sets){
+						shrink(set, -1, 0);
+					}
+				}
+			} finally {
+				stripe.lock.unlockWrite(stamp);
+			}
+		}
+		if(maxBytes > 0 && totalBytes.get() > maxBytes){
+			reclaim();
+		}
+	}
+	
+	/**
+	 * Starts a background thread that, every intervalMillis, looks at the
+	 * hit rate of the lookups made since the last time. While it is below
+	 * targetHitRate the cache is doubled, up to maxSets; if a doubling did
+	 * not raise the hit rate by at least MIN_GAIN it is undone, and the
+	 * cache stays put for a while. A hit rate well above the target halves
+	 * the cache, down to minSets. Growing only helps where the number of
+	 * entries, not a byte budget, is what limits the cache.
+	 * Replaces any earlier autoResize() settings.
+	 */
+	public void autoResize(double targetHitRate, int minSets, int maxSets, long intervalMillis) {
+		synchronized (stripes) {
+			resizer = new Thread(new Resizer(targetHitRate, Math.max(minSets, stripes.length), maxSets, intervalMillis),
+					"KVCache resize");
+			resizer.setDaemon(true);
+			resizer.start();
+		}
+	}
+	
+	/**
+	 * Stops the thread started by autoResize(), if any
+	 */
+	public void stopAutoResize() {
+		synchronized (stripes) {
+			if(resizer != null){
+				resizer.interrupt();
+				resizer = null;
+			}
+		}
+	}
+	
+	/**
+	 * Caches key in its set and keeps the cache within its byte budget.
+	 * Assumes stripe is locked for writing.
+	 */
+	private void install(Stripe stripe, String key, int hash, String value, boolean dirty) {
+		if(stripe.missing != null){
+			stripe.missing.remove(key, hash);
+		}
+		CacheSet set = setOf(stripe, hash);
+		int slot = store(set, key, hash, value, dirty);
+		if(slot >= 0 && maxBytes > 0){
+			shrink(set, slot, hash);
+			if(totalBytes.get() > maxBytes){
+				reclaim();
+			}
+		}
+	}
+	
+	/**
+	 * Adds key to set, or gives it its new value, evicting whatever the
+	 * set's policy says if the set is full.
+	 * Assumes set is locked for writing.
+	 * @param dirty	whether the store is yet to get value, see putDirty()
+	 * @return	the slot of key, or -1 if its value is too big to cache or
+	 * every other entry of the set is dirty
+	 */
+	private int store(CacheSet set, String key, int hash, String value, boolean dirty) {
+		long weight = set.weigh(key, value);
+		//First we will search to see if the key is already cached
+		int slot = set.find(key, hash);
+		if(maxBytes > 0 && weight > setShare * SET_BORROW_FACTOR){
+			//Too big to ever fit: drop what the cache has instead of keeping it stale
+			if(slot >= 0){
+				evict(set, slot);
+			}
+			return -1;
+		}
+		if(slot >= 0){
+			charge(set, weight - set.weight(slot));
+			set.store(slot, key, hash, value);
+			set.setDirty(slot, dirty);
+			set.policy.updated(slot);
+			return slot;
+		}
+		//Default Case.
+		//When there is space available
+		for(int i = 0; i < set.capacity() && slot < 0; i++){
+			if(set.isEmpty(i)){
+				slot = i;
 			}
 		}
 		
-	    return null;
-	    
-	    */
+		//Case when set is full
+		if(slot < 0){
+			slot = victim(set, hash);
+			if(slot < 0){
+				return -1;
+			}
+			charge(set, -set.weight(slot));
+		}
+		set.store(slot, key, hash, value);
+		set.setDirty(slot, dirty);
+		charge(set, weight);
+		set.policy.inserted(slot, hash);
+		return slot;
+	}
+	
+	/**
+	 * Evicts from set until it is within its share of the byte budget.
+	 * Assumes set is locked for writing.
+	 * @param slot	of the entry just stored, or -1
+	 */
+	private void shrink(CacheSet set, int slot, int hash) {
+		//Bounded, as a policy may name empty slots when the set is not full
+		for(int i = 0; i < 2 * set.capacity() && overBudget(set); i++){
+			int victim = victim(set, hash);
+			if(victim < 0){
+				break;
+			}
+			evict(set, victim);
+			if(victim == slot){
+				//The policy would rather not keep the new entry
+				break;
+			}
+		}
+	}
+	
+	/**
+	 * Evicts from sets over their share, other than those locked by
+	 * someone else, until the cache is under budget.
+	 */
+	private void reclaim() {
+		int start = (reclaimHand++ & Integer.MAX_VALUE) % stripes.length;
+		for(int i = 0; i < stripes.length && totalBytes.get() > maxBytes; i++){
+			Stripe other = stripes[(start + i) % stripes.length];
+			//Never waits, so cannot deadlock with the stripe our caller holds
+			long stamp = other.lock.tryWriteLock();
+			if(stamp == 0){
+				continue;
+			}
+			try{
+				for(CacheSet set : other.sets){
+					for(int j = 0; j < 2 * set.capacity() && set.bytes > setShare && totalBytes.get() > maxBytes; j++){
+						int victim = victim(set, 0);
+						if(victim < 0){
+							break;
+						}
+						evict(set, victim);
+					}
+				}
+			} finally {
+				other.lock.unlockWrite(stamp);
+			}
+		}
+	}
+	
+	/**
+	 * Asks set's policy for a victim among the entries that are not dirty
+	 * @return	the slot to evict, or -1 if every entry is dirty
+	 */
+	private int victim(CacheSet set, int hash) {
+		int slot = set.policy.victim(hash, set.pinned());
+		return slot >= 0 && !set.isDirty(slot) ? slot : -1;
+	}
+	
+	private boolean overBudget(CacheSet set) {
+		return set.bytes > setShare && (set.bytes > setShare * SET_BORROW_FACTOR || totalBytes.get() > maxBytes);
+	}
+	
+	/**
+	 * Empties slot, which may already be empty, and gives back its weight
+	 */
+	private void evict(CacheSet set, int slot) {
+		if(!set.isEmpty(slot)){
+			charge(set, -set.weight(slot));
+		}
+		set.clearSlot(slot);
+	}
+	
+	private void charge(CacheSet set, long bytes) {
+		set.bytes += bytes;
+		totalBytes.addAndGet(bytes);
+	}
+	
+	/**
+	 * @return	sets for one stripe, numSets divided as evenly as can be
+	 */
+	private int setsOfStripe(int stripe, int numSets) {
+		return numSets / stripes.length + (stripe < numSets % stripes.length ? 1 : 0);
+	}
+	
+	private CacheSet[] newSets(int count) {
+		EvictionPolicy[] policies = policy.create(count, maxElemsPerSet);
+		CacheSet[] sets = new CacheSet[count];
+		//One table for all the sets, rather than a direct buffer each
+		ByteBuffer table = arena == null ? null
+				: ByteBuffer.allocateDirect(count * maxElemsPerSet * OffHeapCacheSet.TABLE_SLOT_SIZE);
+		for(int i = 0; i < count; i++){
+			if(arena == null){
+				sets[i] = new HeapCacheSet(maxElemsPerSet, policies[i]);
+			} else {
+				sets[i] = new OffHeapCacheSet(maxElemsPerSet, policies[i], arena, table,
+						i * maxElemsPerSet * OffHeapCacheSet.TABLE_SLOT_SIZE);
+			}
+		}
+		return sets;
 	}
 	
 	/**
-	 * 
 	 * @param key
+	 * @return	the write lock of the set that contains key.
+	 */
+	public Lock getWriteLock(String key) {
+		return stripeOf(key.hashCode()).writeLock;
+	}
+	
+	/**
+	 * @return	the index of hash's version in its stripe; the stripe was
+	 * picked by the low bits, so this mixes in the high ones
+	 */
+	private static int versionOf(int hash) {
+		return (hash * 0x9E3779B9) >>> 26;
+	}
+	
+	private Stripe stripeOf(int hash) {
+		return stripes[(hash & Integer.MAX_VALUE) % stripes.length];
+	}
+	
+	/**
+	 * Safe to call without the lock, under an optimistic stamp
+	 * @param hash	hash code of the key
 	 * @return	set of the key
 	 */
-	private int getSetId(String key) {
-		return Math.abs(key.hashCode()) % numSets;
+	private CacheSet setOf(Stripe stripe, int hash) {
+		CacheSet[] sets = stripe.sets;
+		return sets[((hash & Integer.MAX_VALUE) / stripes.length) % sets.length];
+	}
+	
+	/**
+	 * Grows or shrinks the cache by the hit rate, see autoResize()
+	 */
+	private class Resizer implements Runnable {
+		// Least rise in hit rate for a doubling to be kept
+		private static final double MIN_GAIN = 0.01;
+		// How far above the target the hit rate has to be to shrink
+		private static final double SHRINK_MARGIN = 0.05;
+		// Intervals to wait after undoing a doubling, or after shrinking
+		private static final int HOLD_INTERVALS = 10;
+		// Fewer lookups in an interval say nothing about the hit rate
+		private static final long MIN_LOOKUPS = 1000;
+		
+		private final double target;
+		private final int minSets;
+		private final int maxSets;
+		private final long intervalMillis;
+		
+		Resizer(double target, int minSets, int maxSets, long intervalMillis) {
+			this.target = target;
+			this.minSets = minSets;
+			this.maxSets = maxSets;
+			this.intervalMillis = intervalMillis;
+		}
+		
+		public void run() {
+			long hits = getHits();
+			long misses = getMisses();
+			// Hit rate before the last doubling, or -1 if it was not just doubled
+			double before = -1;
+			int hold = 0;
+			while (true) {
+				try {
+					Thread.sleep(intervalMillis);
+				} catch (InterruptedException e) {
+					return;
+				}
+				synchronized (stripes) {
+					if (resizer != Thread.currentThread()) {
+						return;
+					}
+				}
+				long newHits = getHits() - hits;
+				long newMisses = getMisses() - misses;
+				if (newHits + newMisses < MIN_LOOKUPS) {
+					continue;
+				}
+				hits += newHits;
+				misses += newMisses;
+				double hitRate = (double) newHits / (newHits + newMisses);
+				int sets = numSets;
+				
+				if (before >= 0 && hitRate < before + MIN_GAIN) {
+					resize(Math.max(minSets, sets / 2));
+					hold = HOLD_INTERVALS;
+				} else if (hold > 0) {
+					hold--;
+				} else if (hitRate < target && sets < maxSets) {
+					resize(Math.min(maxSets, sets * 2));
+					before = hitRate;
+					continue;
+				} else if (hitRate > target + SHRINK_MARGIN && sets > minSets) {
+					resize(Math.max(minSets, sets / 2));
+					hold = HOLD_INTERVALS;
+				}
+				before = -1;
+			}
+		}
 	}
 	
 	public String toXML() throws Exception{
@@ -256,27 +849,29 @@ public class KVCache implements KeyValueInterface {
 		writer.writeStartDocument();
 		writer.writeStartElement("KVCache");
 		int i = 0;
-		while (i < cacheSet.length) {
-			
-			LinkedList<cacheEntry> listentries = cacheSet[i];
+		for (Stripe stripe : stripes) {
+			long stamp = stripe.lock.readLock();
+			try {
+			for (CacheSet set : stripe.sets) {
 			
 			writer.writeStartElement("Set");
 			writer.writeAttribute("Id", Integer.toString(i));
-			Iterator<cacheEntry> entries = listentries.iterator();
-			while (entries.hasNext()) {
+			for (int slot = 0; slot < set.capacity(); slot++) {
+				if (set.isEmpty(slot)) {
+					continue;
+				}
 				String refd = "false";
-				cacheEntry curr = entries.next();
-   				if (curr.useBit) {
+   				if (set.policy.isReferenced(slot)) {
 					refd = "true";
 				}
 			writer.writeStartElement("CacheEntry");
 			writer.writeAttribute("isReferenced", refd);
 			writer.writeAttribute("isValid", "true");
 			writer.writeStartElement("Key");
-			writer.writeCharacters(curr.key);
+			writer.writeCharacters(set.key(slot));
 			writer.writeEndElement();
 			writer.writeStartElement("Value");
-			writer.writeCharacters(curr.value);
+			writer.writeCharacters(set.value(slot));
 			writer.writeEndElement();
 			writer.writeEndElement();
 			
@@ -285,6 +880,10 @@ public class KVCache implements KeyValueInterface {
 			}
 			writer.writeEndElement();
 			i++;
+			}
+			} finally {
+				stripe.lock.unlockRead(stamp);
+			}
 		}
 		
 		writer.writeEndElement();
@@ -298,26 +897,12 @@ public class KVCache implements KeyValueInterface {
     
 
     public void printList(String key){
-    	int setLocation = getSetId(key);
-		//Find the set
-		LinkedList<cacheEntry> kvSet = cacheSet[setLocation];
-		cacheEntry entry = null;
-		for(int i = 0; i < kvSet.size(); i++){
-			entry = kvSet.get(i);
-			System.out.println(i+1 + ". " + entry.value + "     UseBit: " + entry.useBit);
+		int hash = key.hashCode();
+		CacheSet kvSet = setOf(stripeOf(hash), hash);
+		for(int i = 0; i < kvSet.capacity(); i++){
+			if(!kvSet.isEmpty(i)){
+				System.out.println(i+1 + ". " + kvSet.value(i) + "     UseBit: " + kvSet.policy.isReferenced(i));
+			}
 		}
     }
-    
-	private class cacheEntry {
-		String key;
-		String value;
-		boolean	useBit;
-		
-		public cacheEntry(String aKey, String aValue){
-			this.key = aKey;
-			this.value = aValue;
-			this.useBit = false;
-		}
-	}
 }
-
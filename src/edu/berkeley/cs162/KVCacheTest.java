@@ -0,0 +1,465 @@
+package edu.berkeley.cs162;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+
+import org.junit.Test;
+
+public class KVCacheTest {
+
+	@Test
+	public void evictsWithSecondChance() {
+		// One set, so every key competes for the same slots
+		KVCache cache = new KVCache(1, 3);
+		cache.put("a", "1");
+		cache.put("b", "2");
+		cache.put("c", "3");
+		assertEquals("1", cache.getOptimistic("a"));
+		cache.put("d", "4");
+		// a was referenced, so b went instead
+		assertEquals("1", cache.get("a"));
+		assertNull(cache.get("b"));
+		assertEquals("3", cache.get("c"));
+		assertEquals("4", cache.get("d"));
+
+		cache.del("c");
+		cache.put("e", "5");
+		// The hole is filled before anything is evicted
+		assertEquals("1", cache.get("a"));
+		assertEquals("4", cache.get("d"));
+		assertEquals("5", cache.get("e"));
+	}
+
+	@Test
+	public void keepsUseBitsPastOneWord() {
+		KVCache cache = new KVCache(1, 100);
+		for (int i = 0; i < 100; i++) {
+			cache.put("k" + i, "v" + i);
+		}
+		for (int i = 0; i < 100; i++) {
+			if (i != 70) {
+				assertEquals("v" + i, cache.get("k" + i));
+			}
+		}
+		cache.put("new", "n");
+		assertNull(cache.get("k70"));
+		assertEquals("v69", cache.get("k69"));
+		assertEquals("v71", cache.get("k71"));
+		assertEquals("n", cache.get("new"));
+	}
+
+	@Test
+	public void keepsConcurrentUseBitsOfOneWord() throws InterruptedException {
+		for (int round = 0; round < 100; round++) {
+			final EvictionPolicy policy = EvictionPolicies.CLOCK.create(1, 64)[0];
+			final CountDownLatch start = new CountDownLatch(1);
+			Thread[] readers = new Thread[8];
+			for (int t = 0; t < readers.length; t++) {
+				final int first = t;
+				readers[t] = new Thread() {
+					public void run() {
+						try {
+							start.await();
+						} catch (InterruptedException e) {
+							return;
+						}
+						for (int slot = first; slot < 64; slot += 8) {
+							policy.hit(slot);
+						}
+					}
+				};
+				readers[t].start();
+			}
+			start.countDown();
+			for (Thread reader : readers) {
+				reader.join();
+			}
+			for (int slot = 0; slot < 64; slot++) {
+				assertTrue("slot " + slot, policy.isReferenced(slot));
+			}
+		}
+	}
+
+	@Test
+	public void evictsLeastRecentlyAndFrequentlyUsed() {
+		KVCache lru = new KVCache(1, 3, EvictionPolicies.LRU);
+		KVCache lfu = new KVCache(1, 3, EvictionPolicies.LFU);
+		for (KVCache cache : new KVCache[] { lru, lfu }) {
+			cache.put("a", "1");
+			cache.put("b", "2");
+			cache.put("c", "3");
+			cache.get("b");
+			cache.get("b");
+			cache.get("c");
+			cache.get("a");
+			cache.put("d", "4");
+		}
+		// a was read last, b most often
+		assertNull(lru.get("b"));
+		assertEquals("1", lru.get("a"));
+		assertNull(lfu.get("c"));
+		assertEquals("2", lfu.get("b"));
+	}
+
+	@Test
+	public void scansDoNotFlushHotEntries() {
+		for (EvictionPolicies policy : new EvictionPolicies[] { EvictionPolicies.ARC, EvictionPolicies.TINY_LFU }) {
+			KVCache cache = new KVCache(1, 10, policy);
+			for (int round = 0; round < 5; round++) {
+				for (int i = 0; i < 5; i++) {
+					if (cache.get("hot" + i) == null) {
+						cache.put("hot" + i, "h");
+					}
+				}
+			}
+			for (int i = 0; i < 100; i++) {
+				cache.put("scan" + i, "s");
+			}
+			for (int i = 0; i < 5; i++) {
+				assertEquals(policy + " hot" + i, "h", cache.get("hot" + i));
+			}
+		}
+	}
+
+	@Test
+	public void staysUnderByteBudget() {
+		for (EvictionPolicies policy : EvictionPolicies.values()) {
+			KVCache cache = new KVCache(4, 100, policy, 20000);
+			StringBuilder value = new StringBuilder();
+			for (int i = 0; i < 2000; i++) {
+				value.setLength(0);
+				for (int j = 0; j < (i * 37) % 500; j++) {
+					value.append('v');
+				}
+				cache.put("key" + (i % 300), value.toString());
+				assertTrue(policy + " " + cache.getBytes(), cache.getBytes() <= 20000);
+			}
+			for (int i = 0; i < 300; i++) {
+				cache.del("key" + i);
+			}
+			assertEquals(0, cache.getBytes());
+		}
+	}
+
+	@Test
+	public void dropsValuesTooBigToCache() {
+		// A set may hold 4 * 1000 / 2 bytes
+		KVCache cache = new KVCache(2, 10, EvictionPolicies.CLOCK, 1000);
+		cache.put("key", "small");
+		StringBuilder big = new StringBuilder();
+		for (int i = 0; i < 1000; i++) {
+			big.append('x');
+		}
+		cache.put("key", big.toString());
+		assertNull(cache.get("key"));
+		assertEquals(0, cache.getBytes());
+	}
+
+	@Test
+	public void resizesKeepingWhatFits() {
+		KVCache cache = new KVCache(4, 10);
+		for (int i = 0; i < 40; i++) {
+			cache.put("key" + i, "v" + i);
+		}
+		cache.resize(16);
+		assertEquals(16, cache.getNumSets());
+		boolean[] kept = new boolean[40];
+		int keptCount = 0;
+		for (int i = 0; i < 40; i++) {
+			String value = cache.get("key" + i);
+			if (value != null) {
+				assertEquals("v" + i, value);
+				kept[i] = true;
+				keptCount++;
+			}
+		}
+		// Some of the sixteen sets may have more than ten of the keys
+		assertTrue(keptCount > 30);
+
+		// Writes clear use bits: only keys 0 to 9 are left read since cached,
+		// so they outlive the others when the sets fill up again
+		for (int i = 10; i < 40; i++) {
+			cache.put("key" + i, "v" + i);
+		}
+		cache.resize(4);
+		for (int i = 0; i < 10; i++) {
+			assertEquals(kept[i], cache.get("key" + i) != null);
+		}
+		try {
+			cache.resize(3);
+			fail("fewer sets than lock stripes");
+		} catch (IllegalArgumentException e) {
+		}
+	}
+
+	@Test
+	public void resizesUnderLoad() throws InterruptedException {
+		final KVCache cache = new KVCache(8, 4);
+		final AtomicInteger bad = new AtomicInteger();
+		final AtomicBoolean done = new AtomicBoolean();
+		Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++) {
+			threads[t] = new Thread() {
+				public void run() {
+					for (int i = 0; !done.get(); i++) {
+						String key = "key" + (i % 500);
+						String value = cache.getOptimistic(key);
+						if (value != null && !value.equals("v" + key)) {
+							bad.incrementAndGet();
+						}
+						if (value == null) {
+							Lock lock = cache.getWriteLock(key);
+							lock.lock();
+							try {
+								cache.put(key, "v" + key);
+							} finally {
+								lock.unlock();
+							}
+						}
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for (int round = 0; round < 20; round++) {
+			cache.resize(round % 2 == 0 ? 64 : 8);
+		}
+		done.set(true);
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals(0, bad.get());
+		assertEquals(8, cache.getNumSets());
+	}
+
+	@Test
+	public void growsUntilHitRateStopsRising() throws InterruptedException {
+		KVCache cache = new KVCache(1, 10);
+		cache.autoResize(0.99, 1, 64, 20);
+		Random random = new Random(162);
+		long deadline = System.currentTimeMillis() + 10000;
+		while (cache.getNumSets() < 16 && System.currentTimeMillis() < deadline) {
+			String key = "key" + random.nextInt(200);
+			if (cache.getOptimistic(key) == null) {
+				Lock lock = cache.getWriteLock(key);
+				lock.lock();
+				try {
+					cache.put(key, "v");
+				} finally {
+					lock.unlock();
+				}
+			}
+		}
+		cache.stopAutoResize();
+		assertTrue(cache.getNumSets() >= 16);
+	}
+
+	@Test
+	public void optimisticReadsMatchTheirKeys() throws InterruptedException {
+		// Four keys through two slots, so entries are evicted all the time
+		final KVCache cache = new KVCache(1, 2);
+		final AtomicInteger bad = new AtomicInteger();
+		Thread writer = new Thread() {
+			public void run() {
+				Lock lock = cache.getWriteLock("k0");
+				for (int i = 0; i < 20000; i++) {
+					lock.lock();
+					try {
+						cache.put("k" + (i % 4), "k" + (i % 4) + "=" + i);
+					} finally {
+						lock.unlock();
+					}
+				}
+			}
+		};
+		writer.start();
+		for (int i = 0; writer.isAlive(); i++) {
+			String key = "k" + (i % 4);
+			String value = cache.getOptimistic(key);
+			if (value != null && !value.startsWith(key + "=")) {
+				bad.incrementAndGet();
+			}
+		}
+		writer.join();
+		assertEquals(0, bad.get());
+		assertEquals("k3=19999", cache.getOptimistic("k3"));
+	}
+
+	@Test
+	public void offHeapBehavesLikeOnHeap() {
+		// Same policy, same hashes: both evict the same entries
+		KVCache heap = new KVCache(4, 5, EvictionPolicies.LRU, 0);
+		KVCache offHeap = new KVCache(4, 5, EvictionPolicies.LRU, 0, true);
+		Random random = new Random(162);
+		for (int i = 0; i < 5000; i++) {
+			String key = "key" + random.nextInt(60);
+			switch (random.nextInt(4)) {
+			case 0:
+				heap.del(key);
+				offHeap.del(key);
+				break;
+			case 1:
+				String value = i % 7 == 0 ? "" : "\u00e9t\u00e9 " + i;
+				heap.put(key, value);
+				offHeap.put(key, value);
+				break;
+			default:
+				assertEquals(key, heap.get(key), offHeap.get(key));
+			}
+			if (i == 2500) {
+				heap.resize(8);
+				offHeap.resize(8);
+			}
+		}
+		for (int i = 0; i < 60; i++) {
+			assertEquals(heap.get("key" + i), offHeap.getOptimistic("key" + i));
+		}
+	}
+
+	@Test
+	public void offHeapStaysUnderByteBudget() {
+		KVCache cache = new KVCache(4, 100, EvictionPolicies.CLOCK, 20000, true);
+		StringBuilder value = new StringBuilder();
+		for (int i = 0; i < 2000; i++) {
+			value.setLength(0);
+			for (int j = 0; j < (i * 37) % 500; j++) {
+				value.append('v');
+			}
+			cache.put("key" + (i % 300), value.toString());
+			assertTrue(cache.getBytes() + "", cache.getBytes() <= 20000);
+		}
+		for (int i = 0; i < 300; i++) {
+			cache.del("key" + i);
+		}
+		assertEquals(0, cache.getBytes());
+	}
+
+	@Test
+	public void offHeapOptimisticReadsMatchTheirKeys() throws InterruptedException {
+		// Slots freed by one writer are reused at once for other keys
+		final KVCache cache = new KVCache(1, 2, EvictionPolicies.CLOCK, 0, true);
+		final AtomicInteger bad = new AtomicInteger();
+		Thread writer = new Thread() {
+			public void run() {
+				Lock lock = cache.getWriteLock("k0");
+				for (int i = 0; i < 20000; i++) {
+					lock.lock();
+					try {
+						cache.put("k" + (i % 4), "k" + (i % 4) + "=" + i);
+					} finally {
+						lock.unlock();
+					}
+				}
+			}
+		};
+		writer.start();
+		for (int i = 0; writer.isAlive(); i++) {
+			String key = "k" + (i % 4);
+			String value = cache.getOptimistic(key);
+			if (value != null && !value.startsWith(key + "=")) {
+				bad.incrementAndGet();
+			}
+		}
+		writer.join();
+		assertEquals(0, bad.get());
+		assertEquals("k3=19999", cache.getOptimistic("k3"));
+	}
+
+	@Test
+	public void remembersMissingKeys() throws InterruptedException {
+		KVCache cache = new KVCache(2, 2);
+		cache.putMissing("a", cache.getVersion("a"));
+		assertFalse("misses not cached yet", cache.isMissing("a"));
+
+		cache.cacheMisses(8, 200);
+		cache.putMissing("a", cache.getVersion("a"));
+		cache.putMissing("b", cache.getVersion("b"));
+		cache.putMissing("c", cache.getVersion("c"));
+		assertTrue(cache.isMissing("a"));
+		assertFalse(cache.isMissing("d"));
+		cache.put("a", "1");
+		assertFalse(cache.isMissing("a"));
+		cache.del("b");
+		assertFalse(cache.isMissing("b"));
+		// Negative entries take no slots from values
+		for (int i = 0; i < 10; i++) {
+			cache.putMissing("x" + i, cache.getVersion("x" + i));
+		}
+		assertEquals("1", cache.get("a"));
+		Thread.sleep(300);
+		assertFalse(cache.isMissing("c"));
+	}
+
+	@Test
+	public void fillsLoseToRacingWrites() {
+		KVCache cache = new KVCache(2, 2);
+		long version = cache.getVersion("a");
+		cache.put("a", "new");
+		assertFalse(cache.fill("a", "old", version));
+		assertEquals("new", cache.get("a"));
+
+		version = cache.getVersion("a");
+		cache.del("a");
+		assertFalse(cache.fill("a", "old", version));
+		assertNull(cache.get("a"));
+
+		version = cache.getVersion("a");
+		assertTrue(cache.fill("a", "old", version));
+		// A fill is not a write: others that read the store alongside it go ahead
+		assertEquals(version, cache.getVersion("a"));
+		assertEquals("old", cache.get("a"));
+	}
+
+	@Test
+	public void neverEvictsDirtyEntries() {
+		for (EvictionPolicies policy : EvictionPolicies.values()) {
+			KVCache cache = new KVCache(1, 2, policy);
+			cache.putDirty("a", "1");
+			cache.putDirty("b", "2");
+			cache.put("c", "3");
+			// Nothing could be evicted to make room
+			assertNull(policy.toString(), cache.get("c"));
+			assertEquals("1", cache.get("a"));
+			assertEquals("2", cache.get("b"));
+
+			cache.clean("a");
+			cache.put("c", "3");
+			assertNull(policy.toString(), cache.get("a"));
+			assertEquals("2", cache.get("b"));
+			assertEquals("3", cache.get("c"));
+		}
+	}
+
+	@Test
+	public void policiesPassOverPinnedSlots() {
+		for (EvictionPolicies factory : EvictionPolicies.values()) {
+			EvictionPolicy policy = factory.create(1, 4)[0];
+			long[] pinned = new long[1];
+			for (int slot = 0; slot < 4; slot++) {
+				policy.inserted(slot, 10 + slot);
+				pinned[0] |= 1L << slot;
+			}
+			assertEquals(factory.toString(), -1, policy.victim(99, pinned));
+			// Slot 0 is the oldest, but pinned
+			pinned[0] = 1L;
+			int victim = policy.victim(99, pinned);
+			assertTrue(factory.toString(), victim > 0 && victim < 4);
+		}
+		assertEquals(-1, EvictionPolicies.ARC.create(1, 4)[0].victim(99, new long[1]));
+
+		// Passing over a pinned entry does not make ARC remember it as evicted
+		EvictionPolicy arc = EvictionPolicies.ARC.create(1, 4)[0];
+		for (int slot = 0; slot < 4; slot++) {
+			arc.inserted(slot, 10 + slot);
+		}
+		assertEquals(1, arc.victim(99, new long[] { 1L }));
+		arc.removed(0);
+		arc.inserted(0, 10);
+		assertFalse(arc.isReferenced(0));
+	}
+}
@@ -82,6 +82,15 @@ public class KVClient implements KeyValueInterface {
 	}
 	
 	public void put(String key, String value) throws KVException {
+		put(key, value, 0);
+	}
+	
+	/**
+	 * Like put(key, value), but the pair expires after ttlMillis. The slaves
+	 * expire it on their own; no del goes through the master.
+	 * @param ttlMillis time to live, or 0 for none
+	 */
+	public void put(String key, String value, long ttlMillis) throws KVException {
 	    if(key == null || value == null)
 	    	throw new KVException (new KVMessage("resp","Error: null key or value"));
 	    
@@ -90,6 +99,7 @@ public class KVClient implements KeyValueInterface {
 	    	KVMessage request = new KVMessage("putreq");
 	    	request.setKey(key);
 	    	request.setValue(value);
+	    	request.setTtl(ttlMillis);
 	    	request.sendMessage(sock);
 	    	
 	    	//Checkout the Response
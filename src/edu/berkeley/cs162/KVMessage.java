@@ -71,6 +71,8 @@ public class KVMessage implements Serializable {
 	private String value = null;
 	private String message = null;
     private String tpcOpId = null;    
+    // Time to live of a putreq in milliseconds, 0 if none
+    private long ttl = 0;
     ArrayList<String> msgTypes= new ArrayList<String>(Arrays.asList(
     		"putreq",
     		"getreq",
@@ -122,6 +124,14 @@ public class KVMessage implements Serializable {
 		this.tpcOpId = tpcOpId;
 	}
 
+	public long getTtl() {
+		return ttl;
+	}
+
+	public void setTtl(long ttl) {
+		this.ttl = ttl;
+	}
+
 	/* Solution from http://weblogs.java.net/blog/kohsuke/archive/2005/07/socket_xml_pitf.html */
 	private class NoCloseInputStream extends FilterInputStream {
 	    public NoCloseInputStream(InputStream in) {
@@ -193,6 +203,11 @@ public class KVMessage implements Serializable {
 		    if (msgType.equals("putreq")){
 		    	Node incomingKey = rootElement.getFirstChild();
 		    	Node incomingVal = rootElement.getLastChild();
+		    	//a 2PC putreq carries its TPCOpId after the value
+		    	if (incomingVal != null && incomingVal != incomingKey && incomingVal.getNodeName().equals("TPCOpId")){
+		    		this.tpcOpId = incomingVal.getTextContent();
+		    		incomingVal = incomingVal.getPreviousSibling();
+		    	}
 		    	
 		    	//check for null keys & vals & null textContents
 		    	if (incomingKey == null || incomingKey.getTextContent() == null || incomingVal == null || incomingVal.getTextContent()== null){
@@ -205,6 +220,16 @@ public class KVMessage implements Serializable {
 		    	this.key = incomingKey.getTextContent();
 		    	this.value = incomingVal.getTextContent();
 		    	
+		    	//optional TTL between the key and the value
+		    	Node incomingTtl = incomingKey.getNextSibling();
+		    	if (incomingTtl != null && incomingTtl != incomingVal && incomingTtl.getNodeName().equals("TTL")){
+		    		try {
+		    			this.ttl = Long.parseLong(incomingTtl.getTextContent());
+		    		} catch (NumberFormatException e) {
+		    			throw new KVException(new KVMessage("resp", "XML Error: Received unparseable message"));
+		    		}
+		    	}
+		    	
 		    }else if (msgType.equals("getreq")){ 
 		    	Node incomingKey = rootElement.getFirstChild();
 		    	if (incomingKey == null || incomingKey.getTextContent()==null){
@@ -239,6 +264,11 @@ public class KVMessage implements Serializable {
 		    	}
 		    	this.msgType = msgType;
 		    	this.key = keyToDelete.getTextContent();
+		    	//a 2PC delreq carries its TPCOpId after the key
+		    	Node tpcOpIdNode = keyToDelete.getNextSibling();
+		    	if (tpcOpIdNode != null && tpcOpIdNode.getNodeName().equals("TPCOpId")){
+		    		this.tpcOpId = tpcOpIdNode.getTextContent();
+		    	}
 		    }else if (msgType.equals("commit")){
 		    	Node tpcOpIdNode = rootElement.getFirstChild();
 		    	this.tpcOpId = tpcOpIdNode.getTextContent();
@@ -249,11 +279,14 @@ public class KVMessage implements Serializable {
 		    	Node firstChild = rootElement.getFirstChild();
 		    	if (firstChild.getNodeName().equals("Message")){
 		    		Node tpcOpIdNode = rootElement.getLastChild();
-		    		this.tpcOpId = tpcOpIdNode.getTextContent();
+		    		if (tpcOpIdNode != firstChild){
+		    			this.tpcOpId = tpcOpIdNode.getTextContent();
+		    		}
 		    		this.message = firstChild.getTextContent();
 		    	}else { // this is an error
 		    		this.tpcOpId = firstChild.getTextContent();
 		    	}
+		    	this.msgType = msgType;
 		    }else if (msgType.equals("ready")){
 		    	Node tpcOpIdNode = rootElement.getFirstChild();
 		    	this.tpcOpId = tpcOpIdNode.getTextContent();
@@ -310,6 +343,7 @@ public class KVMessage implements Serializable {
 		this.value = kvm.value;
 		this.message = kvm.message;
 		this.tpcOpId = kvm.tpcOpId;
+		this.ttl = kvm.ttl;
 	}
 
 	/**
@@ -355,16 +389,29 @@ public class KVMessage implements Serializable {
 				keyChild.setTextContent(key);
 				rootElement.appendChild(keyChild);
 
+				if (ttl > 0){
+					Element ttlChild = newDoc.createElement("TTL");
+					ttlChild.setTextContent(Long.toString(ttl));
+					rootElement.appendChild(ttlChild);
+				}
+
 				Element valueChild = newDoc.createElement("Value");
 				valueChild.setTextContent(value);
 				rootElement.appendChild(valueChild);
+
+				//the slave keeps the version it prepares under this id
+				if (tpcOpId != null){
+					Element tpIdElem = newDoc.createElement("TPCOpId");
+					tpIdElem.setTextContent(tpcOpId);
+					rootElement.appendChild(tpIdElem);
+				}
 			}else{
 				throw new KVException (new KVMessage("resp", "XML Error: Received unparseable message"));
 			}
 		}
 		if (msgType.equals("commit") || msgType.equals("ack")){
 			Element id = newDoc.createElement("TPCOpId");
-			id.setTextContent(this.message);
+			id.setTextContent(this.tpcOpId);
 			rootElement.appendChild(id);
 		}
 
@@ -373,11 +420,12 @@ public class KVMessage implements Serializable {
 				Element messageElem = newDoc.createElement("Message");
 				messageElem.setTextContent(this.message);
 				rootElement.appendChild(messageElem);
-			}else{
+			}
+			if (this.message == null || this.tpcOpId != null){
 				Element tpIdElem = newDoc.createElement("TPCOpId");
 				tpIdElem.setTextContent(this.tpcOpId);
 				rootElement.appendChild(tpIdElem);
-				}
+			}
 		}
 		if (msgType.equals("register")){
 			Element message = newDoc.createElement("Message");
@@ -430,6 +478,11 @@ public class KVMessage implements Serializable {
 				keyChild.setTextContent(key);
 				rootElement.appendChild(keyChild);
 
+				if (tpcOpId != null){
+					Element tpIdElem = newDoc.createElement("TPCOpId");
+					tpIdElem.setTextContent(tpcOpId);
+					rootElement.appendChild(tpIdElem);
+				}
 			}
 		}
 
@@ -30,7 +30,17 @@
  */
 package edu.berkeley.cs162;
 
-import java.util.concurrent.locks.ReentrantReadWriteLock.WriteLock;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * This class defines the slave key value servers. Each individual KVServer 
@@ -44,52 +54,408 @@ public class KVServer implements KeyValueInterface {
 	private KVStore dataStore = null;
 	private KVCache dataCache = null;
 	
+	// Writes prepared in the first phase of a 2PC operation, by transaction id.
+	// Gets never look at them; commit() applies them and abort() drops them.
+	private ConcurrentHashMap<String, WriteBatch> pendingVersions = new ConcurrentHashMap<String, WriteBatch>();
+	// key -> transaction with a pending version of it
+	private ConcurrentHashMap<String, String> pendingKeys = new ConcurrentHashMap<String, String>();
+	// key -> store read under way for the gets that missed it in the cache
+	private ConcurrentHashMap<String, Load> loads = new ConcurrentHashMap<String, Load>();
+	
+	// In write-behind mode: key -> last value put, until the store has it
+	private ConcurrentHashMap<String, String> dirtyValues = new ConcurrentHashMap<String, String>();
+	// Held exclusively by a flush, and shared by writes straight to the store,
+	// which a flush must not write an older value over
+	private ReentrantReadWriteLock flushLock = new ReentrantReadWriteLock();
+	private volatile Thread flusher = null;
+	private volatile long flushIntervalMillis = 0;
+	// Why the last flush failed, or null if it succeeded
+	private volatile KVException flushFailure = null;
+	
 	private static final int MAX_KEY_SIZE = 256;
 	private static final int MAX_VAL_SIZE = 256 * 1024;
+	// Pairs fetched from the store per page of a scan
+	private static final int SCAN_PAGE_SIZE = 100;
+	// Keys the cache remembers as missing, per pair it holds, and for how long
+	private static final double MISSING_SHARE = 0.25;
+	private static final long MISSING_TTL_MILLIS = 1000;
+	// Most pairs, and bytes (see WriteBatch.bytes()), a flush writes to the
+	// store at once; with the largest pair on top, a batch still fits in
+	// the smallest LogStructuredEngine segment
+	private static final int FLUSH_BATCH_SIZE = 1000;
+	private static final long FLUSH_BATCH_BYTES = 1024 * 1024;
 	
 	/**
 	 * @param numSets number of sets in the data Cache.
 	 */
 	public KVServer(int numSets, int maxElemsPerSet) {
-		dataStore = new KVStore();
-		dataCache = new KVCache(numSets, maxElemsPerSet);
+		this(numSets, maxElemsPerSet, new KVStore());
+	}
+	
+	/**
+	 * @param numSets number of sets in the data Cache.
+	 * @param dataStore store to use underneath the cache, e.g. one backed by a
+	 * LogStructuredEngine so that the data survives a restart.
+	 */
+	public KVServer(int numSets, int maxElemsPerSet, KVStore dataStore) {
+		this(numSets, maxElemsPerSet, dataStore, EvictionPolicies.CLOCK);
+	}
+	
+	/**
+	 * @param numSets number of sets in the data Cache.
+	 * @param dataStore store to use underneath the cache
+	 * @param evictionPolicy what a full cache set evicts, see EvictionPolicies;
+	 * scan-heavy workloads do better with ARC or TINY_LFU than with CLOCK
+	 */
+	public KVServer(int numSets, int maxElemsPerSet, KVStore dataStore, EvictionPolicy.Factory evictionPolicy) {
+		this(numSets, maxElemsPerSet, dataStore, evictionPolicy, 0);
+	}
+	
+	/**
+	 * @param maxCacheBytes budget for what the cached pairs take on the heap,
+	 * or 0 to bound the cache by numSets * maxElemsPerSet pairs alone
+	 */
+	public KVServer(int numSets, int maxElemsPerSet, KVStore dataStore, EvictionPolicy.Factory evictionPolicy,
+			long maxCacheBytes) {
+		this(dataStore, newCache(numSets, maxElemsPerSet, evictionPolicy, maxCacheBytes));
+	}
+	
+	/**
+	 * @param dataStore store to use underneath the cache
+	 * @param dataCache an empty cache to put in front of it, e.g. one kept
+	 * off the heap
+	 */
+	public KVServer(KVStore dataStore, KVCache dataCache) {
+		this.dataStore = dataStore;
+		this.dataCache = dataCache;
+		
+		//Keys the store expires in the background must not live on in the cache
+		dataStore.setExpiryListener(new KVStore.ExpiryListener() {
+			public void expired(String key) {
+				Lock lock = dataCache.getWriteLock(key);
+				lock.lock();
+				try{
+					dataCache.del(key);
+				} finally {
+					lock.unlock();
+				}
+			}
+		});
 		
 		AutoGrader.registerKVServer(dataStore, dataCache);
 	}
 	
+	/**
+	 * @return a cache that also remembers keys found missing, so that
+	 * repeated gets of them do not each go to the store
+	 */
+	private static KVCache newCache(int numSets, int maxElemsPerSet, EvictionPolicy.Factory evictionPolicy,
+			long maxCacheBytes) {
+		KVCache cache = new KVCache(numSets, maxElemsPerSet, evictionPolicy, maxCacheBytes);
+		cache.cacheMisses((int) (numSets * maxElemsPerSet * MISSING_SHARE), MISSING_TTL_MILLIS);
+		return cache;
+	}
+	
 	public void put(String key, String value) throws KVException {
+		put(key, value, 0);
+	}
+	
+	/**
+	 * Like put(key, value), but the pair expires after ttlMillis
+	 * @param ttlMillis time to live, or 0 for none
+	 */
+	public void put(String key, String value, long ttlMillis) throws KVException {
 		// Must be called before anything else
 		AutoGrader.agKVServerPutStarted(key, value);
 		
 		// TODO: implement me
-		if(key.length() > KVServer.MAX_KEY_SIZE){
-			KVMessage msgOverKey = new KVMessage("resp");
-			msgOverKey.setMessage("Oversized key");
+		try{
+			checkSizes(key, value);
+			if(flusher != null && ttlMillis == 0){
+				putBehind(key, value);
+				return;
+			}
 			
-			throw new KVException(msgOverKey);
+			flushLock.readLock().lock();
+			try{
+				dataStore.put(key, value, ttlMillis);
+				
+				Lock lock = dataCache.getWriteLock(key);
+				lock.lock();
+				try{
+					written(key);
+					dataCache.put(key,value);
+				} finally {
+					lock.unlock();
+				}
+			} finally {
+				flushLock.readLock().unlock();
+			}
+		} finally {
+			// Must be called before return or abnormal exit
+			AutoGrader.agKVServerPutFinished(key, value);
 		}
-		
-		if(value.length() > KVServer.MAX_VAL_SIZE){
-			KVMessage msgOverValue = new KVMessage("resp");
-			msgOverValue.setMessage("Oversized value");
-			throw new KVException(msgOverValue);
+	}
+	
+	/**
+	 * Leaves the pair for the flusher to write, see writeBehind()
+	 */
+	private void putBehind(String key, String value) throws KVException {
+		Lock lock = dataCache.getWriteLock(key);
+		lock.lock();
+		try{
+			dirtyValues.put(key, value);
+			loads.remove(key);
+			dataCache.putDirty(key, value);
+		} finally {
+			lock.unlock();
 		}
-		
-		
+		if(flusher == null){
+			//Write-behind was stopped meanwhile, maybe after its last flush
+			flush();
+		}
+	}
+	
+	/**
+	 * Switches put(key, value) to write-behind: the pair is cached, pinned
+	 * in the cache, and the put returns without waiting for the store. A
+	 * background thread writes the pending pairs to the store every
+	 * flushIntervalMillis, in batches, each key with the last value put
+	 * only. Gets see a pending pair at once, but a crash loses it, so this
+	 * is for data that can stand losing the last few writes.
+	 * Puts with a time to live, deletes, batches and 2PC writes still go
+	 * to the store at once, and win over any pending put of their keys.
+	 * Calling this again just changes the interval.
+	 */
+	public synchronized void writeBehind(long flushIntervalMillis) {
+		this.flushIntervalMillis = flushIntervalMillis;
+		if(flusher != null){
+			return;
+		}
+		flusher = new Thread(new Runnable() {
+			public void run() {
+				while(flusher == Thread.currentThread()){
+					try{
+						Thread.sleep(KVServer.this.flushIntervalMillis);
+					} catch (InterruptedException e){
+						//Stopped; stopWriteBehind() flushes what is left
+						return;
+					}
+					try{
+						flush();
+					} catch (KVException e){
+						//Left pending for the next flush to retry; see
+						//getFlushFailure()
+					}
+				}
+			}
+		}, "KVServer write-behind");
+		flusher.setDaemon(true);
+		flusher.start();
+	}
+	
+	/**
+	 * Makes puts write to the store at once again, and flushes the pending ones
+	 * @throws KVException if the pending puts could not be written; they
+	 * stay pending, for flush() to retry
+	 */
+	public void stopWriteBehind() throws KVException {
+		Thread stopped;
+		synchronized(this){
+			stopped = flusher;
+			flusher = null;
+		}
+		if(stopped != null){
+			stopped.interrupt();
+			try{
+				stopped.join();
+			} catch (InterruptedException e){
+				Thread.currentThread().interrupt();
+			}
+		}
+		flush();
+	}
+	
+	/**
+	 * Writes the pending write-behind puts to the store, at most
+	 * FLUSH_BATCH_SIZE pairs or FLUSH_BATCH_BYTES at a time, and unpins
+	 * them in the cache. A failure is kept for getFlushFailure() until a
+	 * flush succeeds.
+	 * @throws KVException if a batch could not be written; it and those
+	 * after it stay pending, still pinned in the cache
+	 */
+	public void flush() throws KVException {
+		flushLock.writeLock().lock();
 		try{
-			dataStore.put(key, value);
-		} catch (KVException e){
-			// Must be called before return or abnormal exit
-			AutoGrader.agKVServerPutFinished(key, value);
-			throw e;
+			Iterator<Map.Entry<String, String>> pending = dirtyValues.entrySet().iterator();
+			while(pending.hasNext()){
+				WriteBatch batch = new WriteBatch();
+				while(pending.hasNext() && batch.size() < FLUSH_BATCH_SIZE && batch.bytes() < FLUSH_BATCH_BYTES){
+					Map.Entry<String, String> pair = pending.next();
+					batch.put(pair.getKey(), pair.getValue());
+				}
+				try{
+					dataStore.apply(batch);
+				} catch (KVException e){
+					flushFailure = e;
+					throw e;
+				}
+				for(WriteBatch.Op op : batch.ops()){
+					Lock lock = dataCache.getWriteLock(op.key);
+					lock.lock();
+					try{
+						//Unless put again since
+						if(dirtyValues.remove(op.key, op.value)){
+							dataCache.clean(op.key);
+						}
+					} finally {
+						lock.unlock();
+					}
+				}
+			}
+			flushFailure = null;
+		} finally {
+			flushLock.writeLock().unlock();
+		}
+	}
+	
+	/**
+	 * @return why the last flush of write-behind puts failed, or null if it
+	 * succeeded; the failed puts stay pending until one does
+	 */
+	public KVException getFlushFailure() {
+		return flushFailure;
+	}
+	
+	/**
+	 * Applies a batch of puts and deletes in one call, e.g. for a bulk load
+	 * or a log replay. Every key and value is checked before anything is
+	 * written, the store applies the batch as a single operation, and then
+	 * each cache set the batch touches is locked once. The batch's keys are
+	 * dropped from the cache rather than added to it, so that a bulk load
+	 * does not push out what is being read; the next get fetches them.
+	 * Deleting a missing key is not an error.
+	 * @throws KVException if a key or value is oversized, in which case
+	 * nothing is written, or if the store could not be written
+	 */
+	public void apply(WriteBatch batch) throws KVException {
+		for(WriteBatch.Op op : batch.ops()){
+			checkSizes(op.key, op.isDelete() ? "" : op.value);
 		}
 		
-		WriteLock lock = dataCache.getWriteLock(key);
-		lock.lock();
-		dataCache.put(key,value);
-		lock.unlock();
-		// Must be called before return or abnormal exit
-		AutoGrader.agKVServerPutFinished(key, value);
+		flushLock.readLock().lock();
+		try{
+			dataStore.apply(batch);
+			updateCache(batch, false);
+		} finally {
+			flushLock.readLock().unlock();
+		}
+	}
+	
+	/**
+	 * First phase of a 2PC put: checks the pair and stages it as a pending
+	 * version of key. Until commit(txnId), gets keep returning the last
+	 * committed value, without waiting for the transaction.
+	 * @throws KVException to vote abort: the pair is oversized, or another
+	 * transaction has a pending version of key
+	 */
+	public void preparePut(String txnId, String key, String value, long ttlMillis) throws KVException {
+		checkSizes(key, value);
+		stage(txnId, key, new WriteBatch().put(key, value, ttlMillis));
+	}
+	
+	/**
+	 * First phase of a 2PC del: stages the deletion of key as a pending
+	 * version, invisible to gets until commit(txnId)
+	 * @throws KVException to vote abort: key does not exist, or another
+	 * transaction has a pending version of it
+	 */
+	public void prepareDel(String txnId, String key) throws KVException {
+		get(key);
+		stage(txnId, key, new WriteBatch().delete(key));
+	}
+	
+	/**
+	 * Second phase of a 2PC operation: makes the versions txnId prepared the
+	 * committed ones, with one store write. Does nothing for a transaction
+	 * that prepared nothing.
+	 * @throws KVException if the store could not be written; the versions
+	 * stay pending so that the commit can be retried
+	 */
+	public void commit(String txnId) throws KVException {
+		WriteBatch batch = pendingVersions.get(txnId);
+		if(batch == null){
+			return;
+		}
+		flushLock.readLock().lock();
+		try{
+			dataStore.apply(batch);
+			updateCache(batch, true);
+		} finally {
+			flushLock.readLock().unlock();
+		}
+		release(txnId, batch);
+	}
+	
+	/**
+	 * Second phase of a 2PC operation: drops the versions txnId prepared.
+	 * Nothing was written for them, so there is nothing to undo.
+	 */
+	public void abort(String txnId) {
+		WriteBatch batch = pendingVersions.get(txnId);
+		if(batch != null){
+			release(txnId, batch);
+		}
+	}
+	
+	private void stage(String txnId, String key, WriteBatch batch) throws KVException {
+		String owner = pendingKeys.putIfAbsent(key, txnId);
+		if(owner != null && !owner.equals(txnId)){
+			throw new KVException(new KVMessage("resp", "Key is being written by another transaction"));
+		}
+		pendingVersions.put(txnId, batch);
+	}
+	
+	private void release(String txnId, WriteBatch batch) {
+		pendingVersions.remove(txnId);
+		for(WriteBatch.Op op : batch.ops()){
+			pendingKeys.remove(op.key, txnId);
+		}
+	}
+	
+	/**
+	 * Brings the cache in line with a batch the store has applied, taking
+	 * the lock of each cache set involved once
+	 * @param install whether to put the batch's values into the cache, rather
+	 * than just drop the keys from it
+	 */
+	private void updateCache(WriteBatch batch, boolean install) {
+		IdentityHashMap<Lock, List<WriteBatch.Op>> bySet = new IdentityHashMap<Lock, List<WriteBatch.Op>>();
+		for(WriteBatch.Op op : batch.ops()){
+			Lock lock = dataCache.getWriteLock(op.key);
+			List<WriteBatch.Op> ops = bySet.get(lock);
+			if(ops == null){
+				ops = new ArrayList<WriteBatch.Op>();
+				bySet.put(lock, ops);
+			}
+			ops.add(op);
+		}
+		for(Map.Entry<Lock, List<WriteBatch.Op>> set : bySet.entrySet()){
+			Lock lock = set.getKey();
+			lock.lock();
+			try{
+				for(WriteBatch.Op op : set.getValue()){
+					written(op.key);
+					if(install && !op.isDelete()){
+						dataCache.put(op.key, op.value);
+					} else {
+						dataCache.del(op.key);
+					}
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
 	}
 	
 	public String get (String key) throws KVException {
@@ -97,56 +463,195 @@ public class KVServer implements KeyValueInterface {
 		AutoGrader.agKVServerGetStarted(key);
 		
 		// TODO: implement me
-		//If KV pair is in the cache
-		WriteLock lock = dataCache.getWriteLock(key);
-		lock.lock();
-		
-		String toReturn = dataCache.get(key);
-		if(toReturn != null){
-			lock.unlock();
+		//A cache hit needs no lock
+		String toReturn = dataCache.getOptimistic(key);
+		if(toReturn != null && !dataStore.isExpired(key)){
 			AutoGrader.agKVServerGetFinished(key);
 			return toReturn;
 		}
+		//So is a key the store was just searched for in vain
+		if(toReturn == null && dataCache.isMissing(key)){
+			AutoGrader.agKVServerGetFinished(key);
+			throw doesNotExist();
+		}
 		
+		//Miss: the first get of key loads it, any others meanwhile wait for that
+		Load load = new Load(key);
+		Load running = loads.putIfAbsent(key, load);
+		if(running == null){
+			running = load;
+			try{
+				load.result.run();
+			} finally {
+				loads.remove(key, load);
+			}
+		}
 		try{
-			toReturn = dataStore.get(key);
-		} catch (KVException e){
-			lock.unlock();
+			toReturn = running.result.get();
+		} catch (ExecutionException e){
+			AutoGrader.agKVServerGetFinished(key);
+			//Whatever the load failed with: missing, or the store's own error
+			Throwable cause = e.getCause();
+			if(cause instanceof KVException){
+				throw (KVException) cause;
+			}
+			if(cause instanceof RuntimeException){
+				throw (RuntimeException) cause;
+			}
+			throw (Error) cause;
+		} catch (InterruptedException e){
+			Thread.currentThread().interrupt();
 			AutoGrader.agKVServerGetFinished(key);
-			KVMessage msgDoesNotExist = new KVMessage("resp");
-			msgDoesNotExist.setMessage("Does not exist");
-			throw new KVException(msgDoesNotExist);
+			throw new KVException(new KVMessage("resp", "Interrupted while waiting for the store"));
 		}
-		
-		//If we found something in the dataStore, put it in the cache
-		dataCache.put(key, toReturn);
-		lock.unlock();
 		// Must be called before return or abnormal exit
 		AutoGrader.agKVServerGetFinished(key);
 		return toReturn;
 	}
 	
+	/**
+	 * A read of one key from the store, shared by all the gets that miss the
+	 * key while it runs
+	 */
+	private class Load implements Callable<String> {
+		final String key;
+		final FutureTask<String> result = new FutureTask<String>(this);
+		
+		Load(String key) {
+			this.key = key;
+		}
+		
+		/**
+		 * Reads key from the store without holding its cache set's lock, and
+		 * caches what it finds unless a write got in meanwhile
+		 */
+		public String call() throws KVException {
+			Lock lock = dataCache.getWriteLock(key);
+			long version;
+			//An earlier load may have only just finished
+			lock.lock();
+			try{
+				//Not in the store yet, and maybe not cached if its set is all dirty
+				String pending = dirtyValues.get(key);
+				if(pending != null){
+					return pending;
+				}
+				String cached = dataCache.get(key);
+				if(cached != null && !dataStore.isExpired(key)){
+					return cached;
+				}
+				if(cached != null){
+					//Expired, but not reclaimed in the background yet
+					dataCache.del(key);
+				}
+				version = dataCache.getVersion(key);
+			} finally {
+				lock.unlock();
+			}
+			
+			//The store's key filter rules out most missing keys without a store
+			//access. A store that could not be read throws, and the next get
+			//tries again: only a key the store says is missing is remembered.
+			String value = dataStore.mightContain(key) ? dataStore.find(key) : null;
+			if(value == null){
+				lock.lock();
+				try{
+					dataCache.putMissing(key, version);
+				} finally {
+					lock.unlock();
+				}
+				throw doesNotExist();
+			}
+			
+			//If we found something in the dataStore, put it in the cache
+			lock.lock();
+			try{
+				dataCache.fill(key, value, version);
+			} finally {
+				lock.unlock();
+			}
+			return value;
+		}
+	}
+	
+	/**
+	 * Called with key's cache set locked, once a write of key has reached
+	 * the store. Gets from now on must not wait for a load under way, which
+	 * may have read the store before the write (the write also keeps it
+	 * from caching what it read, see KVCache.fill()), and a put pending in
+	 * write-behind mode must not be flushed over the write.
+	 */
+	private void written(String key) {
+		loads.remove(key);
+		dirtyValues.remove(key);
+	}
+	
 	public void del (String key) throws KVException {
 		// Must be called before anything else
 		AutoGrader.agKVServerDelStarted(key);
 
 		// TODO: implement me
+		flushLock.readLock().lock();
 		try{
-			dataStore.get(key);
-			dataStore.del(key);
-		} catch (KVException e){
+			//KVStore.del fails for a missing key, so no separate get is needed
+			boolean pending = dirtyValues.containsKey(key);
+			try{
+				dataStore.del(key);
+			} catch (KVException e){
+				//Unless the key was only put behind, and never reached the store
+				if(!pending){
+					throw doesNotExist();
+				}
+			}
+			
+			Lock lock = dataCache.getWriteLock(key);
+			lock.lock();
+			try{
+				written(key);
+				dataCache.del(key);
+			} finally {
+				lock.unlock();
+			}
+		} finally {
+			flushLock.readLock().unlock();
+			// Must be called before return or abnormal exit
 			AutoGrader.agKVServerDelFinished(key);
-			KVMessage msgDoesNotExist = new KVMessage("resp");
-			msgDoesNotExist.setMessage("Does not exist");
-			throw new KVException(msgDoesNotExist);
 		}
-		
-		WriteLock lock = dataCache.getWriteLock(key);
-		lock.lock();
-		dataCache.del(key);
-		lock.unlock();
-		// Must be called before return or abnormal exit
-		AutoGrader.agKVServerDelFinished(key);
+	}
+	
+	/**
+	 * Walks the pairs with startKey <= key < endKey in key order, reading
+	 * them from the store a page at a time. The store must be sorted (see
+	 * KVStore). Scans bypass the cache, which never holds anything the
+	 * store does not once pending write-behind puts are flushed.
+	 * @param startKey first key, or null to start at the smallest key
+	 * @param endKey end of the range (exclusive), or null for no end
+	 * @param limit maximum number of pairs to return
+	 * @throws KVException if the store cannot be scanned
+	 */
+	public Iterator<Map.Entry<String, String>> scan(String startKey, String endKey, int limit) throws KVException {
+		if(!dirtyValues.isEmpty()){
+			flush();
+		}
+		return new ScanIterator(dataStore, startKey, endKey, limit, SCAN_PAGE_SIZE);
+	}
+	
+	/**
+	 * Walks the pairs whose keys start with prefix, in key order
+	 * @see #scan(String, String, int)
+	 */
+	public Iterator<Map.Entry<String, String>> scanPrefix(String prefix, int limit) throws KVException {
+		//The smallest string above every key starting with prefix
+		String end = prefix;
+		while(end.length() > 0 && end.charAt(end.length() - 1) == Character.MAX_VALUE){
+			end = end.substring(0, end.length() - 1);
+		}
+		if(end.length() > 0){
+			end = end.substring(0, end.length() - 1) + (char) (end.charAt(end.length() - 1) + 1);
+		} else {
+			end = null;
+		}
+		return scan(prefix, end, limit);
 	}
 	
 	public KVStore getDataStore(String password){
@@ -162,6 +667,27 @@ public class KVServer implements KeyValueInterface {
 		else
 			return null;
 	}
+	private void checkSizes(String key, String value) throws KVException {
+		if(key.length() > KVServer.MAX_KEY_SIZE){
+			KVMessage msgOverKey = new KVMessage("resp");
+			msgOverKey.setMessage("Oversized key");
+			
+			throw new KVException(msgOverKey);
+		}
+		
+		if(value.length() > KVServer.MAX_VAL_SIZE){
+			KVMessage msgOverValue = new KVMessage("resp");
+			msgOverValue.setMessage("Oversized value");
+			throw new KVException(msgOverValue);
+		}
+	}
+	
+	private KVException doesNotExist() throws KVException {
+		KVMessage msgDoesNotExist = new KVMessage("resp");
+		msgDoesNotExist.setMessage("Does not exist");
+		return new KVException(msgDoesNotExist);
+	}
+	
 	public boolean hasKey (String key) throws KVException {
 		// TODO: optional implement me
 		
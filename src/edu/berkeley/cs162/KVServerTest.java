@@ -0,0 +1,306 @@
+package edu.berkeley.cs162;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class KVServerTest {
+	StorageEngine engine = null;
+	KVServer server = null;
+
+	@Before
+	public void setUp() throws KVException {
+		// Straight into the engine to skip the simulated store delay
+		engine = new MemoryEngine();
+		engine.put("seven", "7");
+		engine.put("eight", "8");
+		server = new KVServer(10, 10, new KVStore(engine));
+	}
+
+	@Test
+	public void stagesTwoPhaseWrites() throws KVException {
+		server.preparePut("t1", "seven", "VII", 0);
+		server.prepareDel("t2", "eight");
+		// Readers keep seeing the committed versions
+		assertEquals("7", server.get("seven"));
+		assertEquals("8", server.get("eight"));
+
+		server.commit("t1");
+		server.abort("t2");
+		assertEquals("VII", server.get("seven"));
+		assertEquals("8", server.get("eight"));
+
+		server.prepareDel("t3", "eight");
+		server.commit("t3");
+		try {
+			server.get("eight");
+			fail("committed del");
+		} catch (KVException e) {
+		}
+	}
+
+	@Test
+	public void refusesConflictingPrepares() throws KVException {
+		server.preparePut("t1", "seven", "VII", 0);
+		try {
+			server.preparePut("t2", "seven", "SEVEN", 0);
+			fail("seven already has a pending version");
+		} catch (KVException e) {
+		}
+		server.abort("t1");
+		server.preparePut("t2", "seven", "SEVEN", 0);
+		server.commit("t2");
+		assertEquals("SEVEN", server.get("seven"));
+
+		try {
+			server.prepareDel("t3", "nine");
+			fail("nine does not exist");
+		} catch (KVException e) {
+		}
+	}
+
+	@Test
+	public void remembersMissingKeys() throws KVException {
+		server.put("nine", "9");
+		server.del("nine");
+		try {
+			server.get("nine");
+			fail("deleted");
+		} catch (KVException e) {
+		}
+		// Behind the server's back: the miss is still remembered
+		engine.put("nine", "IX");
+		try {
+			server.get("nine");
+			fail("store searched again");
+		} catch (KVException e) {
+		}
+		server.put("nine", "9");
+		assertEquals("9", server.get("nine"));
+	}
+
+	@Test
+	public void coalescesConcurrentMisses() throws Exception {
+		final AtomicInteger reads = new AtomicInteger();
+		engine = new MemoryEngine() {
+			public String get(String key) {
+				reads.incrementAndGet();
+				try {
+					Thread.sleep(100);
+				} catch (InterruptedException e) {
+				}
+				return super.get(key);
+			}
+		};
+		engine.put("seven", "7");
+		server = new KVServer(10, 10, new KVStore(engine));
+
+		final CountDownLatch start = new CountDownLatch(1);
+		final AtomicInteger bad = new AtomicInteger();
+		Thread[] readers = new Thread[8];
+		for (int i = 0; i < readers.length; i++) {
+			readers[i] = new Thread() {
+				public void run() {
+					try {
+						start.await();
+						if (!"7".equals(server.get("seven"))) {
+							bad.incrementAndGet();
+						}
+					} catch (Exception e) {
+						bad.incrementAndGet();
+					}
+				}
+			};
+			readers[i].start();
+		}
+		start.countDown();
+		for (Thread reader : readers) {
+			reader.join();
+		}
+		assertEquals(0, bad.get());
+		assertEquals(1, reads.get());
+	}
+
+	@Test
+	public void loadsDoNotUndoRacingWrites() throws Exception {
+		final CountDownLatch read = new CountDownLatch(1);
+		final CountDownLatch written = new CountDownLatch(1);
+		engine = new MemoryEngine() {
+			public String get(String key) {
+				String value = super.get(key);
+				read.countDown();
+				try {
+					written.await();
+				} catch (InterruptedException e) {
+				}
+				return value;
+			}
+		};
+		engine.put("seven", "7");
+		server = new KVServer(10, 10, new KVStore(engine));
+
+		final String[] loaded = new String[1];
+		Thread reader = new Thread() {
+			public void run() {
+				try {
+					loaded[0] = server.get("seven");
+				} catch (KVException e) {
+				}
+			}
+		};
+		reader.start();
+		read.await();
+		// The read holds no lock, so the write goes ahead
+		server.put("seven", "VII");
+		written.countDown();
+		reader.join();
+		assertEquals("7", loaded[0]);
+		assertEquals("VII", server.get("seven"));
+	}
+
+	@Test
+	public void writesBehind() throws KVException {
+		server.writeBehind(60000);
+		long start = System.currentTimeMillis();
+		server.put("nine", "9");
+		server.put("nine", "IX");
+		server.put("ten", "10");
+		// Not waiting for the store, which takes a second a write
+		assertTrue(System.currentTimeMillis() - start < 500);
+		assertEquals("IX", server.get("nine"));
+		assertNull(engine.get("nine"));
+
+		server.del("ten");
+		try {
+			server.get("ten");
+			fail("deleted");
+		} catch (KVException e) {
+		}
+
+		server.flush();
+		assertEquals("IX", engine.get("nine"));
+		assertNull(engine.get("ten"));
+
+		server.put("seven", "VII");
+		server.stopWriteBehind();
+		assertEquals("VII", engine.get("seven"));
+	}
+
+	@Test
+	public void readsPendingPairsThatAreNotCached() throws KVException {
+		// One set of two slots, which the first two puts pin
+		server = new KVServer(1, 2, new KVStore(engine));
+		server.writeBehind(60000);
+		server.put("a", "1");
+		server.put("b", "2");
+		server.put("c", "3");
+		assertEquals("3", server.get("c"));
+		server.stopWriteBehind();
+		assertEquals("1", engine.get("a"));
+		assertEquals("3", engine.get("c"));
+	}
+
+	@Test
+	public void flushesMoreThanASegmentBehind() throws KVException {
+		File dir = new File("KVServerTest.data");
+		deleteDir(dir);
+		StringBuilder big = new StringBuilder();
+		for (int i = 0; i < 200000; i++) {
+			big.append((char) ('a' + i % 26));
+		}
+		// 3MB of values against segments of 2MB, the smallest there are
+		LogStructuredEngine engine = new LogStructuredEngine(dir.getPath(), 1);
+		try {
+			server = new KVServer(10, 10, new KVStore(engine));
+			server.writeBehind(60000);
+			for (int i = 0; i < 15; i++) {
+				server.put("key" + i, big.toString());
+			}
+			server.flush();
+			assertEquals(15, engine.size());
+			assertNull(server.getFlushFailure());
+		} finally {
+			engine.close();
+			deleteDir(dir);
+		}
+	}
+
+	@Test
+	public void passesStoreErrorsThroughWithoutCachingThem() throws KVException {
+		final boolean[] broken = { false };
+		File dir = new File("KVServerTest.data");
+		deleteDir(dir);
+		LogStructuredEngine engine = new LogStructuredEngine(dir.getPath(), 1) {
+			public String get(String key) throws KVException {
+				if (broken[0]) {
+					throw new KVException(new KVMessage("resp", "IO Error: Bad checksum"));
+				}
+				return super.get(key);
+			}
+		};
+		try {
+			engine.put("seven", "7");
+			server = new KVServer(10, 10, new KVStore(engine));
+			broken[0] = true;
+			try {
+				server.get("seven");
+				fail("store is broken");
+			} catch (KVException e) {
+				assertEquals("IO Error: Bad checksum", e.getMsg().getMessage());
+			}
+
+			// Not remembered as missing: the next get goes back to the store
+			broken[0] = false;
+			assertEquals("7", server.get("seven"));
+		} finally {
+			engine.close();
+			deleteDir(dir);
+		}
+	}
+
+	@Test
+	public void reportsFailedFlushes() throws KVException {
+		final boolean[] broken = { true };
+		engine = new MemoryEngine() {
+			public boolean[] apply(WriteBatch batch) throws KVException {
+				if (broken[0]) {
+					throw new KVException(new KVMessage("resp", "Disk full"));
+				}
+				return super.apply(batch);
+			}
+		};
+		server = new KVServer(10, 10, new KVStore(engine));
+		server.writeBehind(60000);
+		server.put("nine", "9");
+		for (int i = 0; i < 3; i++) {
+			try {
+				server.flush();
+				fail("store is broken");
+			} catch (KVException e) {
+			}
+		}
+		assertEquals("Disk full", server.getFlushFailure().getMsg().getMessage());
+		// Still pending, and still readable
+		assertEquals("9", server.get("nine"));
+
+		broken[0] = false;
+		server.flush();
+		assertNull(server.getFlushFailure());
+		assertEquals("9", engine.get("nine"));
+	}
+
+	private static void deleteDir(File dir) {
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		dir.delete();
+	}
+}
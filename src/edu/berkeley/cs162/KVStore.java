@@ -1,6 +1,6 @@
 /**
- * Persistent Key-Value storage layer. Current implementation is transient, 
- * but assume to be backed on disk when you do your project.
+ * Persistent Key-Value storage layer. Whether it is transient or backed
+ * on disk depends on the StorageEngine it is given.
  * 
  * @author Mosharaf Chowdhury (http://www.mosharaf.com)
  * @author Prashanth Mohan (http://www.cs.berkeley.edu/~prmohan)
@@ -30,49 +30,164 @@
  *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
  */
 package edu.berkeley.cs162;
-import java.util.Dictionary;
-import java.util.Hashtable;
 
+import java.io.StringWriter;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
 
 /**
- * This is a dummy KeyValue Store. Ideally this would go to disk, 
- * or some other backing store. For this project, we simulate the disk like 
- * system using a manual delay.
+ * KeyValue Store in front of a StorageEngine: a transient MemoryEngine by
+ * default, or a LogStructuredEngine to actually keep the pairs on disk.
+ * For this project, we additionally simulate the cost of the backing store
+ * using a manual delay.
+ *
+ * A counting bloom filter of the keys in the engine lets gets and dels of
+ * keys that definitely do not exist fail without touching the engine or
+ * paying the delay. For the filter to stay correct, all writes have to go
+ * through the KVStore rather than straight to its engine.
+ *
+ * In sorted mode the store also keeps its keys in a skip list, so that
+ * scan() can walk a range of keys in order.
+ *
+ * A put can give its key a time to live. Once that has passed the key
+ * reads as missing, and a background thread, driven by a TimingWheel,
+ * removes expired keys from the engine in bulk and tells the
+ * ExpiryListener. TTLs are only kept in memory: they do not survive a
+ * restart or a restoreFromFile.
  *
  */
 public class KVStore implements KeyValueInterface {
-	private Dictionary<String, String> store 	= null;
+	public static final int DEFAULT_EXPECTED_KEYS = 1 << 20;
+	private static final int FILTER_COUNTERS_PER_KEY = 10;
+	private static final int WRITE_LOCK_STRIPES = 64;
+	private static final long EXPIRY_TICK_MILLIS = 100;
+	
+	/**
+	 * Told about every key the store expires in the background
+	 */
+	public interface ExpiryListener {
+		public void expired(String key);
+	}
+	
+	private StorageEngine engine = null;
+	private CountingBloomFilter keyFilter = null;
+	// Only kept in sorted mode
+	private ConcurrentSkipListSet<String> sortedKeys = null;
+	// A put or del updates the engine and keyFilter under the stripe of its key
+	private Object[] writeLocks = null;
+	
+	// key -> when it expires, for keys put with a TTL
+	private ConcurrentHashMap<String, Long> deadlines = new ConcurrentHashMap<String, Long>();
+	// Guarded by its own monitor. The reaper is started by the first TTL.
+	private TimingWheel expiryWheel = new TimingWheel(EXPIRY_TICK_MILLIS, System.currentTimeMillis());
+	private Thread reaper = null;
+	private volatile ExpiryListener expiryListener = null;
 	
 	public KVStore() {
-		resetStore();
+		this(new MemoryEngine());
 	}
 
-	private void resetStore() {
-		store = new Hashtable<String, String>();
+	/**
+	 * @param engine where the key-value pairs are kept
+	 */
+	public KVStore(StorageEngine engine) {
+		this(engine, DEFAULT_EXPECTED_KEYS);
 	}
-	
+
+	/**
+	 * @param engine where the key-value pairs are kept
+	 * @param expectedKeys number of keys the store is sized for; beyond it
+	 * the key filter gradually stops ruling keys out
+	 */
+	public KVStore(StorageEngine engine, int expectedKeys) {
+		this(engine, expectedKeys, false);
+	}
+
+	/**
+	 * @param engine where the key-value pairs are kept
+	 * @param expectedKeys number of keys the store is sized for; beyond it
+	 * the key filter gradually stops ruling keys out
+	 * @param sorted whether to keep a sorted index of the keys for scan()
+	 */
+	public KVStore(StorageEngine engine, int expectedKeys, boolean sorted) {
+		this.engine = engine;
+		if (sorted) {
+			sortedKeys = new ConcurrentSkipListSet<String>();
+		}
+		keyFilter = new CountingBloomFilter(expectedKeys, FILTER_COUNTERS_PER_KEY);
+		writeLocks = new Object[WRITE_LOCK_STRIPES];
+		for (int i = 0; i < WRITE_LOCK_STRIPES; i++) {
+			writeLocks[i] = new Object();
+		}
+		loadKeys();
+	}
+
+	public StorageEngine getEngine() {
+		return engine;
+	}
+
 	public void put(String key, String value) throws KVException {
+		put(key, value, 0);
+	}
+	
+	/**
+	 * Like put(key, value), but the pair expires after ttlMillis
+	 * @param ttlMillis time to live, or 0 for none. A put without a TTL
+	 * clears any TTL the key had.
+	 */
+	public void put(String key, String value, long ttlMillis) throws KVException {
 		AutoGrader.agStorePutStarted(key, value);
 		
 		try {
 			putDelay();
-			store.put(key, value);
+			synchronized (writeLock(key)) {
+				if (engine.put(key, value)) {
+					keyFilter.add(key);
+					if (sortedKeys != null) {
+						sortedKeys.add(key);
+					}
+				}
+				if (ttlMillis > 0) {
+					long deadline = System.currentTimeMillis() + ttlMillis;
+					deadlines.put(key, deadline);
+					scheduleExpiry(key, deadline);
+				} else {
+					deadlines.remove(key);
+				}
+			}
 		} finally {
 			AutoGrader.agStorePutFinished(key, value);
 		}
 	}
 	
 	public String get(String key) throws KVException {
+		String retVal = find(key);
+		if (retVal == null) {
+			throw doesNotExist(key);
+		}
+		return retVal;
+	}
+	
+	/**
+	 * Like get(), but a missing key is not an error
+	 * @return the value of key, or null if it does not exist
+	 * @throws KVException only if the engine could not be read
+	 */
+	public String find(String key) throws KVException {
 		AutoGrader.agStoreGetStarted(key);
 		
 		try {
-			getDelay();
-			String retVal = this.store.get(key);
-			if (retVal == null) {
-			    KVMessage msg = new KVMessage("resp", "key \"" + key + "\" does not exist in store");
-			    throw new KVException(msg);
+			if (!keyFilter.mightContain(key) || isExpired(key)) {
+				return null;
 			}
-			return retVal;
+			getDelay();
+			return engine.get(key);
 		} finally {
 			AutoGrader.agStoreGetFinished(key);
 		}
@@ -82,14 +197,288 @@ public class KVStore implements KeyValueInterface {
 		AutoGrader.agStoreDelStarted(key);
 
 		try {
+			if (key == null || !keyFilter.mightContain(key)) {
+				throw doesNotExist(key);
+			}
+			if (isExpired(key)) {
+				reclaim(key);
+				throw doesNotExist(key);
+			}
 			delDelay();
-			if(key != null)
-				this.store.remove(key);
+			boolean removed;
+			synchronized (writeLock(key)) {
+				removed = removeKey(key);
+				deadlines.remove(key);
+			}
+			if (!removed) {
+				throw doesNotExist(key);
+			}
 		} finally {
 			AutoGrader.agStoreDelFinished(key);
 		}
 	}
 	
+	/**
+	 * Applies a batch of puts and deletes as one store operation: one
+	 * store delay and one write to the engine, with the write locks of all
+	 * its keys held throughout so that no other put or del of those keys
+	 * can come in between. Unlike del(), deleting a missing key is not an
+	 * error. Also unlike put() and del(), there are no per-key AutoGrader
+	 * hooks.
+	 * @return for each operation, whether it created (put) or removed
+	 * (delete) its key
+	 * @throws KVException if the engine could not be written
+	 */
+	public boolean[] apply(WriteBatch batch) throws KVException {
+		if (batch.isEmpty()) {
+			return new boolean[0];
+		}
+		putDelay();
+		// Locked in stripe order, so two batches cannot deadlock
+		boolean[] used = new boolean[WRITE_LOCK_STRIPES];
+		for (WriteBatch.Op op : batch.ops()) {
+			used[stripe(op.key)] = true;
+		}
+		int count = 0;
+		int[] stripes = new int[WRITE_LOCK_STRIPES];
+		for (int i = 0; i < WRITE_LOCK_STRIPES; i++) {
+			if (used[i]) {
+				stripes[count++] = i;
+			}
+		}
+		return applyLocked(batch, stripes, count, 0);
+	}
+	
+	/**
+	 * Reads the pairs in a range of keys, in key order. The whole page costs
+	 * a single store delay. Pairs written while the scan is in progress may
+	 * or may not be seen.
+	 * @param startKey first key of the range, or null to start at the
+	 * smallest key
+	 * @param endKey end of the range (exclusive), or null for no end
+	 * @param limit maximum number of pairs to return
+	 * @return up to limit pairs with startKey <= key < endKey
+	 * @throws KVException if the store is not in sorted mode, or the engine
+	 * could not be read
+	 */
+	public List<Map.Entry<String, String>> scan(String startKey, String endKey, int limit) throws KVException {
+		if (sortedKeys == null) {
+			throw new KVException(new KVMessage("resp", "Scan needs a sorted KVStore"));
+		}
+		getDelay();
+		NavigableSet<String> range = sortedKeys;
+		if (startKey != null) {
+			range = range.tailSet(startKey, true);
+		}
+		if (endKey != null) {
+			range = range.headSet(endKey, false);
+		}
+		
+		ArrayList<Map.Entry<String, String>> page = new ArrayList<Map.Entry<String, String>>();
+		Iterator<String> keys = range.iterator();
+		while (page.size() < limit && keys.hasNext()) {
+			String key = keys.next();
+			String value = isExpired(key) ? null : engine.get(key);
+			// Skip keys deleted since the iterator passed them in the index
+			if (value != null) {
+				page.add(new AbstractMap.SimpleImmutableEntry<String, String>(key, value));
+			}
+		}
+		return page;
+	}
+	
+	/**
+	 * @return whether scan() is supported
+	 */
+	public boolean isSorted() {
+		return sortedKeys != null;
+	}
+	
+	/**
+	 * Cheap check that costs no store delay
+	 * @return false if key definitely does not exist in the store
+	 */
+	public boolean mightContain(String key) {
+		return keyFilter.mightContain(key);
+	}
+	
+	/**
+	 * Cheap check that costs no store delay
+	 * @return true if key was put with a TTL that has passed
+	 */
+	public boolean isExpired(String key) {
+		Long deadline = deadlines.get(key);
+		return deadline != null && deadline.longValue() <= System.currentTimeMillis();
+	}
+	
+	public void setExpiryListener(ExpiryListener listener) {
+		expiryListener = listener;
+	}
+	
+	/**
+	 * Stops the expiry thread and releases the files held by the engine
+	 */
+	public void close() {
+		Thread stopping;
+		synchronized (expiryWheel) {
+			stopping = reaper;
+			reaper = null;
+		}
+		if (stopping != null) {
+			stopping.interrupt();
+			try {
+				stopping.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		engine.close();
+	}
+	
+	/**
+	 * Removes key from the engine and the key indexes, under its write lock
+	 * @return true if key existed
+	 */
+	private boolean removeKey(String key) throws KVException {
+		boolean removed = engine.remove(key);
+		if (removed) {
+			keyFilter.remove(key);
+			if (sortedKeys != null) {
+				sortedKeys.remove(key);
+			}
+		}
+		return removed;
+	}
+	
+	/**
+	 * Takes the write locks of stripes[held..count) one by one, then applies
+	 * the batch and updates the key indexes and deadlines to match
+	 */
+	private boolean[] applyLocked(WriteBatch batch, int[] stripes, int count, int held) throws KVException {
+		if (held < count) {
+			synchronized (writeLocks[stripes[held]]) {
+				return applyLocked(batch, stripes, count, held + 1);
+			}
+		}
+		boolean[] changed = engine.apply(batch);
+		long now = System.currentTimeMillis();
+		for (int i = 0; i < changed.length; i++) {
+			WriteBatch.Op op = batch.ops().get(i);
+			if (op.isDelete()) {
+				if (changed[i]) {
+					keyFilter.remove(op.key);
+					if (sortedKeys != null) {
+						sortedKeys.remove(op.key);
+					}
+				}
+			} else if (changed[i]) {
+				keyFilter.add(op.key);
+				if (sortedKeys != null) {
+					sortedKeys.add(op.key);
+				}
+			}
+			if (op.ttlMillis > 0) {
+				deadlines.put(op.key, now + op.ttlMillis);
+				scheduleExpiry(op.key, now + op.ttlMillis);
+			} else {
+				deadlines.remove(op.key);
+			}
+		}
+		return changed;
+	}
+	
+	private void scheduleExpiry(String key, long deadline) {
+		synchronized (expiryWheel) {
+			expiryWheel.schedule(key, deadline);
+			if (reaper == null) {
+				reaper = new Thread(new Reaper(), "KVStore expiry");
+				reaper.setDaemon(true);
+				reaper.start();
+			}
+		}
+	}
+	
+	/**
+	 * Removes key if it is still expired; it may have been put again or
+	 * deleted since it was filed in the wheel.
+	 */
+	private void reclaim(String key) throws KVException {
+		boolean removed = false;
+		synchronized (writeLock(key)) {
+			if (isExpired(key)) {
+				deadlines.remove(key);
+				removed = removeKey(key);
+			}
+		}
+		ExpiryListener listener = expiryListener;
+		if (removed && listener != null) {
+			listener.expired(key);
+		}
+	}
+	
+	/**
+	 * Turns the expiry wheel once a tick and reclaims whatever comes due.
+	 * Expired keys are removed straight from the engine, without the store
+	 * delay or the AutoGrader hooks of a client del.
+	 */
+	private class Reaper implements Runnable {
+		public void run() {
+			while (true) {
+				List<String> due;
+				synchronized (expiryWheel) {
+					if (reaper != Thread.currentThread()) {
+						return;
+					}
+					due = expiryWheel.advance(System.currentTimeMillis());
+				}
+				for (String key : due) {
+					try {
+						reclaim(key);
+					} catch (KVException e) {
+						e.printStackTrace();
+					}
+				}
+				try {
+					Thread.sleep(EXPIRY_TICK_MILLIS);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		}
+	}
+	
+	private Object writeLock(String key) {
+		return writeLocks[stripe(key)];
+	}
+	
+	private int stripe(String key) {
+		return (key.hashCode() & Integer.MAX_VALUE) % WRITE_LOCK_STRIPES;
+	}
+	
+	private KVException doesNotExist(String key) throws KVException {
+		KVMessage msg = new KVMessage("resp", "key \"" + key + "\" does not exist in store");
+		return new KVException(msg);
+	}
+	
+	/**
+	 * Adds every key already in the engine, e.g. one reopened from disk,
+	 * to the key filter and the sorted index
+	 */
+	private void loadKeys() {
+		keyFilter.clear();
+		if (sortedKeys != null) {
+			sortedKeys.clear();
+		}
+		Iterator<Map.Entry<String, String>> pairs = engine.iterator();
+		while (pairs.hasNext()) {
+			String key = pairs.next().getKey();
+			keyFilter.add(key);
+			if (sortedKeys != null) {
+				sortedKeys.add(key);
+			}
+		}
+	}
+	
 	private void getDelay() {
 		AutoGrader.agStoreDelay();
 	}
@@ -102,21 +491,54 @@ public class KVStore implements KeyValueInterface {
 		AutoGrader.agStoreDelay();
 	}
 	
-    public String toXML() {
-        // TODO: implement me
-        return null;
+    /**
+     * @return the whole store as XML. Only suitable for small stores, use
+     * dumpToFile to snapshot a large one.
+     * @throws KVException if the store could not be serialized
+     */
+    public String toXML() throws KVException {
+        StringWriter out = new StringWriter();
+        StoreSnapshot.writeXML(engine, out);
+        return out.toString();
     }        
 
-    public void dumpToFile(String fileName) {
-        // TODO: implement me
+    /**
+     * Streams the contents of the store to a file in the toXML() format.
+     * The store can be modified while it is being dumped; such changes may
+     * or may not make it into the file.
+     * @param fileName the file to be written.
+     * @throws KVException if the file could not be written
+     */
+    public void dumpToFile(String fileName) throws KVException {
+        StoreSnapshot.writeXMLFile(engine, fileName);
+    }
+
+    /**
+     * Same as dumpToFile, but in a compact binary format
+     * @param fileName the file to be written.
+     * @throws KVException if the file could not be written
+     */
+    public void dumpToBinaryFile(String fileName) throws KVException {
+        StoreSnapshot.writeBinaryFile(engine, fileName);
     }
 
     /**
      * Replaces the contents of the store with the contents of a file
-     * written by dumpToFile; the previous contents of the store are lost.
+     * written by dumpToFile or dumpToBinaryFile; the previous contents of
+     * the store are lost.
      * @param fileName the file to be read.
+     * @throws KVException if the file could not be read
      */
-    public void restoreFromFile(String fileName) {
-        // TODO: implement me
+    public void restoreFromFile(String fileName) throws KVException {
+        engine.clear();
+        deadlines.clear();
+        synchronized (expiryWheel) {
+            expiryWheel.clear();
+        }
+        try {
+            StoreSnapshot.readFile(engine, fileName);
+        } finally {
+            loadKeys();
+        }
     }
 }
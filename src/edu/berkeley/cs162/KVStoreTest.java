@@ -0,0 +1,227 @@
+package edu.berkeley.cs162;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class KVStoreTest {
+	static final String DUMP = "KVStoreTest.dump";
+	KVStore store = null;
+
+	@Before
+	public void setUp() throws KVException {
+		store = new KVStore();
+		// Straight into the engine to skip the simulated store delay
+		StorageEngine engine = store.getEngine();
+		for (int i = 0; i < 1000; i++) {
+			engine.put("key" + i, "value <" + i + "> & more");
+		}
+	}
+
+	@After
+	public void tearDown() {
+		new File(DUMP).delete();
+	}
+
+	@Test
+	public void toXML() throws KVException {
+		String xml = store.toXML();
+		assertTrue(xml.contains("<KVPair><Key>key7</Key><Value>value &lt;7&gt; &amp; more</Value></KVPair>"));
+	}
+
+	@Test
+	public void filtersMissingKeys() throws KVException {
+		// Keys already in the engine, e.g. after a reopen, are picked up
+		KVStore reopened = new KVStore(store.getEngine());
+		for (int i = 0; i < 1000; i++) {
+			assertTrue(reopened.mightContain("key" + i));
+		}
+		int falsePositives = 0;
+		for (int i = 0; i < 1000; i++) {
+			if (reopened.mightContain("missing" + i)) {
+				falsePositives++;
+			}
+		}
+		assertTrue(falsePositives < 50);
+
+		try {
+			reopened.del("missing");
+			fail("del of a missing key should fail");
+		} catch (KVException e) {
+			assertEquals("key \"missing\" does not exist in store", e.getMsg().getMessage());
+		}
+	}
+
+	@Test
+	public void scansInKeyOrder() throws KVException {
+		KVStore sorted = new KVStore(store.getEngine(), 1000, true);
+		List<Map.Entry<String, String>> page = sorted.scan("key10", "key11", 5);
+		assertEquals(5, page.size());
+		assertEquals("key10", page.get(0).getKey());
+		assertEquals("key100", page.get(1).getKey());
+		assertEquals("key103", page.get(4).getKey());
+		assertEquals("value <103> & more", page.get(4).getValue());
+
+		KVServer server = new KVServer(2, 2, sorted);
+		Iterator<Map.Entry<String, String>> pairs = server.scanPrefix("key99", 1000);
+		int count = 0;
+		while (pairs.hasNext()) {
+			assertTrue(pairs.next().getKey().startsWith("key99"));
+			count++;
+		}
+		assertEquals(11, count);
+
+		try {
+			store.scan(null, null, 10);
+			fail("an unsorted store cannot scan");
+		} catch (KVException e) {
+		}
+	}
+
+	@Test
+	public void expiresKeys() throws Exception {
+		final List<String> expired = new ArrayList<String>();
+		store.setExpiryListener(new KVStore.ExpiryListener() {
+			public void expired(String key) {
+				synchronized (expired) {
+					expired.add(key);
+				}
+			}
+		});
+		store.put("session", "data", 50);
+		Thread.sleep(60);
+		assertTrue(store.isExpired("session"));
+		try {
+			store.get("session");
+			fail("expired keys read as missing");
+		} catch (KVException e) {
+		}
+
+		// Reclaimed from the engine in the background
+		Thread.sleep(300);
+		assertNull(store.getEngine().get("session"));
+		synchronized (expired) {
+			assertEquals("session", expired.get(0));
+		}
+		store.close();
+	}
+
+	@Test
+	public void appliesBatches() throws KVException {
+		KVStore sorted = new KVStore(store.getEngine(), 1000, true);
+		WriteBatch batch = new WriteBatch();
+		batch.put("new", "1").delete("key7").delete("missing").put("key8", "8").delete("new");
+		assertEquals("[true, true, false, false, true]", Arrays.toString(sorted.apply(batch)));
+
+		assertFalse(sorted.mightContain("new"));
+		assertNull(sorted.getEngine().get("key7"));
+		assertEquals("8", sorted.getEngine().get("key8"));
+		assertTrue(sorted.scan("key7", "key7\u0000", 10).isEmpty());
+		List<Map.Entry<String, String>> page = sorted.scan("key8", "key8\u0000", 10);
+		assertEquals(1, page.size());
+		assertEquals("8", page.get(0).getValue());
+	}
+
+	@Test
+	public void dumpAndRestoreXML() throws KVException {
+		store.dumpToFile(DUMP);
+		KVStore restored = new KVStore();
+		restored.getEngine().put("stale", "gone after restore");
+		restored.restoreFromFile(DUMP);
+
+		StorageEngine engine = restored.getEngine();
+		assertNull(engine.get("stale"));
+		assertEquals("value <999> & more", engine.get("key999"));
+		assertEquals("value <0> & more", engine.get("key0"));
+	}
+
+	@Test
+	public void dumpAndRestoreBinary() throws KVException {
+		store.dumpToBinaryFile(DUMP);
+		KVStore restored = new KVStore();
+		restored.restoreFromFile(DUMP);
+
+		StorageEngine engine = restored.getEngine();
+		assertEquals("value <999> & more", engine.get("key999"));
+		assertEquals("value <0> & more", engine.get("key0"));
+	}
+
+	@Test
+	public void restoresSeveralPartitions() throws KVException, IOException {
+		StoreSnapshot.setPartitionSize(1024);
+		try {
+			store.dumpToBinaryFile(DUMP);
+		} finally {
+			StoreSnapshot.setPartitionSize(StoreSnapshot.DEFAULT_PARTITION_SIZE);
+		}
+		RandomAccessFile file = new RandomAccessFile(DUMP, "r");
+		try {
+			file.seek(file.length() - 12);
+			file.seek(file.readLong());
+			assertTrue(file.readInt() > 10);
+		} finally {
+			file.close();
+		}
+
+		KVStore restored = new KVStore();
+		restored.restoreFromFile(DUMP);
+		StorageEngine engine = restored.getEngine();
+		for (int i = 0; i < 1000; i++) {
+			assertEquals("value <" + i + "> & more", engine.get("key" + i));
+		}
+	}
+
+	@Test
+	public void rejectsCorruptedBinarySnapshots() throws KVException, IOException {
+		store.dumpToBinaryFile(DUMP);
+		long length = new File(DUMP).length();
+
+		// Footer offset in the trailer pointing past the end of the file
+		corrupt(length - 12, Long.MAX_VALUE);
+		assertRestoreFails();
+
+		// Footer offset pointing into the first record
+		store.dumpToBinaryFile(DUMP);
+		corrupt(length - 12, 6L);
+		assertRestoreFails();
+
+		// Key length of the first record larger than its partition
+		store.dumpToBinaryFile(DUMP);
+		corrupt(4, Integer.MAX_VALUE);
+		assertRestoreFails();
+	}
+
+	private static void corrupt(long position, Number value) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(DUMP, "rw");
+		try {
+			file.seek(position);
+			if (value instanceof Long) {
+				file.writeLong(value.longValue());
+			} else {
+				file.writeInt(value.intValue());
+			}
+		} finally {
+			file.close();
+		}
+	}
+
+	private static void assertRestoreFails() {
+		try {
+			new KVStore().restoreFromFile(DUMP);
+			fail("restored a corrupted snapshot");
+		} catch (KVException e) {
+			assertTrue(e.getMsg().getMessage().startsWith("IO Error"));
+		}
+	}
+}
@@ -0,0 +1,114 @@
+/**
+ * Heap used per key by the in-memory indexes
+ * 
+ * Copyright (c) 2012, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *    
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+import java.util.Hashtable;
+
+/**
+ * Loads the same keys into a Hashtable<String, String> (what KVStore used
+ * before StorageEngines), a MemoryEngine and a CompactMemoryEngine, and
+ * prints the heap each one holds on to per key. Every key maps to the same
+ * value object, so only the cost of the keys and the index is measured.
+ *
+ * Keys look like ours: a tenant, an entity type and an id, so that most of
+ * each key is a prefix shared with many others. At the default 10M keys
+ * run it with a large heap, e.g. -Xmx8g.
+ *
+ * USAGE: KeyMemoryBenchmark [keys] [tenants]
+ */
+public class KeyMemoryBenchmark {
+	private static int numKeys = 10000000;
+	private static int numTenants = 100;
+	private static final String[] TYPES = { "customer", "order", "invoice", "shipment" };
+	private static final String VALUE = "value";
+
+	public static void main(String[] args) throws Exception {
+		if (args.length > 0) {
+			numKeys = Integer.parseInt(args[0]);
+		}
+		if (args.length > 1) {
+			numTenants = Integer.parseInt(args[1]);
+		}
+
+		System.out.println(numKeys + " keys like " + key(numKeys - 1));
+		System.out.println("index\tbytes/key\tMB");
+		final Hashtable<String, String> hashtable = new Hashtable<String, String>();
+		measure("Hashtable", new Loader() {
+			public void put(String key) {
+				hashtable.put(key, VALUE);
+			}
+		});
+		hashtable.clear();
+		measure("MemoryEngine", new EngineLoader(new MemoryEngine()));
+		measure("CompactMemoryEngine", new EngineLoader(new CompactMemoryEngine()));
+	}
+
+	private interface Loader {
+		void put(String key) throws KVException;
+	}
+
+	private static class EngineLoader implements Loader {
+		private StorageEngine engine = null;
+
+		EngineLoader(StorageEngine engine) {
+			this.engine = engine;
+		}
+
+		public void put(String key) throws KVException {
+			engine.put(key, VALUE);
+		}
+	}
+
+	private static void measure(String name, Loader loader) throws KVException {
+		long before = usedHeap();
+		for (int i = 0; i < numKeys; i++) {
+			loader.put(key(i));
+		}
+		long used = usedHeap() - before;
+		System.out.println(name + "\t" + used / numKeys + "\t" + used / (1024 * 1024));
+		// Keep the index reachable until it has been measured
+		loader.put(key(0));
+	}
+
+	private static String key(int i) {
+		return "tenant-" + (i % numTenants) + "/" + TYPES[(i / numTenants) % TYPES.length] + "/" + i;
+	}
+
+	private static long usedHeap() {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 4; i++) {
+			System.gc();
+			try {
+				Thread.sleep(100);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+}
@@ -0,0 +1,314 @@
+/**
+ * Compressed radix trie over UTF-8 keys
+ * 
+ * Copyright (c) 2012, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *    
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Maps byte[] keys to values with a compressed radix trie: every edge is
+ * labelled with as many bytes as its keys have in common, so a prefix that
+ * many keys share (a tenant, an entity type) is stored once instead of
+ * once per key, and a key costs one small node holding only the bytes that
+ * tell it apart from its neighbours.
+ *
+ * A node is an edge label, a value (null if no key ends there) and an
+ * array of children sorted by the first byte of their labels, found by
+ * binary search. There are no per-key entry objects and no hash table.
+ * Removing a key merges nodes again so the trie stays compressed.
+ *
+ * Keys are ordered by unsigned byte, which for UTF-8 is code point order.
+ * Not thread safe; CompactMemoryEngine locks around it.
+ */
+class KeyTrie {
+	private static final byte[] EMPTY = new byte[0];
+
+	private Node root = new Node(EMPTY, null);
+	private int size = 0;
+
+	private static final class Node {
+		byte[] label;
+		Object value;
+		// Sorted by label[0]; null while there are none
+		Node[] children;
+
+		Node(byte[] label, Object value) {
+			this.label = label;
+			this.value = value;
+		}
+	}
+
+	/**
+	 * @return the value of key, or null if it is not in the trie
+	 */
+	Object get(byte[] key) {
+		Node node = root;
+		int depth = 0;
+		while (depth < key.length) {
+			int index = find(node, key[depth]);
+			if (index < 0) {
+				return null;
+			}
+			node = node.children[index];
+			if (common(node.label, key, depth) < node.label.length) {
+				return null;
+			}
+			depth += node.label.length;
+		}
+		return node.value;
+	}
+
+	/**
+	 * @param value must not be null
+	 * @return the previous value of key, or null if it is new
+	 */
+	Object put(byte[] key, Object value) {
+		Node node = root;
+		int depth = 0;
+		while (depth < key.length) {
+			int index = find(node, key[depth]);
+			if (index < 0) {
+				insertChild(node, -index - 1, new Node(Arrays.copyOfRange(key, depth, key.length), value));
+				size++;
+				return null;
+			}
+			Node child = node.children[index];
+			int common = common(child.label, key, depth);
+			if (common < child.label.length) {
+				// The key leaves this edge part way: split it there
+				Node middle = new Node(Arrays.copyOfRange(child.label, 0, common), null);
+				child.label = Arrays.copyOfRange(child.label, common, child.label.length);
+				middle.children = new Node[] { child };
+				node.children[index] = middle;
+				child = middle;
+			}
+			node = child;
+			depth += common;
+		}
+		Object previous = node.value;
+		node.value = value;
+		if (previous == null) {
+			size++;
+		}
+		return previous;
+	}
+
+	/**
+	 * @return the value key had, or null if it was not in the trie
+	 */
+	Object remove(byte[] key) {
+		Node parent = null;
+		int index = -1;
+		Node node = root;
+		int depth = 0;
+		while (depth < key.length) {
+			int childIndex = find(node, key[depth]);
+			if (childIndex < 0) {
+				return null;
+			}
+			Node child = node.children[childIndex];
+			if (common(child.label, key, depth) < child.label.length) {
+				return null;
+			}
+			parent = node;
+			index = childIndex;
+			node = child;
+			depth += child.label.length;
+		}
+		Object previous = node.value;
+		if (previous == null) {
+			return null;
+		}
+		node.value = null;
+		size--;
+
+		if (node == root) {
+			return previous;
+		}
+		if (node.children == null) {
+			removeChild(parent, index);
+			// The parent may now be a pass-through node with one child
+			if (parent != root && parent.value == null && parent.children.length == 1) {
+				merge(parent);
+			}
+		} else if (node.children.length == 1) {
+			merge(node);
+		}
+		return previous;
+	}
+
+	/**
+	 * @return number of keys in the trie
+	 */
+	int size() {
+		return size;
+	}
+
+	void clear() {
+		root = new Node(EMPTY, null);
+		size = 0;
+	}
+
+	/**
+	 * Appends up to max keys, in order, with their values, starting with
+	 * the first key greater than after.
+	 * @param after null to start at the smallest key
+	 */
+	void collect(byte[] after, int max, List<byte[]> keys, List<Object> values) {
+		if (max > 0) {
+			collect(root, EMPTY, after, after == null, max, keys, values);
+		}
+	}
+
+	/**
+	 * @param path the key that ends at node
+	 * @param all whether every key under node is greater than after;
+	 * otherwise path is a prefix of after
+	 * @return false once max keys have been collected
+	 */
+	private boolean collect(Node node, byte[] path, byte[] after, boolean all, int max,
+			List<byte[]> keys, List<Object> values) {
+		if (all && node.value != null) {
+			keys.add(path);
+			values.add(node.value);
+			if (keys.size() >= max) {
+				return false;
+			}
+		}
+		if (node.children == null) {
+			return true;
+		}
+		for (Node child : node.children) {
+			boolean childAll = all;
+			if (!all) {
+				int order = compareTo(child.label, after, path.length);
+				if (order < 0) {
+					continue;
+				}
+				childAll = order > 0;
+			}
+			byte[] childPath = Arrays.copyOf(path, path.length + child.label.length);
+			System.arraycopy(child.label, 0, childPath, path.length, child.label.length);
+			if (!collect(child, childPath, after, childAll, max, keys, values)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Compares the keys under an edge with key, from offset on.
+	 * @return negative if they all sort before key, positive if they all
+	 * sort after it, and 0 if the edge is a prefix of what is left of key
+	 */
+	private static int compareTo(byte[] label, byte[] key, int offset) {
+		int length = Math.min(label.length, key.length - offset);
+		for (int i = 0; i < length; i++) {
+			int diff = (label[i] & 0xff) - (key[offset + i] & 0xff);
+			if (diff != 0) {
+				return diff;
+			}
+		}
+		return label.length > length ? 1 : 0;
+	}
+
+	/**
+	 * @return how many leading bytes of label match key from offset on
+	 */
+	private static int common(byte[] label, byte[] key, int offset) {
+		int length = Math.min(label.length, key.length - offset);
+		int i = 0;
+		while (i < length && label[i] == key[offset + i]) {
+			i++;
+		}
+		return i;
+	}
+
+	/**
+	 * @return index of the child whose label starts with first, or
+	 * (-(insertion point) - 1) if there is none
+	 */
+	private static int find(Node node, byte first) {
+		Node[] children = node.children;
+		if (children == null) {
+			return -1;
+		}
+		int low = 0;
+		int high = children.length - 1;
+		int target = first & 0xff;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			int b = children[mid].label[0] & 0xff;
+			if (b < target) {
+				low = mid + 1;
+			} else if (b > target) {
+				high = mid - 1;
+			} else {
+				return mid;
+			}
+		}
+		return -(low + 1);
+	}
+
+	private static void insertChild(Node node, int index, Node child) {
+		Node[] old = node.children;
+		if (old == null) {
+			node.children = new Node[] { child };
+			return;
+		}
+		Node[] children = new Node[old.length + 1];
+		System.arraycopy(old, 0, children, 0, index);
+		children[index] = child;
+		System.arraycopy(old, index, children, index + 1, old.length - index);
+		node.children = children;
+	}
+
+	private static void removeChild(Node node, int index) {
+		Node[] old = node.children;
+		if (old.length == 1) {
+			node.children = null;
+			return;
+		}
+		Node[] children = new Node[old.length - 1];
+		System.arraycopy(old, 0, children, 0, index);
+		System.arraycopy(old, index + 1, children, index, old.length - index - 1);
+		node.children = children;
+	}
+
+	/**
+	 * Folds the only child of a valueless node into it
+	 */
+	private static void merge(Node node) {
+		Node child = node.children[0];
+		byte[] label = Arrays.copyOf(node.label, node.label.length + child.label.length);
+		System.arraycopy(child.label, 0, label, node.label.length, child.label.length);
+		node.label = label;
+		node.value = child.value;
+		node.children = child.children;
+	}
+}
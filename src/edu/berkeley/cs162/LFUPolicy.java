@@ -0,0 +1,94 @@
+/**
+ * Least frequently used eviction
+ * 
+ * Copyright (c) 2012, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *    
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+/**
+ * Evicts the entry read the fewest times since it was cached, the least
+ * recently used of those on a tie. A one-off scan then only ever displaces
+ * other entries that were read once, but an entry that was hot once stays
+ * until the rest of the set has caught up with it.
+ */
+class LFUPolicy implements EvictionPolicy {
+	private final int[] uses;
+	private final long[] lastUsed;
+	private long tick = 0;
+
+	static final Factory FACTORY = new Factory() {
+		public EvictionPolicy[] create(int numSets, int maxElemsPerSet) {
+			EvictionPolicy[] policies = new EvictionPolicy[numSets];
+			for (int i = 0; i < numSets; i++) {
+				policies[i] = new LFUPolicy(maxElemsPerSet);
+			}
+			return policies;
+		}
+	};
+
+	LFUPolicy(int slots) {
+		uses = new int[slots];
+		lastUsed = new long[slots];
+	}
+
+	public void hit(int slot) {
+		if (uses[slot] < Integer.MAX_VALUE) {
+			uses[slot]++;
+		}
+		lastUsed[slot] = ++tick;
+	}
+
+	public void inserted(int slot, int hash) {
+		uses[slot] = 1;
+		lastUsed[slot] = ++tick;
+	}
+
+	public void updated(int slot) {
+		lastUsed[slot] = ++tick;
+	}
+
+	public void removed(int slot) {
+		// Never the victim while the set holds anything else
+		uses[slot] = Integer.MAX_VALUE;
+		lastUsed[slot] = Long.MAX_VALUE;
+	}
+
+	public int victim(int hash, long[] pinned) {
+		int victim = -1;
+		for (int i = 0; i < uses.length; i++) {
+			if (EvictionPolicies.isPinned(pinned, i)) {
+				continue;
+			}
+			if (victim < 0 || uses[i] < uses[victim] || (uses[i] == uses[victim] && lastUsed[i] < lastUsed[victim])) {
+				victim = i;
+			}
+		}
+		return victim;
+	}
+
+	public boolean isReferenced(int slot) {
+		return uses[slot] > 1 && uses[slot] < Integer.MAX_VALUE;
+	}
+}
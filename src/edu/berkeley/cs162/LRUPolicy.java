@@ -0,0 +1,89 @@
+/**
+ * Least recently used eviction
+ * 
+ * Copyright (c) 2012, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *    
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+/**
+ * Evicts the entry read or written longest ago. Each slot holds the tick
+ * of its last access, so a hit is one plain store and finding the victim a
+ * scan of the set, which is small.
+ */
+class LRUPolicy implements EvictionPolicy {
+	private final long[] lastUsed;
+	private final boolean[] referenced;
+	// Racing hits may read the same tick; they then tie, which is harmless
+	private long tick = 0;
+
+	static final Factory FACTORY = new Factory() {
+		public EvictionPolicy[] create(int numSets, int maxElemsPerSet) {
+			EvictionPolicy[] policies = new EvictionPolicy[numSets];
+			for (int i = 0; i < numSets; i++) {
+				policies[i] = new LRUPolicy(maxElemsPerSet);
+			}
+			return policies;
+		}
+	};
+
+	LRUPolicy(int slots) {
+		lastUsed = new long[slots];
+		referenced = new boolean[slots];
+	}
+
+	public void hit(int slot) {
+		lastUsed[slot] = ++tick;
+		referenced[slot] = true;
+	}
+
+	public void inserted(int slot, int hash) {
+		lastUsed[slot] = ++tick;
+		referenced[slot] = false;
+	}
+
+	public void updated(int slot) {
+		lastUsed[slot] = ++tick;
+	}
+
+	public void removed(int slot) {
+		referenced[slot] = false;
+		// Never the victim while the set holds anything else
+		lastUsed[slot] = Long.MAX_VALUE;
+	}
+
+	public int victim(int hash, long[] pinned) {
+		int victim = -1;
+		for (int i = 0; i < lastUsed.length; i++) {
+			if (!EvictionPolicies.isPinned(pinned, i) && (victim < 0 || lastUsed[i] < lastUsed[victim])) {
+				victim = i;
+			}
+		}
+		return victim;
+	}
+
+	public boolean isReferenced(int slot) {
+		return referenced[slot];
+	}
+}
@@ -0,0 +1,966 @@
+/**
+ * Log-structured merge tree StorageEngine for write-heavy slaves
+ * 
+ * Copyright (c) 2012, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *    
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Writes go to a write-ahead log, which is only ever appended to, and to a
+ * sorted in-memory memtable. A full memtable is frozen and written out by a
+ * background thread as an immutable SSTable in level 0. The same thread
+ * compacts the levels: once level 0 has L0_COMPACTION_TRIGGER tables they are
+ * all merged into level 1, and once level n (n >= 1) grows beyond
+ * LEVEL_BASE_BYTES * 10^(n-1) one of its tables is merged into level n+1.
+ * Tables in level 1 and up never overlap each other.
+ *
+ * Reads check the memtable, the frozen memtable, level 0 from newest to
+ * oldest and then every deeper level; each table is skipped if its key range
+ * or bloom filter rules the key out.
+ *
+ * The set of live tables is kept in a MANIFEST file that is replaced
+ * atomically, so a crash in the middle of a flush or compaction leaves
+ * either the old or the new set of tables.
+ *
+ * A put or remove returns once its log record has been forced to the
+ * device. Log writes go through a GroupCommitLog, so concurrent writers
+ * share one fsync. The memtable is updated when the record is queued, in
+ * log order, so other threads may read a write just before it is durable.
+ *
+ * A WriteBatch goes to the log as a single BATCH record, [BATCH:1]
+ * [count:4][bytes:4] followed by its count records, so it takes one log
+ * write and one fsync, and replay drops a batch that did not make it to
+ * the log in full.
+ */
+public class LSMEngine implements StorageEngine {
+	public static final int DEFAULT_MEMTABLE_BYTES = 4 * 1024 * 1024;
+	private static final int L0_COMPACTION_TRIGGER = 4;
+	private static final long LEVEL_BASE_BYTES = 10L * 1024 * 1024;
+	private static final int MAX_LEVELS = 7;
+	// Per-entry overhead of the skip list, used to estimate memtable size
+	private static final int ENTRY_OVERHEAD = 64;
+
+	private static final byte PUT = 1;
+	private static final byte DELETE = 2;
+	private static final byte BATCH = 3;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final String MANIFEST = "MANIFEST";
+	private static final String WAL_PREFIX = "wal-";
+	private static final String TABLE_SUFFIX = ".sst";
+
+	private File directory = null;
+	private int memtableBytes = DEFAULT_MEMTABLE_BYTES;
+	private int maxCommitBatch = GroupCommitLog.DEFAULT_MAX_BATCH;
+	private long maxCommitWaitMicros = GroupCommitLog.DEFAULT_MAX_WAIT_MICROS;
+
+	private volatile ConcurrentSkipListMap<String, String> memtable = null;
+	private volatile ConcurrentSkipListMap<String, String> immutable = null;
+	// levels.get(0) is ordered newest first, deeper levels by first key.
+	// Never modified once published; flushes and compactions publish a copy.
+	private volatile ArrayList<List<SSTable>> levels = null;
+	private long memtableSize = 0;
+
+	private GroupCommitLog wal = null;
+	private File walFile = null;
+	private File immutableWalFile = null;
+	private long nextSeq = 1;
+
+	private Thread background = null;
+	private boolean closed = false;
+
+	public LSMEngine(String directory) throws KVException {
+		this(directory, DEFAULT_MEMTABLE_BYTES);
+	}
+
+	/**
+	 * Opens (or creates) the tables in directory and replays any write-ahead
+	 * logs left behind by an unclean shutdown.
+	 * @param memtableBytes approximate size at which a memtable is flushed
+	 * @throws KVException if the files cannot be opened
+	 */
+	public LSMEngine(String directory, int memtableBytes) throws KVException {
+		this(directory, memtableBytes, GroupCommitLog.DEFAULT_MAX_BATCH, GroupCommitLog.DEFAULT_MAX_WAIT_MICROS);
+	}
+
+	/**
+	 * @param memtableBytes approximate size at which a memtable is flushed
+	 * @param maxCommitBatch most log records made durable by one fsync
+	 * @param maxCommitWaitMicros how long a log write may wait for more
+	 * records to share its fsync; 0 to only batch what queues up while the
+	 * previous fsync is running
+	 * @throws KVException if the files cannot be opened
+	 */
+	public LSMEngine(String directory, int memtableBytes, int maxCommitBatch, long maxCommitWaitMicros)
+			throws KVException {
+		this.directory = new File(directory);
+		this.memtableBytes = memtableBytes;
+		this.maxCommitBatch = maxCommitBatch;
+		this.maxCommitWaitMicros = maxCommitWaitMicros;
+		if (!this.directory.isDirectory() && !this.directory.mkdirs()) {
+			throw ioError("Could not create " + directory);
+		}
+		open();
+	}
+
+	public String get(String key) {
+		// Fields are read in the opposite order to the one in which the
+		// background thread publishes, so a flushed key is never missed
+		String value = memtable.get(key);
+		if (value == null) {
+			ConcurrentSkipListMap<String, String> frozen = immutable;
+			if (frozen != null) {
+				value = frozen.get(key);
+			}
+		}
+		if (value == null) {
+			value = getFromTables(levels, key);
+		}
+		return value == SSTable.TOMBSTONE ? null : value;
+	}
+
+	/**
+	 * Finding out whether key already existed means a lookup in the tables
+	 * unless the memtable has it; that part is done before taking the lock
+	 * (see exists()), and for new keys the bloom filters usually answer it.
+	 */
+	public boolean put(String key, String value) throws KVException {
+		ConcurrentSkipListMap<String, String> current = memtable;
+		boolean below = !current.containsKey(key) && existsBelow(key);
+		boolean created;
+		GroupCommitLog.Commit commit;
+		synchronized (this) {
+			waitForRoom();
+			created = !exists(key, current, below);
+			commit = write(PUT, key, value);
+		}
+		awaitDurable(commit);
+		return created;
+	}
+
+	public boolean remove(String key) throws KVException {
+		ConcurrentSkipListMap<String, String> current = memtable;
+		boolean below = !current.containsKey(key) && existsBelow(key);
+		GroupCommitLog.Commit commit;
+		synchronized (this) {
+			waitForRoom();
+			if (!exists(key, current, below)) {
+				return false;
+			}
+			commit = write(DELETE, key, SSTable.TOMBSTONE);
+		}
+		awaitDurable(commit);
+		return true;
+	}
+
+	public boolean[] apply(WriteBatch batch) throws KVException {
+		List<WriteBatch.Op> ops = batch.ops();
+		boolean[] changed = new boolean[ops.size()];
+		ConcurrentSkipListMap<String, String> current = memtable;
+		boolean[] below = new boolean[changed.length];
+		for (int i = 0; i < changed.length; i++) {
+			String key = ops.get(i).key;
+			below[i] = !current.containsKey(key) && existsBelow(key);
+		}
+		GroupCommitLog.Commit commit;
+		synchronized (this) {
+			waitForRoom();
+			// Whether each key touched so far exists once the batch is applied
+			HashMap<String, Boolean> exists = new HashMap<String, Boolean>();
+			ArrayList<byte[][]> encoded = new ArrayList<byte[][]>();
+			ArrayList<WriteBatch.Op> writes = new ArrayList<WriteBatch.Op>();
+			int batchBytes = 0;
+			for (int i = 0; i < changed.length; i++) {
+				WriteBatch.Op op = ops.get(i);
+				Boolean known = exists.get(op.key);
+				boolean existed = known != null ? known.booleanValue() : exists(op.key, current, below[i]);
+				changed[i] = op.isDelete() ? existed : !existed;
+				if (op.isDelete() && !existed) {
+					continue;
+				}
+				exists.put(op.key, !op.isDelete());
+				byte[] keyBytes = op.key.getBytes(UTF8);
+				byte[] valueBytes = op.isDelete() ? new byte[0] : op.value.getBytes(UTF8);
+				encoded.add(new byte[][] { keyBytes, valueBytes });
+				writes.add(op);
+				batchBytes += 9 + keyBytes.length + valueBytes.length;
+			}
+			if (writes.isEmpty()) {
+				return changed;
+			}
+
+			ByteBuffer record = ByteBuffer.allocate(9 + batchBytes);
+			record.put(BATCH);
+			record.putInt(writes.size());
+			record.putInt(batchBytes);
+			for (int i = 0; i < writes.size(); i++) {
+				byte[][] pair = encoded.get(i);
+				encode(record, writes.get(i).isDelete() ? DELETE : PUT, pair[0], pair[1]);
+			}
+			record.flip();
+			commit = append(record);
+
+			for (int i = 0; i < writes.size(); i++) {
+				WriteBatch.Op op = writes.get(i);
+				byte[][] pair = encoded.get(i);
+				memtable.put(op.key, op.isDelete() ? SSTable.TOMBSTONE : op.value);
+				memtableSize += pair[0].length + pair[1].length + ENTRY_OVERHEAD;
+			}
+			if (memtableSize >= memtableBytes && immutable == null) {
+				freezeMemtable();
+			}
+		}
+		awaitDurable(commit);
+		return changed;
+	}
+
+	/**
+	 * Merges the memtables and every table, newest first, skipping deletions
+	 */
+	public Iterator<Map.Entry<String, String>> iterator() {
+		ArrayList<Iterator<Map.Entry<String, String>>> sources = new ArrayList<Iterator<Map.Entry<String, String>>>();
+		sources.add(memtable.entrySet().iterator());
+		ConcurrentSkipListMap<String, String> frozen = immutable;
+		if (frozen != null) {
+			sources.add(frozen.entrySet().iterator());
+		}
+		for (List<SSTable> level : levels) {
+			for (SSTable table : level) {
+				sources.add(table.iterator());
+			}
+		}
+		return new MergeIterator(sources, true);
+	}
+
+	public void clear() throws KVException {
+		shutdown();
+		for (File file : directory.listFiles()) {
+			file.delete();
+		}
+		open();
+	}
+
+	public void close() {
+		shutdown();
+	}
+
+	/**
+	 * @return number of tables in each level
+	 */
+	public int[] tableCounts() {
+		ArrayList<List<SSTable>> current = levels;
+		int[] counts = new int[current.size()];
+		for (int i = 0; i < counts.length; i++) {
+			counts[i] = current.get(i).size();
+		}
+		return counts;
+	}
+
+	/**
+	 * Whether key exists below the memtable, in the frozen memtable or the
+	 * tables. Needs no lock: for a key the memtable does not have, that
+	 * only changes when the memtable is frozen, as flushes and compactions
+	 * keep what the tables say. Read after the memtable, like get() does.
+	 */
+	private boolean existsBelow(String key) {
+		String value = null;
+		ConcurrentSkipListMap<String, String> frozen = immutable;
+		if (frozen != null) {
+			value = frozen.get(key);
+		}
+		if (value == null) {
+			value = getFromTables(levels, key);
+		}
+		return value != null && value != SSTable.TOMBSTONE;
+	}
+
+	/**
+	 * Whether key exists, with the lock held
+	 * @param current the memtable before below was looked up
+	 * @param below existsBelow(key) as of then; only used if the memtable
+	 * has no entry for key and has not been frozen since
+	 */
+	private boolean exists(String key, ConcurrentSkipListMap<String, String> current, boolean below) {
+		String value = memtable.get(key);
+		if (value != null) {
+			return value != SSTable.TOMBSTONE;
+		}
+		return memtable == current ? below : get(key) != null;
+	}
+
+	private static String getFromTables(ArrayList<List<SSTable>> current, String key) {
+		for (List<SSTable> level : current) {
+			for (SSTable table : level) {
+				String value = table.get(key);
+				if (value != null) {
+					return value;
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Appends the record to the write-ahead log and applies it to the
+	 * memtable, both under the same lock so that replaying the log gives the
+	 * same result as the memtable.
+	 * @return to wait on, outside the lock, for the record to be durable
+	 */
+	private synchronized GroupCommitLog.Commit write(byte type, String key, String value) throws KVException {
+		waitForRoom();
+		byte[] keyBytes = key.getBytes(UTF8);
+		byte[] valueBytes = type == DELETE ? new byte[0] : value.getBytes(UTF8);
+		ByteBuffer record = ByteBuffer.allocate(9 + keyBytes.length + valueBytes.length);
+		encode(record, type, keyBytes, valueBytes);
+		record.flip();
+		GroupCommitLog.Commit commit = append(record);
+
+		memtable.put(key, value);
+		memtableSize += keyBytes.length + valueBytes.length + ENTRY_OVERHEAD;
+		if (memtableSize >= memtableBytes && immutable == null) {
+			freezeMemtable();
+		}
+		return commit;
+	}
+
+	/**
+	 * Only one frozen memtable at a time; waits for the flusher to catch up.
+	 * Called with the lock held.
+	 */
+	private void waitForRoom() throws KVException {
+		while (!closed && immutable != null && memtableSize >= memtableBytes) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				throw ioError("Interrupted while waiting for flush");
+			}
+		}
+		if (closed) {
+			throw ioError("Store is closed");
+		}
+	}
+
+	private static void encode(ByteBuffer out, byte type, byte[] keyBytes, byte[] valueBytes) {
+		out.put(type);
+		out.putInt(keyBytes.length);
+		out.putInt(valueBytes.length);
+		out.put(keyBytes);
+		out.put(valueBytes);
+	}
+
+	private GroupCommitLog.Commit append(ByteBuffer record) throws KVException {
+		try {
+			return wal.append(record);
+		} catch (IOException e) {
+			throw ioError("Could not write to log");
+		}
+	}
+
+	private void awaitDurable(GroupCommitLog.Commit commit) throws KVException {
+		try {
+			commit.await();
+		} catch (IOException e) {
+			throw ioError("Could not write to log");
+		}
+	}
+
+	private void freezeMemtable() throws KVException {
+		File newWalFile = walFile(nextSeq++);
+		GroupCommitLog newWal = openWal(newWalFile);
+		try {
+			// Waits until the last records of the old log are durable
+			wal.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		immutableWalFile = walFile;
+		immutable = memtable;
+		walFile = newWalFile;
+		wal = newWal;
+		memtable = new ConcurrentSkipListMap<String, String>();
+		memtableSize = 0;
+		notifyAll();
+	}
+
+	private synchronized void open() throws KVException {
+		closed = false;
+		memtable = new ConcurrentSkipListMap<String, String>();
+		immutable = null;
+		memtableSize = 0;
+		nextSeq = 1;
+
+		ArrayList<List<SSTable>> opened = new ArrayList<List<SSTable>>();
+		for (int i = 0; i < MAX_LEVELS; i++) {
+			opened.add(new ArrayList<SSTable>());
+		}
+		ArrayList<String> live = readManifest();
+		try {
+			for (String entry : live) {
+				String[] parts = entry.split(" ");
+				int level = Integer.parseInt(parts[0]);
+				long seq = Long.parseLong(parts[1]);
+				opened.get(level).add(SSTable.open(tableFile(level, seq), level, seq));
+				nextSeq = Math.max(nextSeq, seq + 1);
+			}
+		} catch (IOException e) {
+			throw ioError("Could not open table");
+		}
+		sortLevels(opened);
+		levels = opened;
+
+		// Tables not in the manifest are leftovers of an interrupted flush or
+		// compaction; logs are replayed in the order they were written
+		ArrayList<Long> wals = new ArrayList<Long>();
+		for (File file : directory.listFiles()) {
+			String name = file.getName();
+			if (name.endsWith(TABLE_SUFFIX) && !live.contains(tableName(name))) {
+				file.delete();
+			} else if (name.startsWith(WAL_PREFIX)) {
+				long seq = Long.parseLong(name.substring(WAL_PREFIX.length(), name.indexOf('.')));
+				wals.add(seq);
+				nextSeq = Math.max(nextSeq, seq + 1);
+			}
+		}
+		Collections.sort(wals);
+		for (Long seq : wals) {
+			replayWal(walFile(seq));
+		}
+
+		// Whatever the logs held goes straight into level 0, after which
+		// the old logs are no longer needed
+		if (!memtable.isEmpty()) {
+			flush(memtable);
+			memtable = new ConcurrentSkipListMap<String, String>();
+		}
+		for (Long seq : wals) {
+			walFile(seq).delete();
+		}
+
+		walFile = walFile(nextSeq++);
+		wal = openWal(walFile);
+
+		background = new Thread(new BackgroundWork(), "LSMEngine-" + directory.getName());
+		background.setDaemon(true);
+		background.start();
+	}
+
+	/**
+	 * Stops the background thread once it has flushed any frozen memtable.
+	 * Must not hold the lock while joining, the flusher needs it to finish.
+	 */
+	private void shutdown() {
+		synchronized (this) {
+			closed = true;
+			notifyAll();
+		}
+		try {
+			background.join();
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+		try {
+			wal.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private void replayWal(File file) throws KVException {
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+			while (true) {
+				byte type = in.readByte();
+				if (type != BATCH) {
+					replayRecord(in, type, memtable);
+					continue;
+				}
+				// Buffered, so that a batch cut short by a crash is dropped whole
+				int count = in.readInt();
+				in.readInt();
+				ConcurrentSkipListMap<String, String> pending = new ConcurrentSkipListMap<String, String>();
+				for (int i = 0; i < count; i++) {
+					type = in.readByte();
+					if (type != PUT && type != DELETE) {
+						return;
+					}
+					replayRecord(in, type, pending);
+				}
+				memtable.putAll(pending);
+			}
+		} catch (EOFException e) {
+			// End of log, or a record torn by a crash
+		} catch (IOException e) {
+			throw ioError("Could not read log " + file);
+		} catch (RuntimeException e) {
+			// Garbage lengths at the end of a torn log
+		} finally {
+			try {
+				if (in != null) {
+					in.close();
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	private static void replayRecord(DataInputStream in, byte type, Map<String, String> into) throws IOException {
+		byte[] keyBytes = new byte[in.readInt()];
+		byte[] valueBytes = new byte[in.readInt()];
+		in.readFully(keyBytes);
+		in.readFully(valueBytes);
+		String key = new String(keyBytes, UTF8);
+		into.put(key, type == DELETE ? SSTable.TOMBSTONE : new String(valueBytes, UTF8));
+	}
+
+	/**
+	 * Writes a frozen memtable out as a new level 0 table and publishes it
+	 */
+	private void flush(ConcurrentSkipListMap<String, String> frozen) throws KVException {
+		long seq;
+		synchronized (this) {
+			seq = nextSeq++;
+		}
+		SSTable table;
+		try {
+			table = SSTable.write(tableFile(0, seq), 0, seq, frozen.entrySet().iterator(), frozen.size());
+		} catch (IOException e) {
+			throw ioError("Could not flush memtable");
+		}
+
+		ArrayList<List<SSTable>> updated = copyLevels();
+		updated.get(0).add(0, table);
+		synchronized (this) {
+			writeManifest(updated);
+			levels = updated;
+		}
+	}
+
+	/**
+	 * @return the inputs of the most urgent compaction, or null if none is due.
+	 * The first table's level is the level being compacted.
+	 */
+	private List<SSTable> pickCompaction(ArrayList<List<SSTable>> current) {
+		ArrayList<SSTable> inputs = new ArrayList<SSTable>();
+		if (current.get(0).size() >= L0_COMPACTION_TRIGGER) {
+			inputs.addAll(current.get(0));
+		} else {
+			long limit = LEVEL_BASE_BYTES;
+			for (int level = 1; level < MAX_LEVELS - 1 && inputs.isEmpty(); level++, limit *= 10) {
+				long bytes = 0;
+				SSTable oldest = null;
+				for (SSTable table : current.get(level)) {
+					bytes += table.size();
+					if (oldest == null || table.seq < oldest.seq) {
+						oldest = table;
+					}
+				}
+				if (bytes > limit) {
+					inputs.add(oldest);
+				}
+			}
+		}
+		if (inputs.isEmpty()) {
+			return null;
+		}
+
+		String first = null;
+		String last = null;
+		for (SSTable table : inputs) {
+			if (table.records() == 0) {
+				continue;
+			}
+			if (first == null || table.firstKey().compareTo(first) < 0) {
+				first = table.firstKey();
+			}
+			if (last == null || table.lastKey().compareTo(last) > 0) {
+				last = table.lastKey();
+			}
+		}
+		if (first != null) {
+			for (SSTable table : current.get(inputs.get(0).level + 1)) {
+				if (table.overlaps(first, last)) {
+					inputs.add(table);
+				}
+			}
+		}
+		return inputs;
+	}
+
+	/**
+	 * Merges the inputs into new tables in the next level. Inputs are
+	 * already ordered from newest to oldest, which is the order in which
+	 * duplicate keys are resolved.
+	 */
+	private void compact(List<SSTable> inputs) throws KVException {
+		int outputLevel = inputs.get(0).level + 1;
+		ArrayList<List<SSTable>> current = levels;
+
+		// Deletions can be forgotten once nothing older could be shadowed
+		boolean dropTombstones = true;
+		for (int level = outputLevel + 1; level < current.size(); level++) {
+			dropTombstones &= current.get(level).isEmpty();
+		}
+
+		ArrayList<Iterator<Map.Entry<String, String>>> sources = new ArrayList<Iterator<Map.Entry<String, String>>>();
+		int expectedRecords = 0;
+		for (SSTable table : inputs) {
+			sources.add(table.iterator());
+			expectedRecords += table.records();
+		}
+		MergeIterator merged = new MergeIterator(sources, dropTombstones);
+
+		ArrayList<SSTable> outputs = new ArrayList<SSTable>();
+		try {
+			while (merged.hasNext()) {
+				long seq;
+				synchronized (this) {
+					seq = nextSeq++;
+				}
+				Iterator<Map.Entry<String, String>> chunk = new LimitIterator(merged, memtableBytes);
+				outputs.add(SSTable.write(tableFile(outputLevel, seq), outputLevel, seq, chunk, expectedRecords));
+			}
+		} catch (IOException e) {
+			for (SSTable table : outputs) {
+				table.file.delete();
+			}
+			throw ioError("Could not write compacted table");
+		}
+
+		ArrayList<List<SSTable>> updated = copyLevels();
+		for (SSTable table : inputs) {
+			updated.get(table.level).remove(table);
+		}
+		updated.get(outputLevel).addAll(outputs);
+		sortLevels(updated);
+		synchronized (this) {
+			writeManifest(updated);
+			levels = updated;
+		}
+		// Readers may still be using the inputs; their mappings stay valid
+		for (SSTable table : inputs) {
+			table.file.delete();
+		}
+	}
+
+	private ArrayList<List<SSTable>> copyLevels() {
+		ArrayList<List<SSTable>> copy = new ArrayList<List<SSTable>>();
+		for (List<SSTable> level : levels) {
+			copy.add(new ArrayList<SSTable>(level));
+		}
+		return copy;
+	}
+
+	private static void sortLevels(ArrayList<List<SSTable>> current) {
+		Collections.sort(current.get(0), new Comparator<SSTable>() {
+			public int compare(SSTable a, SSTable b) {
+				return a.seq > b.seq ? -1 : (a.seq < b.seq ? 1 : 0);
+			}
+		});
+		for (int i = 1; i < current.size(); i++) {
+			Collections.sort(current.get(i), new Comparator<SSTable>() {
+				public int compare(SSTable a, SSTable b) {
+					if (a.records() == 0 || b.records() == 0) {
+						return a.records() - b.records();
+					}
+					return a.firstKey().compareTo(b.firstKey());
+				}
+			});
+		}
+	}
+
+	private ArrayList<String> readManifest() throws KVException {
+		ArrayList<String> live = new ArrayList<String>();
+		File file = new File(directory, MANIFEST);
+		if (!file.exists()) {
+			return live;
+		}
+		BufferedReader in = null;
+		try {
+			in = new BufferedReader(new FileReader(file));
+			String line;
+			while ((line = in.readLine()) != null) {
+				if (line.length() > 0) {
+					live.add(line);
+				}
+			}
+		} catch (IOException e) {
+			throw ioError("Could not read manifest");
+		} finally {
+			try {
+				if (in != null) {
+					in.close();
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		return live;
+	}
+
+	private void writeManifest(ArrayList<List<SSTable>> current) throws KVException {
+		File temp = new File(directory, MANIFEST + ".tmp");
+		FileWriter out = null;
+		try {
+			out = new FileWriter(temp);
+			for (List<SSTable> level : current) {
+				for (SSTable table : level) {
+					out.write(table.level + " " + table.seq + "\n");
+				}
+			}
+			out.close();
+			out = null;
+			RandomAccessFile sync = new RandomAccessFile(temp, "rw");
+			sync.getFD().sync();
+			sync.close();
+		} catch (IOException e) {
+			throw ioError("Could not write manifest");
+		} finally {
+			try {
+				if (out != null) {
+					out.close();
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		if (!temp.renameTo(new File(directory, MANIFEST))) {
+			throw ioError("Could not replace manifest");
+		}
+	}
+
+	private GroupCommitLog openWal(File file) throws KVException {
+		try {
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			raf.seek(raf.length());
+			return new GroupCommitLog(raf.getChannel(), maxCommitBatch, maxCommitWaitMicros,
+					"LSMEngine-commit-" + directory.getName());
+		} catch (IOException e) {
+			throw ioError("Could not open log " + file);
+		}
+	}
+
+	private File walFile(long seq) {
+		return new File(directory, WAL_PREFIX + String.format("%012d", seq) + ".log");
+	}
+
+	private File tableFile(int level, long seq) {
+		return new File(directory, "L" + level + "-" + String.format("%012d", seq) + TABLE_SUFFIX);
+	}
+
+	/**
+	 * @return "level seq", as written in the manifest, for a table file name
+	 */
+	private static String tableName(String fileName) {
+		int dash = fileName.indexOf('-');
+		return Integer.parseInt(fileName.substring(1, dash)) + " "
+				+ Long.parseLong(fileName.substring(dash + 1, fileName.length() - TABLE_SUFFIX.length()));
+	}
+
+	private static KVException ioError(String what) throws KVException {
+		return new KVException(new KVMessage("resp", "IO Error: " + what));
+	}
+
+	/**
+	 * Flushes frozen memtables and runs compactions until the engine is closed
+	 */
+	private class BackgroundWork implements Runnable {
+		public void run() {
+			while (true) {
+				ConcurrentSkipListMap<String, String> frozen;
+				List<SSTable> compaction;
+				synchronized (LSMEngine.this) {
+					while (!closed && immutable == null && (compaction = pickCompaction(levels)) == null) {
+						try {
+							LSMEngine.this.wait();
+						} catch (InterruptedException e) {
+							return;
+						}
+					}
+					if (closed && immutable == null) {
+						return;
+					}
+					frozen = immutable;
+				}
+
+				try {
+					if (frozen != null) {
+						flush(frozen);
+						synchronized (LSMEngine.this) {
+							immutable = null;
+							immutableWalFile.delete();
+							LSMEngine.this.notifyAll();
+						}
+					} else if ((compaction = pickCompaction(levels)) != null) {
+						compact(compaction);
+					}
+				} catch (KVException e) {
+					System.err.println(e.getMsg().getMessage());
+					// Back off before retrying so a full disk does not spin
+					try {
+						Thread.sleep(1000);
+					} catch (InterruptedException ie) {
+						return;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Merges sorted sources into one sorted stream. When several sources
+	 * hold the same key, the value from the earliest source wins.
+	 */
+	static class MergeIterator implements Iterator<Map.Entry<String, String>> {
+		private PriorityQueue<Cursor> queue = null;
+		private boolean dropTombstones = false;
+		private Map.Entry<String, String> nextEntry = null;
+
+		MergeIterator(List<Iterator<Map.Entry<String, String>>> sources, boolean dropTombstones) {
+			this.dropTombstones = dropTombstones;
+			queue = new PriorityQueue<Cursor>(Math.max(1, sources.size()));
+			for (int i = 0; i < sources.size(); i++) {
+				Cursor cursor = new Cursor(sources.get(i), i);
+				if (cursor.advance()) {
+					queue.add(cursor);
+				}
+			}
+			advance();
+		}
+
+		private void advance() {
+			nextEntry = null;
+			while (nextEntry == null && !queue.isEmpty()) {
+				Cursor winner = queue.poll();
+				Map.Entry<String, String> entry = winner.current;
+				// Skip the older versions of the same key in other sources
+				while (!queue.isEmpty() && queue.peek().current.getKey().equals(entry.getKey())) {
+					Cursor older = queue.poll();
+					if (older.advance()) {
+						queue.add(older);
+					}
+				}
+				if (winner.advance()) {
+					queue.add(winner);
+				}
+				if (!(dropTombstones && entry.getValue() == SSTable.TOMBSTONE)) {
+					nextEntry = entry;
+				}
+			}
+		}
+
+		public boolean hasNext() {
+			return nextEntry != null;
+		}
+
+		public Map.Entry<String, String> next() {
+			if (nextEntry == null) {
+				throw new NoSuchElementException();
+			}
+			Map.Entry<String, String> entry = nextEntry;
+			advance();
+			return entry;
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+		private static class Cursor implements Comparable<Cursor> {
+			Iterator<Map.Entry<String, String>> source;
+			int rank;
+			Map.Entry<String, String> current = null;
+
+			Cursor(Iterator<Map.Entry<String, String>> source, int rank) {
+				this.source = source;
+				this.rank = rank;
+			}
+
+			boolean advance() {
+				current = source.hasNext() ? source.next() : null;
+				return current != null;
+			}
+
+			public int compareTo(Cursor other) {
+				int cmp = current.getKey().compareTo(other.current.getKey());
+				return cmp != 0 ? cmp : rank - other.rank;
+			}
+		}
+	}
+
+	/**
+	 * Passes entries through until roughly maxBytes of keys and values have
+	 * gone by; used to split compaction output into several tables.
+	 */
+	private static class LimitIterator implements Iterator<Map.Entry<String, String>> {
+		private Iterator<Map.Entry<String, String>> source;
+		private long remaining;
+
+		LimitIterator(Iterator<Map.Entry<String, String>> source, long maxBytes) {
+			this.source = source;
+			this.remaining = maxBytes;
+		}
+
+		public boolean hasNext() {
+			return remaining > 0 && source.hasNext();
+		}
+
+		public Map.Entry<String, String> next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			Map.Entry<String, String> entry = source.next();
+			remaining -= entry.getKey().length() + entry.getValue().length() + 9;
+			return entry;
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+}
@@ -0,0 +1,155 @@
+package edu.berkeley.cs162;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class LSMEngineTest {
+	static final String DIR = "LSMEngineTest.data";
+	LSMEngine engine = null;
+
+	@Before
+	public void setUp() throws KVException {
+		deleteDir();
+		engine = new LSMEngine(DIR);
+	}
+
+	@After
+	public void tearDown() {
+		engine.close();
+		deleteDir();
+	}
+
+	private void deleteDir() {
+		File dir = new File(DIR);
+		if (dir.isDirectory()) {
+			for (File file : dir.listFiles()) {
+				file.delete();
+			}
+			dir.delete();
+		}
+	}
+
+	@Test
+	public void putGetRemove() throws KVException {
+		engine.put("seven", "7");
+		engine.put("eight", "8");
+		engine.put("seven", "VII");
+		assertEquals("VII", engine.get("seven"));
+		assertEquals("8", engine.get("eight"));
+
+		assertTrue(engine.remove("eight"));
+		assertFalse(engine.remove("eight"));
+		assertNull(engine.get("eight"));
+		assertNull(engine.get("nine"));
+	}
+
+	@Test
+	public void survivesReopen() throws KVException {
+		engine.put("seven", "7");
+		engine.put("eight", "8");
+		engine.remove("seven");
+		engine.put("\u00fcber", "\u00e9t\u00e9");
+		engine.close();
+
+		engine = new LSMEngine(DIR);
+		assertNull(engine.get("seven"));
+		assertEquals("8", engine.get("eight"));
+		assertEquals("\u00e9t\u00e9", engine.get("\u00fcber"));
+	}
+
+	@Test
+	public void appliesBatchesWhole() throws Exception {
+		engine.put("seven", "7");
+		WriteBatch batch = new WriteBatch();
+		batch.put("eight", "8").delete("seven").delete("nine").put("eight", "VIII");
+		assertEquals("[true, true, false, false]", Arrays.toString(engine.apply(batch)));
+		assertNull(engine.get("seven"));
+		assertEquals("VIII", engine.get("eight"));
+		engine.close();
+
+		// A batch torn by a crash is dropped whole
+		File wal = null;
+		for (File file : new File(DIR).listFiles()) {
+			if (file.getName().startsWith("wal-") && file.length() > 0) {
+				wal = file;
+			}
+		}
+		RandomAccessFile raf = new RandomAccessFile(wal, "rw");
+		raf.setLength(raf.length() - 3);
+		raf.close();
+		engine = new LSMEngine(DIR);
+		assertEquals("7", engine.get("seven"));
+		assertNull(engine.get("eight"));
+	}
+
+	@Test
+	public void flushesAndCompactsTables() throws KVException {
+		engine.close();
+		engine = new LSMEngine(DIR, 16 * 1024);
+
+		for (int round = 0; round < 20; round++) {
+			for (int i = 0; i < 500; i++) {
+				engine.put("key" + i, "value" + round);
+			}
+		}
+		for (int i = 0; i < 500; i += 2) {
+			assertTrue(engine.remove("key" + i));
+		}
+		assertEquals("value19", engine.get("key41"));
+		assertNull(engine.get("key42"));
+
+		engine.close();
+		engine = new LSMEngine(DIR, 16 * 1024);
+		assertEquals("value19", engine.get("key41"));
+		assertNull(engine.get("key42"));
+		assertFalse(engine.remove("key42"));
+	}
+
+	@Test
+	public void reportsCreatedKeysAcrossFlushes() throws Exception {
+		engine.close();
+		engine = new LSMEngine(DIR, 16 * 1024);
+
+		// Writers race each other and the freezes of a small memtable
+		final AtomicInteger created = new AtomicInteger();
+		final AtomicInteger failed = new AtomicInteger();
+		Thread[] writers = new Thread[4];
+		for (int t = 0; t < writers.length; t++) {
+			writers[t] = new Thread() {
+				public void run() {
+					try {
+						for (int round = 0; round < 3; round++) {
+							for (int i = 0; i < 500; i++) {
+								if (engine.put("key" + i, "value" + round)) {
+									created.incrementAndGet();
+								}
+							}
+						}
+					} catch (KVException e) {
+						failed.incrementAndGet();
+					}
+				}
+			};
+			writers[t].start();
+		}
+		for (Thread writer : writers) {
+			writer.join();
+		}
+		assertEquals(0, failed.get());
+		assertEquals(500, created.get());
+
+		for (int i = 0; i < 500; i++) {
+			assertTrue(engine.remove("key" + i));
+			assertFalse(engine.remove("key" + i));
+		}
+		assertTrue(engine.put("key7", "7"));
+	}
+}
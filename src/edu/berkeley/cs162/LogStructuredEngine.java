@@ -0,0 +1,815 @@
+/**
+ * Log-structured, disk-backed StorageEngine
+ * 
+ * Copyright (c) 2012, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *    
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+
+/**
+ * Every put and del is appended to the active segment file, which is
+ * memory mapped, and an in-memory index maps each live key to the location
+ * of its latest record. Gets decode the value straight out of the mapped
+ * pages. When the active segment is full it is sealed and a new one is
+ * started; sealed segments that are mostly garbage get compacted by copying
+ * their live records forward and deleting the file.
+ *
+ * Record layout: [type:1][keyLength:4][valueLength:4][crc:4][key][value]
+ * A type of 0 marks the end of the written part of a segment.
+ *
+ * A WriteBatch is written as a BATCH record, whose value is [count:4]
+ * [bytes:4], followed by the count records of the batch. The records go
+ * in first and the BATCH type byte last, and recovery only applies a
+ * batch whose records are all complete, so a crash in the middle leaves
+ * none of it. A batch never spans two segments.
+ *
+ * Given a ValueCompressor, values it manages to shrink are stored
+ * compressed, in records of type PUT_COMPRESSED. They stay compressed in
+ * the segments and through compaction, and are only inflated by get().
+ *
+ * Data is written into the page cache, so it survives a crash of the
+ * process; call sync() to also survive a crash of the machine. Or give the
+ * engine a group commit batch size, and each put, remove and apply returns
+ * only once its segment has been forced to the device. Writers wait for
+ * that outside the engine lock on a GroupCommit, whose thread forces the
+ * segments written by a whole batch of writers at once, so concurrent
+ * writers share one force() the way GroupCommitLog writers share one
+ * fsync. A failed force fails the writes of its batch only; they are
+ * still in the page cache, and the next force or sync() of their segment
+ * may yet make them durable.
+ */
+public class LogStructuredEngine implements StorageEngine {
+	private static final byte PUT = 1;
+	private static final byte DELETE = 2;
+	private static final byte PUT_COMPRESSED = 3;
+	private static final byte BATCH = 4;
+	private static final int HEADER_SIZE = 13;
+
+	public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+	// A segment must be able to hold the largest record KVServer accepts
+	private static final int MIN_SEGMENT_SIZE = 2 * 1024 * 1024;
+	// Sealed segments with less live data than this fraction get compacted
+	private static final double COMPACTION_THRESHOLD = 0.5;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final String SEGMENT_PREFIX = "segment-";
+	private static final String SEGMENT_SUFFIX = ".log";
+	// Per thread, so that get() decodes a value straight out of the mapped
+	// pages into chars that are reused, and only copied into the String.
+	// The buffer keeps the size of the largest value the thread has read.
+	private static final ThreadLocal<CharsetDecoder> DECODER = new ThreadLocal<CharsetDecoder>() {
+		protected CharsetDecoder initialValue() {
+			// Like new String(bytes, UTF8) does
+			return UTF8.newDecoder().onMalformedInput(CodingErrorAction.REPLACE)
+					.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		}
+	};
+	private static final ThreadLocal<CharBuffer> CHARS = new ThreadLocal<CharBuffer>();
+
+	private File directory = null;
+	private int segmentSize = DEFAULT_SEGMENT_SIZE;
+	private ValueCompressor compressor = null;
+	// Compressed values on disk can be read even without a compressor
+	private ValueCompressor decompressor = null;
+
+	// key -> (segment id << 32 | offset of the key's latest record)
+	// Gets read both maps without locking; appends are serialized on this
+	private ConcurrentHashMap<String, Long> index = new ConcurrentHashMap<String, Long>();
+	private ConcurrentHashMap<Integer, Segment> segments = new ConcurrentHashMap<Integer, Segment>();
+	private Segment active = null;
+	// Set when append() starts a new segment, so sealed ones get compacted
+	private boolean rolled = false;
+	// Forces written segments for put, remove and apply, or null to leave
+	// them in the page cache until sync()
+	private Syncer syncer = null;
+	// Segments written since the last write was handed to the syncer
+	private HashSet<Segment> touched = new HashSet<Segment>();
+
+	public LogStructuredEngine(String directory) throws KVException {
+		this(directory, DEFAULT_SEGMENT_SIZE);
+	}
+
+	/**
+	 * Opens (or creates) the segment files in directory and rebuilds the
+	 * index by scanning them in order.
+	 * @param directory where segment files are kept
+	 * @param segmentSize size in bytes of each mapped segment file
+	 * @throws KVException if the segment files cannot be opened
+	 */
+	public LogStructuredEngine(String directory, int segmentSize) throws KVException {
+		this(directory, segmentSize, null);
+	}
+
+	/**
+	 * @param compressor used to compress values as they are written, or
+	 * null to store them as is. Compressed values already in the segments
+	 * can be read either way.
+	 */
+	public LogStructuredEngine(String directory, int segmentSize, ValueCompressor compressor) throws KVException {
+		this(directory, segmentSize, compressor, 0, 0);
+	}
+
+	/**
+	 * @param maxCommitBatch most writes made durable by one force of their
+	 * segments, or 0 to not wait for writes to be durable
+	 * @param maxCommitWaitMicros how long a write may wait for more writes
+	 * to share its force; 0 to only batch what comes in while the previous
+	 * force is running
+	 */
+	public LogStructuredEngine(String directory, int segmentSize, ValueCompressor compressor, int maxCommitBatch,
+			long maxCommitWaitMicros) throws KVException {
+		this.directory = new File(directory);
+		this.segmentSize = Math.max(segmentSize, MIN_SEGMENT_SIZE);
+		this.compressor = compressor;
+		decompressor = compressor != null ? compressor : new ValueCompressor();
+
+		if (!this.directory.isDirectory() && !this.directory.mkdirs()) {
+			throw ioError("Could not create " + directory);
+		}
+		recover();
+		if (maxCommitBatch > 0) {
+			syncer = new Syncer(maxCommitBatch, maxCommitWaitMicros, "LogStructuredEngine sync " + directory);
+		}
+	}
+
+	public String get(String key) throws KVException {
+		while (true) {
+			Long location = index.get(key);
+			if (location == null) {
+				return null;
+			}
+			Segment segment = segments.get(segmentId(location));
+			if (segment == null) {
+				// Compaction moved the record between our two lookups
+				continue;
+			}
+			ByteBuffer record = segment.buffer.duplicate();
+			int offset = offset(location);
+			int keyLength = record.getInt(offset + 1);
+			int valueLength = record.getInt(offset + 5);
+
+			record.position(offset + HEADER_SIZE + keyLength);
+			record.limit(record.position() + valueLength);
+			if (record.get(offset) == PUT_COMPRESSED) {
+				byte[] value = new byte[valueLength];
+				record.get(value);
+				record = ByteBuffer.wrap(decompress(value));
+			}
+			return decode(record);
+		}
+	}
+
+	/**
+	 * @return the UTF-8 bytes left in bytes as a String
+	 */
+	private static String decode(ByteBuffer bytes) {
+		CharsetDecoder decoder = DECODER.get();
+		// UTF-8 never takes less than a byte per char
+		int length = (int) (bytes.remaining() * (double) decoder.maxCharsPerByte());
+		CharBuffer chars = CHARS.get();
+		if (chars == null || chars.capacity() < length) {
+			chars = CharBuffer.allocate(length);
+			CHARS.set(chars);
+		}
+		chars.clear();
+		decoder.reset();
+		// Cannot overflow, and errors are replaced
+		decoder.decode(bytes, chars, true);
+		decoder.flush(chars);
+		chars.flip();
+		return chars.toString();
+	}
+
+	public boolean put(String key, String value) throws KVException {
+		Long previous;
+		GroupCommit.Commit commit;
+		synchronized (this) {
+			Record record = putRecord(key, value);
+			long location = append(record.type, record.keyBytes, record.valueBytes);
+			previous = index.put(key, location);
+			release(previous);
+			maybeCompact();
+			commit = written();
+		}
+		awaitDurable(commit);
+		return previous == null;
+	}
+
+	public boolean remove(String key) throws KVException {
+		GroupCommit.Commit commit;
+		synchronized (this) {
+			Long location = index.get(key);
+			if (location == null) {
+				return false;
+			}
+			append(DELETE, key.getBytes(UTF8), new byte[0]);
+			index.remove(key);
+			release(location);
+			maybeCompact();
+			commit = written();
+		}
+		awaitDurable(commit);
+		return true;
+	}
+
+	public boolean[] apply(WriteBatch batch) throws KVException {
+		boolean[] changed;
+		GroupCommit.Commit commit;
+		synchronized (this) {
+			changed = appendBatch(batch);
+			commit = written();
+		}
+		awaitDurable(commit);
+		return changed;
+	}
+
+	private boolean[] appendBatch(WriteBatch batch) throws KVException {
+		List<WriteBatch.Op> ops = batch.ops();
+		boolean[] changed = new boolean[ops.size()];
+		// Whether each key touched so far exists once the batch is applied
+		HashMap<String, Boolean> exists = new HashMap<String, Boolean>();
+		ArrayList<Record> records = new ArrayList<Record>();
+		int batchBytes = 0;
+		for (int i = 0; i < changed.length; i++) {
+			WriteBatch.Op op = ops.get(i);
+			Boolean known = exists.get(op.key);
+			boolean existed = known != null ? known.booleanValue() : index.containsKey(op.key);
+			Record record;
+			if (op.isDelete()) {
+				changed[i] = existed;
+				if (!existed) {
+					continue;
+				}
+				record = new Record(DELETE, op.key, op.key.getBytes(UTF8), new byte[0]);
+			} else {
+				changed[i] = !existed;
+				record = putRecord(op.key, op.value);
+			}
+			exists.put(op.key, !op.isDelete());
+			records.add(record);
+			batchBytes += record.size();
+		}
+		if (records.isEmpty()) {
+			return changed;
+		}
+
+		int headerSize = HEADER_SIZE + 8;
+		makeRoom(headerSize + batchBytes);
+		int start = active.writePosition;
+		active.writePosition += headerSize;
+		long[] locations = new long[records.size()];
+		for (int i = 0; i < locations.length; i++) {
+			Record record = records.get(i);
+			locations[i] = append(record.type, record.keyBytes, record.valueBytes);
+		}
+		// Only now does the batch count as written
+		ByteBuffer summary = ByteBuffer.allocate(8);
+		summary.putInt(records.size());
+		summary.putInt(batchBytes);
+		write(start, BATCH, new byte[0], summary.array());
+
+		for (int i = 0; i < locations.length; i++) {
+			Record record = records.get(i);
+			if (record.type == DELETE) {
+				release(index.remove(record.key));
+			} else {
+				release(index.put(record.key, locations[i]));
+			}
+		}
+		maybeCompact();
+		return changed;
+	}
+
+	public Iterator<Map.Entry<String, String>> iterator() {
+		return new EngineIterator(index.keys()) {
+			String lookup(String key) {
+				try {
+					return get(key);
+				} catch (KVException e) {
+					throw new IllegalStateException(e.getMsg().getMessage());
+				}
+			}
+		};
+	}
+
+	public synchronized void clear() throws KVException {
+		// Segment ids are never reused, so a racing get cannot mistake a
+		// new segment for the one its location pointed into
+		int nextId = active.id + 1;
+		closeSegments(true);
+		index = new ConcurrentHashMap<String, Long>();
+		active = createSegment(nextId);
+	}
+
+	/**
+	 * Forces all segments out to the storage device
+	 */
+	public synchronized void sync() {
+		for (Segment segment : segments.values()) {
+			segment.buffer.force();
+		}
+	}
+
+	public synchronized void close() {
+		sync();
+		if (syncer != null) {
+			syncer.stop();
+		}
+		closeSegments(false);
+	}
+
+	/**
+	 * @return number of live keys
+	 */
+	public int size() {
+		return index.size();
+	}
+
+	/**
+	 * @return number of forces the group commit has done
+	 */
+	long groupSyncs() {
+		return syncer == null ? 0 : syncer.syncs();
+	}
+
+	/**
+	 * Copies the live records out of every sealed segment whose live data
+	 * has dropped below the compaction threshold, then deletes the segment.
+	 */
+	public synchronized void compact() throws KVException {
+		ArrayList<Integer> ids = new ArrayList<Integer>(segments.keySet());
+		Collections.sort(ids);
+		for (Integer id : ids) {
+			Segment segment = segments.get(id);
+			if (segment == active) {
+				continue;
+			}
+			if (segment.liveBytes < segment.writePosition * COMPACTION_THRESHOLD) {
+				compactSegment(segment, id.intValue() != ids.get(0).intValue());
+			}
+		}
+	}
+
+	private void maybeCompact() throws KVException {
+		if (rolled) {
+			rolled = false;
+			compact();
+		}
+	}
+
+	/**
+	 * @param keepTombstones whether older segments still exist that might
+	 * hold a put that a delete in this segment is shadowing
+	 */
+	private void compactSegment(Segment segment, boolean keepTombstones) throws KVException {
+		ByteBuffer records = segment.buffer.duplicate();
+		int offset = 0;
+		while (offset < segment.writePosition) {
+			byte type = records.get(offset);
+			int keyLength = records.getInt(offset + 1);
+			int valueLength = records.getInt(offset + 5);
+			int recordSize = HEADER_SIZE + keyLength + valueLength;
+
+			byte[] keyBytes = new byte[keyLength];
+			records.position(offset + HEADER_SIZE);
+			records.get(keyBytes);
+			String key = new String(keyBytes, UTF8);
+			Long current = index.get(key);
+
+			if (type != DELETE && current != null && current.longValue() == location(segment.id, offset)) {
+				byte[] valueBytes = new byte[valueLength];
+				records.get(valueBytes);
+				long moved = append(type, keyBytes, valueBytes);
+				index.put(key, moved);
+			} else if (type == DELETE && current == null && keepTombstones) {
+				append(DELETE, keyBytes, new byte[0]);
+			}
+			offset += recordSize;
+		}
+		if (syncer != null) {
+			// The copies must be on the device before the originals go
+			sync();
+		}
+		segments.remove(segment.id);
+		segment.close(true);
+	}
+
+	/**
+	 * Appends a record to the active segment, rolling over to a new segment
+	 * if the record does not fit.
+	 * @return location of the new record
+	 */
+	private long append(byte type, byte[] keyBytes, byte[] valueBytes) throws KVException {
+		int recordSize = HEADER_SIZE + keyBytes.length + valueBytes.length;
+		makeRoom(recordSize);
+		int offset = active.writePosition;
+		write(offset, type, keyBytes, valueBytes);
+		active.writePosition += recordSize;
+		if (type != DELETE) {
+			active.liveBytes += recordSize;
+		}
+		return location(active.id, offset);
+	}
+
+	/**
+	 * Starts a new segment unless the active one has bytes to spare
+	 */
+	private void makeRoom(int bytes) throws KVException {
+		if (bytes > segmentSize) {
+			throw ioError("Record too large for segment");
+		}
+		if (active.writePosition + bytes > active.buffer.capacity()) {
+			// The rest of the file stays zeroed, which reads back as END
+			active = createSegment(active.id + 1);
+			rolled = true;
+		}
+	}
+
+	/**
+	 * Writes a record at offset in the active segment
+	 */
+	private void write(int offset, byte type, byte[] keyBytes, byte[] valueBytes) {
+		CRC32 crc = new CRC32();
+		crc.update(keyBytes);
+		crc.update(valueBytes);
+
+		ByteBuffer out = active.buffer.duplicate();
+		out.position(offset + 1);
+		out.putInt(keyBytes.length);
+		out.putInt(valueBytes.length);
+		out.putInt((int) crc.getValue());
+		out.put(keyBytes);
+		out.put(valueBytes);
+		// Written last so that a torn record never looks complete
+		out.put(offset, type);
+		if (syncer != null) {
+			touched.add(active);
+		}
+	}
+
+	/**
+	 * Called with the lock held once an operation has written its records
+	 * @return to pass to awaitDurable() once the lock is released
+	 */
+	private GroupCommit.Commit written() throws KVException {
+		if (syncer == null) {
+			return null;
+		}
+		Segment[] written = touched.toArray(new Segment[touched.size()]);
+		touched.clear();
+		try {
+			return syncer.enqueue(written);
+		} catch (IOException e) {
+			throw ioError("Store is closed");
+		}
+	}
+
+	private void awaitDurable(GroupCommit.Commit commit) throws KVException {
+		if (commit == null) {
+			return;
+		}
+		try {
+			commit.await();
+		} catch (IOException e) {
+			throw ioError("Could not force segment: " + e.getMessage());
+		}
+	}
+
+	private Record putRecord(String key, String value) {
+		byte[] valueBytes = value.getBytes(UTF8);
+		byte type = PUT;
+		byte[] compressed = compressor == null ? null : compressor.compress(valueBytes);
+		if (compressed != null) {
+			type = PUT_COMPRESSED;
+			valueBytes = compressed;
+		}
+		return new Record(type, key, key.getBytes(UTF8), valueBytes);
+	}
+
+	/**
+	 * Marks the record at location as garbage
+	 */
+	private void release(Long location) {
+		if (location == null) {
+			return;
+		}
+		Segment segment = segments.get(segmentId(location));
+		if (segment != null) {
+			ByteBuffer record = segment.buffer.duplicate();
+			int offset = offset(location);
+			segment.liveBytes -= HEADER_SIZE + record.getInt(offset + 1) + record.getInt(offset + 5);
+		}
+	}
+
+	/**
+	 * Maps every segment file in the directory and replays its records, in
+	 * order, into the index. Scanning of a segment stops at the first
+	 * record that is incomplete or fails its checksum.
+	 */
+	private void recover() throws KVException {
+		File[] files = directory.listFiles();
+		ArrayList<Integer> ids = new ArrayList<Integer>();
+		for (File file : files) {
+			String name = file.getName();
+			if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+				try {
+					ids.add(Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())));
+				} catch (NumberFormatException e) {
+					// Not one of ours
+				}
+			}
+		}
+		Collections.sort(ids);
+
+		for (Integer id : ids) {
+			Segment segment = openSegment(id, segmentFile(id), 0);
+			replay(segment);
+		}
+		if (ids.isEmpty()) {
+			active = createSegment(0);
+		} else {
+			active = segments.get(ids.get(ids.size() - 1));
+			clearTail(active);
+		}
+	}
+
+	private void replay(Segment segment) {
+		ByteBuffer records = segment.buffer.duplicate();
+		int offset = 0;
+		while (true) {
+			Record record = read(records, offset);
+			if (record == null) {
+				break;
+			}
+			if (record.type != BATCH) {
+				apply(segment, offset, record);
+				offset += record.size();
+				continue;
+			}
+
+			// All of the batch, or none of it
+			ByteBuffer summary = ByteBuffer.wrap(record.valueBytes);
+			int count = summary.remaining() == 8 ? summary.getInt() : -1;
+			int batchBytes = count >= 0 ? summary.getInt() : -1;
+			int first = offset + record.size();
+			ArrayList<Record> members = new ArrayList<Record>();
+			int position = first;
+			while (members.size() < count) {
+				Record member = read(records, position);
+				if (member == null || member.type == BATCH) {
+					break;
+				}
+				members.add(member);
+				position += member.size();
+			}
+			if (members.size() != count || position - first != batchBytes) {
+				break;
+			}
+			position = first;
+			for (Record member : members) {
+				apply(segment, position, member);
+				position += member.size();
+			}
+			offset = position;
+		}
+		segment.writePosition = offset;
+	}
+
+	/**
+	 * @return the record at offset, or null if there is no complete one
+	 */
+	private static Record read(ByteBuffer records, int offset) {
+		int limit = records.capacity();
+		if (offset + HEADER_SIZE > limit) {
+			return null;
+		}
+		byte type = records.get(offset);
+		if (type != PUT && type != DELETE && type != PUT_COMPRESSED && type != BATCH) {
+			// Zeroed tail of the segment, or garbage left by a crash
+			return null;
+		}
+		int keyLength = records.getInt(offset + 1);
+		int valueLength = records.getInt(offset + 5);
+		int crcValue = records.getInt(offset + 9);
+		if (keyLength < 0 || valueLength < 0 || offset + HEADER_SIZE + (long) keyLength + valueLength > limit) {
+			return null;
+		}
+
+		byte[] keyBytes = new byte[keyLength];
+		byte[] valueBytes = new byte[valueLength];
+		records.position(offset + HEADER_SIZE);
+		records.get(keyBytes);
+		records.get(valueBytes);
+		CRC32 crc = new CRC32();
+		crc.update(keyBytes);
+		crc.update(valueBytes);
+		if ((int) crc.getValue() != crcValue) {
+			return null;
+		}
+		return new Record(type, new String(keyBytes, UTF8), keyBytes, valueBytes);
+	}
+
+	/**
+	 * Replays the record at offset into the index
+	 */
+	private void apply(Segment segment, int offset, Record record) {
+		if (record.type != DELETE) {
+			segment.liveBytes += record.size();
+			release(index.put(record.key, location(segment.id, offset)));
+		} else {
+			release(index.remove(record.key));
+		}
+	}
+
+	/**
+	 * Zeroes whatever a crash left behind the last complete record of the
+	 * active segment, e.g. the records of a batch that never got its BATCH
+	 * type byte, so that they cannot come back once new records are written
+	 * over the start of them.
+	 */
+	private static void clearTail(Segment segment) {
+		MappedByteBuffer buffer = segment.buffer;
+		int end = buffer.capacity();
+		while (end > segment.writePosition && buffer.get(end - 1) == 0) {
+			end--;
+		}
+		for (int i = segment.writePosition; i < end; i++) {
+			buffer.put(i, (byte) 0);
+		}
+	}
+
+	private Segment createSegment(int id) throws KVException {
+		File file = segmentFile(id);
+		if (file.exists() && !file.delete()) {
+			throw ioError("Could not replace " + file);
+		}
+		return openSegment(id, file, segmentSize);
+	}
+
+	private Segment openSegment(int id, File file, int minimumSize) throws KVException {
+		Segment segment = new Segment();
+		segment.id = id;
+		segment.file = file;
+		try {
+			segment.raf = new RandomAccessFile(file, "rw");
+			long size = Math.max(segment.raf.length(), minimumSize);
+			segment.buffer = segment.raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+		} catch (IOException e) {
+			segment.close(false);
+			throw ioError("Could not map " + file);
+		}
+		segments.put(id, segment);
+		return segment;
+	}
+
+	private void closeSegments(boolean delete) {
+		Iterator<Map.Entry<Integer, Segment>> iter = segments.entrySet().iterator();
+		while (iter.hasNext()) {
+			iter.next().getValue().close(delete);
+			iter.remove();
+		}
+	}
+
+	private File segmentFile(int id) {
+		return new File(directory, SEGMENT_PREFIX + String.format("%08d", id) + SEGMENT_SUFFIX);
+	}
+
+	private static long location(int segmentId, int offset) {
+		return ((long) segmentId << 32) | (offset & 0xffffffffL);
+	}
+
+	private static int segmentId(long location) {
+		return (int) (location >>> 32);
+	}
+
+	private static int offset(long location) {
+		return (int) location;
+	}
+
+	private byte[] decompress(byte[] value) throws KVException {
+		try {
+			return decompressor.decompress(value);
+		} catch (DataFormatException e) {
+			throw ioError("Corrupt compressed value");
+		}
+	}
+
+	private static KVException ioError(String what) throws KVException {
+		return new KVException(new KVMessage("resp", "IO Error: " + what));
+	}
+
+	private static class Record {
+		final byte type;
+		final String key;
+		final byte[] keyBytes;
+		final byte[] valueBytes;
+
+		Record(byte type, String key, byte[] keyBytes, byte[] valueBytes) {
+			this.type = type;
+			this.key = key;
+			this.keyBytes = keyBytes;
+			this.valueBytes = valueBytes;
+		}
+
+		int size() {
+			return HEADER_SIZE + keyBytes.length + valueBytes.length;
+		}
+	}
+
+	/**
+	 * Forces the segments written by a batch of writers, each of which
+	 * enqueues the segments it wrote to
+	 */
+	private static class Syncer extends GroupCommit<Segment[]> {
+		private volatile long syncs = 0;
+
+		Syncer(int maxBatch, long maxWaitMicros, String name) {
+			super(maxBatch, maxWaitMicros, name);
+		}
+
+		void commit(List<Segment[]> batch) throws IOException {
+			HashSet<Segment> written = new HashSet<Segment>();
+			for (Segment[] segments : batch) {
+				Collections.addAll(written, segments);
+			}
+			try {
+				for (Segment segment : written) {
+					segment.buffer.force();
+				}
+			} catch (RuntimeException e) {
+				// MappedByteBuffer reports IO errors unchecked
+				throw new IOException(e.getMessage(), e);
+			}
+			syncs++;
+		}
+
+		long syncs() {
+			return syncs;
+		}
+	}
+
+	private static class Segment {
+		int id;
+		File file;
+		RandomAccessFile raf;
+		MappedByteBuffer buffer;
+		int writePosition = 0;
+		long liveBytes = 0;
+
+		void close(boolean delete) {
+			try {
+				if (raf != null) {
+					raf.close();
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			// The mapping itself is released once buffer is garbage collected
+			if (delete) {
+				file.delete();
+			}
+		}
+	}
+}
@@ -0,0 +1,197 @@
+package edu.berkeley.cs162;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class LogStructuredEngineTest {
+	static final String DIR = "LogStructuredEngineTest.data";
+	LogStructuredEngine engine = null;
+
+	@Before
+	public void setUp() throws KVException {
+		deleteDir();
+		engine = new LogStructuredEngine(DIR);
+	}
+
+	@After
+	public void tearDown() {
+		engine.close();
+		deleteDir();
+	}
+
+	private void deleteDir() {
+		File dir = new File(DIR);
+		if (dir.isDirectory()) {
+			for (File file : dir.listFiles()) {
+				file.delete();
+			}
+			dir.delete();
+		}
+	}
+
+	@Test
+	public void putGetRemove() throws KVException {
+		engine.put("seven", "7");
+		engine.put("eight", "8");
+		engine.put("seven", "VII");
+		assertEquals("VII", engine.get("seven"));
+		assertEquals("8", engine.get("eight"));
+
+		assertTrue(engine.remove("eight"));
+		assertFalse(engine.remove("eight"));
+		assertNull(engine.get("eight"));
+		assertEquals(1, engine.size());
+
+		// Values are decoded into a buffer each thread reuses
+		char[] longer = new char[1000];
+		Arrays.fill(longer, '\u00e9');
+		engine.put("long", new String(longer));
+		engine.put("smile", "\ud83d\ude00");
+		assertEquals(new String(longer), engine.get("long"));
+		assertEquals("\ud83d\ude00", engine.get("smile"));
+		assertEquals("VII", engine.get("seven"));
+	}
+
+	@Test
+	public void survivesReopen() throws KVException {
+		engine.put("seven", "7");
+		engine.put("eight", "8");
+		engine.remove("seven");
+		engine.put("\u00fcber", "\u00e9t\u00e9");
+		engine.close();
+
+		engine = new LogStructuredEngine(DIR);
+		assertNull(engine.get("seven"));
+		assertEquals("8", engine.get("eight"));
+		assertEquals("\u00e9t\u00e9", engine.get("\u00fcber"));
+	}
+
+	@Test
+	public void appliesBatchesWhole() throws Exception {
+		engine.put("seven", "7");
+		WriteBatch batch = new WriteBatch();
+		batch.put("eight", "8").delete("seven").delete("nine").put("eight", "VIII");
+		assertEquals("[true, true, false, false]", Arrays.toString(engine.apply(batch)));
+		assertNull(engine.get("seven"));
+		assertEquals("VIII", engine.get("eight"));
+		engine.close();
+
+		// As if the process died before the BATCH type byte was written,
+		// which is right after the put of seven
+		RandomAccessFile raf = new RandomAccessFile(new File(DIR, "segment-00000000.log"), "rw");
+		raf.seek(13 + "seven".length() + "7".length());
+		raf.write(0);
+		raf.close();
+		engine = new LogStructuredEngine(DIR);
+		assertEquals("7", engine.get("seven"));
+		assertNull(engine.get("eight"));
+
+		// Its records must not come back once new ones are written over them
+		engine.put("nine", "9");
+		engine.close();
+		engine = new LogStructuredEngine(DIR);
+		assertEquals("7", engine.get("seven"));
+		assertEquals("9", engine.get("nine"));
+		assertNull(engine.get("eight"));
+	}
+
+	@Test
+	public void compressesLargeValues() throws KVException {
+		StringBuilder value = new StringBuilder();
+		for (int i = 0; i < 10000; i++) {
+			value.append("repetitive ");
+		}
+		engine.close();
+		ValueCompressor compressor = new ValueCompressor();
+		engine = new LogStructuredEngine(DIR, 1, compressor);
+		engine.put("big", value.toString());
+		engine.put("small", "not worth compressing");
+		assertEquals(value.toString(), engine.get("big"));
+		assertTrue(compressor.compressionRatio() < 0.1);
+
+		// Readable without a compressor too
+		engine.close();
+		engine = new LogStructuredEngine(DIR);
+		assertEquals(value.toString(), engine.get("big"));
+		assertEquals("not worth compressing", engine.get("small"));
+	}
+
+	@Test
+	public void compactsOverwrittenSegments() throws KVException {
+		StringBuilder value = new StringBuilder();
+		for (int i = 0; i < 4096; i++) {
+			value.append('v');
+		}
+		engine.close();
+		engine = new LogStructuredEngine(DIR, 1);
+
+		// Roughly 20 segments worth of overwrites of the same 100 keys
+		for (int round = 0; round < 100; round++) {
+			for (int i = 0; i < 100; i++) {
+				engine.put("key" + i, value.toString() + round);
+			}
+		}
+		assertTrue(new File(DIR).list().length <= 3);
+
+		engine.close();
+		engine = new LogStructuredEngine(DIR, 1);
+		assertEquals(100, engine.size());
+		assertEquals(value.toString() + 99, engine.get("key42"));
+	}
+
+	@Test
+	public void groupCommitsDurableWrites() throws Exception {
+		engine.close();
+		engine = new LogStructuredEngine(DIR, 0, null, 16, 500);
+
+		final int threads = 8;
+		final int puts = 100;
+		final ArrayList<Throwable> errors = new ArrayList<Throwable>();
+		ArrayList<Thread> writers = new ArrayList<Thread>();
+		for (int t = 0; t < threads; t++) {
+			final int id = t;
+			Thread writer = new Thread(new Runnable() {
+				public void run() {
+					try {
+						for (int i = 0; i < puts; i++) {
+							engine.put("key" + id + "." + i, "value" + i);
+						}
+						WriteBatch batch = new WriteBatch();
+						batch.delete("key" + id + ".0").put("key" + id + ".1", "one");
+						engine.apply(batch);
+						engine.remove("key" + id + ".2");
+					} catch (KVException e) {
+						synchronized (errors) {
+							errors.add(e);
+						}
+					}
+				}
+			});
+			writer.start();
+			writers.add(writer);
+		}
+		for (Thread writer : writers) {
+			writer.join();
+		}
+		assertTrue(errors.isEmpty());
+		// Each write returned only once forced, but writers shared forces
+		long syncs = engine.groupSyncs();
+		assertTrue(syncs > 0);
+		assertTrue(syncs < threads * (puts + 2));
+
+		engine.close();
+		engine = new LogStructuredEngine(DIR);
+		assertEquals(threads * (puts - 2), engine.size());
+		assertEquals("one", engine.get("key7.1"));
+		assertNull(engine.get("key7.2"));
+		assertEquals("value99", engine.get("key7.99"));
+	}
+}
@@ -0,0 +1,75 @@
+/**
+ * Transient, heap-only StorageEngine
+ * 
+ * Copyright (c) 2012, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *    
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps everything in memory. Nothing survives a restart; this is what
+ * KVStore has always done and is still the default.
+ *
+ * The map is a ConcurrentHashMap rather than a Hashtable: gets never lock,
+ * and puts and removes only lock the one bin they touch, so handler
+ * threads working on different keys do not serialize on a single monitor.
+ */
+public class MemoryEngine implements StorageEngine {
+	private ConcurrentHashMap<String, String> store = new ConcurrentHashMap<String, String>();
+
+	public String get(String key) {
+		return store.get(key);
+	}
+
+	public boolean put(String key, String value) {
+		return store.put(key, value) == null;
+	}
+
+	public boolean remove(String key) {
+		return store.remove(key) != null;
+	}
+
+	public boolean[] apply(WriteBatch batch) throws KVException {
+		return WriteBatch.applyEach(this, batch);
+	}
+
+	public Iterator<Map.Entry<String, String>> iterator() {
+		return new EngineIterator(store.keys()) {
+			String lookup(String key) {
+				return store.get(key);
+			}
+		};
+	}
+
+	public void clear() {
+		store.clear();
+	}
+
+	public void close() {
+	}
+}
@@ -0,0 +1,116 @@
+/**
+ * Keys a KVCache knows to be missing from the store
+ * 
+ * Copyright (c) 2012, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *    
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+/**
+ * Negative entries of one KVCache lock stripe: keys recently found missing
+ * from the store, each until it expires. The table is split into buckets
+ * of WAYS slots, a key going to the bucket its hash picks; a full bucket
+ * gives up an expired slot if it has one and otherwise takes turns.
+ *
+ * Everything here assumes the stripe's lock is held for writing, except
+ * contains(), which KVCache.isMissing() calls under an optimistic stamp.
+ * It then only reads, and gives an answer the caller throws away if the
+ * stamp does not validate.
+ */
+class MissTable {
+	private static final int WAYS = 4;
+
+	private final String[] keys;
+	private final int[] hashes;
+	private final long[] expires;
+	private final int buckets;
+	private int hand = 0;
+
+	/**
+	 * @param capacity keys to hold, rounded up to a whole number of buckets
+	 */
+	MissTable(int capacity) {
+		buckets = Math.max(1, (capacity + WAYS - 1) / WAYS);
+		keys = new String[buckets * WAYS];
+		hashes = new int[keys.length];
+		expires = new long[keys.length];
+	}
+
+	boolean contains(String key, int hash, long now) {
+		int first = bucket(hash);
+		for (int i = first; i < first + WAYS; i++) {
+			if (hashes[i] == hash && expires[i] > now) {
+				String k = keys[i];
+				if (k != null && k.equals(key)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Records key as missing until expires, replacing whatever it was
+	 * recorded with before
+	 */
+	void add(String key, int hash, long expires, long now) {
+		int first = bucket(hash);
+		int slot = -1;
+		for (int i = first; i < first + WAYS; i++) {
+			if (keys[i] != null && hashes[i] == hash && keys[i].equals(key)) {
+				slot = i;
+				break;
+			}
+			if (slot < 0 && (keys[i] == null || this.expires[i] <= now)) {
+				slot = i;
+			}
+		}
+		if (slot < 0) {
+			slot = first + hand;
+			hand = (hand + 1) % WAYS;
+		}
+		keys[slot] = key;
+		hashes[slot] = hash;
+		this.expires[slot] = expires;
+	}
+
+	void remove(String key, int hash) {
+		int first = bucket(hash);
+		for (int i = first; i < first + WAYS; i++) {
+			if (keys[i] != null && hashes[i] == hash && keys[i].equals(key)) {
+				keys[i] = null;
+				hashes[i] = 0;
+				expires[i] = 0;
+			}
+		}
+	}
+
+	/**
+	 * @return the first slot of the bucket of hash; the stripe was picked
+	 * by the low bits, so they are mixed into the high ones first
+	 */
+	private int bucket(int hash) {
+		return ((hash * 0x9E3779B9) >>> 1) % buckets * WAYS;
+	}
+}
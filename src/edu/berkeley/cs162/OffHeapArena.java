@@ -0,0 +1,237 @@
+/**
+ * Slab allocator for direct memory used by OffHeapEngine
+ * 
+ * Copyright (c) 2012, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *    
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands out slots of direct (off-heap) memory. Slots come in power of two
+ * size classes from 64 bytes up; each class carves its slots out of its own
+ * slabs, so a freed slot can always be reused by the next allocation of
+ * the same class and the slabs never fragment. Slabs are only given back
+ * on clear().
+ *
+ * A slot is identified by a handle, a long that packs
+ * [sizeClass:8][slab:24][slot:32]. The slot holds [length:4][bytes]; while
+ * it is free its first 8 bytes hold the handle of the next free slot of the
+ * class instead, so the free lists take no heap at all.
+ *
+ * Allocation and freeing lock the size class. Reading does not lock, so
+ * callers must make sure a handle is not freed while it is being read.
+ */
+class OffHeapArena {
+	static final int DEFAULT_SLAB_SIZE = 4 * 1024 * 1024;
+
+	private static final int MIN_SLOT_SHIFT = 6;
+	private static final int MAX_SLOT_SHIFT = 30;
+	private static final int LENGTH_SIZE = 4;
+	private static final long NO_SLOT = -1;
+
+	private int slabSize = 0;
+	private SizeClass[] classes = null;
+	private AtomicLong reservedBytes = new AtomicLong();
+	private AtomicLong usedBytes = new AtomicLong();
+
+	private class SizeClass {
+		final int index;
+		final int slotSize;
+		final int slotsPerSlab;
+		volatile ByteBuffer[] slabs = new ByteBuffer[0];
+		// Next never-used slot in the last slab
+		int bump = 0;
+		long freeHead = NO_SLOT;
+
+		SizeClass(int index) {
+			this.index = index;
+			slotSize = 1 << (index + MIN_SLOT_SHIFT);
+			slotsPerSlab = Math.max(1, slabSize / slotSize);
+		}
+
+		synchronized long take() {
+			if (freeHead != NO_SLOT) {
+				long handle = freeHead;
+				freeHead = slab(handle).getLong(offset(handle));
+				return handle;
+			}
+			if (slabs.length == 0 || bump == slotsPerSlab) {
+				ByteBuffer[] grown = new ByteBuffer[slabs.length + 1];
+				System.arraycopy(slabs, 0, grown, 0, slabs.length);
+				grown[slabs.length] = ByteBuffer.allocateDirect(slotsPerSlab * slotSize);
+				reservedBytes.addAndGet(slotsPerSlab * slotSize);
+				slabs = grown;
+				bump = 0;
+			}
+			return ((long) index << 56) | ((long) (slabs.length - 1) << 32) | bump++;
+		}
+
+		synchronized void give(long handle) {
+			slab(handle).putLong(offset(handle), freeHead);
+			freeHead = handle;
+		}
+
+		synchronized void clear() {
+			slabs = new ByteBuffer[0];
+			bump = 0;
+			freeHead = NO_SLOT;
+		}
+	}
+
+	/**
+	 * @param slabSize bytes of direct memory reserved at a time for each
+	 * size class; classes with larger slots get one slot per slab
+	 */
+	OffHeapArena(int slabSize) {
+		this.slabSize = slabSize;
+		classes = new SizeClass[MAX_SLOT_SHIFT - MIN_SLOT_SHIFT + 1];
+		for (int i = 0; i < classes.length; i++) {
+			classes[i] = new SizeClass(i);
+		}
+	}
+
+	/**
+	 * Copies data into a free slot of the smallest class that fits it
+	 * @return the handle of the slot
+	 */
+	long allocate(byte[] data) {
+		long handle = allocate(data.length);
+		// The slot is ours alone until it is published, so no lock is needed
+		ByteBuffer out = slab(handle).duplicate();
+		out.position(dataOffset(handle));
+		out.put(data);
+		return handle;
+	}
+
+	/**
+	 * Takes a free slot of the smallest class that holds length bytes, for
+	 * the caller to fill in through slab() and dataOffset()
+	 * @return the handle of the slot
+	 */
+	long allocate(int length) {
+		SizeClass sizeClass = classFor(length);
+		long handle = sizeClass.take();
+		slab(handle).putInt(offset(handle), length);
+		usedBytes.addAndGet(sizeClass.slotSize);
+		return handle;
+	}
+
+	/**
+	 * @return a copy of the bytes stored in the slot
+	 */
+	byte[] read(long handle) {
+		ByteBuffer in = slab(handle).duplicate();
+		in.position(offset(handle));
+		byte[] data = new byte[in.getInt()];
+		in.get(data);
+		return data;
+	}
+
+	/**
+	 * Returns the slot to its size class. The handle must not be used again.
+	 */
+	void free(long handle) {
+		SizeClass sizeClass = classes[(int) (handle >>> 56)];
+		sizeClass.give(handle);
+		usedBytes.addAndGet(-sizeClass.slotSize);
+	}
+
+	/**
+	 * Frees every slot and drops all slabs; their memory is released once
+	 * the buffers are garbage collected.
+	 */
+	void clear() {
+		for (SizeClass sizeClass : classes) {
+			sizeClass.clear();
+		}
+		reservedBytes.set(0);
+		usedBytes.set(0);
+	}
+
+	/**
+	 * @return bytes of direct memory held in slabs
+	 */
+	long reservedBytes() {
+		return reservedBytes.get();
+	}
+
+	/**
+	 * @return bytes of direct memory in allocated slots, including the
+	 * rounding up to the size class
+	 */
+	long usedBytes() {
+		return usedBytes.get();
+	}
+
+	/**
+	 * @return bytes of direct memory that storing length bytes takes
+	 */
+	int sizeFor(int length) {
+		return classFor(length).slotSize;
+	}
+
+	/**
+	 * For absolute reads and writes of the slot's bytes, which start at
+	 * dataOffset(handle); relative ones would race on the position
+	 */
+	ByteBuffer slab(long handle) {
+		return classes[(int) (handle >>> 56)].slabs[(int) (handle >>> 32) & 0xffffff];
+	}
+
+	int dataOffset(long handle) {
+		return offset(handle) + LENGTH_SIZE;
+	}
+
+	/**
+	 * @return number of bytes stored in the slot. A slot freed meanwhile
+	 * may give any number; a caller reading without a lock should check it
+	 * against capacity(handle).
+	 */
+	int length(long handle) {
+		return slab(handle).getInt(offset(handle));
+	}
+
+	/**
+	 * @return the most bytes the slot can hold
+	 */
+	int capacity(long handle) {
+		return classes[(int) (handle >>> 56)].slotSize - LENGTH_SIZE;
+	}
+
+	private SizeClass classFor(int length) {
+		int needed = LENGTH_SIZE + length;
+		int shift = Math.max(MIN_SLOT_SHIFT, 32 - Integer.numberOfLeadingZeros(needed - 1));
+		if (shift > MAX_SLOT_SHIFT) {
+			throw new IllegalArgumentException("Too large for the arena: " + length + " bytes");
+		}
+		return classes[shift - MIN_SLOT_SHIFT];
+	}
+
+	private int offset(long handle) {
+		return (int) handle * classes[(int) (handle >>> 56)].slotSize;
+	}
+}
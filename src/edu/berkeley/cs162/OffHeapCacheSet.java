@@ -0,0 +1,188 @@
+/**
+ * KVCache set kept in direct memory
+ * 
+ * Copyright (c) 2012, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *    
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Keeps a set's entries out of the Java heap, so that a large cache adds
+ * nothing for the garbage collector to trace or copy. The set is a fixed
+ * run of TABLE_SLOT_SIZE byte slots in a direct table shared by several
+ * sets, each [hash:4][unused:4][handle:8], the handle being that of an
+ * OffHeapArena slot holding [keyChars:4][key][value], both as UTF-16.
+ * An empty slot has the handle EMPTY.
+ *
+ * Keys are compared char by char in place, so a lookup allocates nothing;
+ * only the String value() returns is created on the heap. Entries weigh
+ * the direct memory their arena slot takes.
+ */
+class OffHeapCacheSet extends CacheSet {
+	static final int TABLE_SLOT_SIZE = 16;
+	private static final int HANDLE_OFFSET = 8;
+	private static final int KEY_LENGTH_SIZE = 4;
+	private static final long EMPTY = -1;
+
+	private final OffHeapArena arena;
+	private final ByteBuffer table;
+	// Offset of this set's first slot in the table
+	private final int base;
+	private final int capacity;
+
+	OffHeapCacheSet(int maxElems, EvictionPolicy policy, OffHeapArena arena, ByteBuffer table, int base) {
+		super(policy, maxElems);
+		this.arena = arena;
+		this.table = table;
+		this.base = base;
+		this.capacity = maxElems;
+		for (int i = 0; i < maxElems; i++) {
+			table.putLong(base + i * TABLE_SLOT_SIZE + HANDLE_OFFSET, EMPTY);
+		}
+	}
+
+	int capacity() {
+		return capacity;
+	}
+
+	int find(String key, int hash) {
+		for (int i = 0; i < capacity; i++) {
+			if (hash(i) == hash) {
+				long handle = handle(i);
+				if (handle != EMPTY && keyEquals(handle, key)) {
+					return i;
+				}
+			}
+		}
+		return -1;
+	}
+
+	boolean isEmpty(int slot) {
+		return handle(slot) == EMPTY;
+	}
+
+	String key(int slot) {
+		long handle = handle(slot);
+		int offset = arena.dataOffset(handle);
+		return read(handle, offset + KEY_LENGTH_SIZE, keyChars(handle));
+	}
+
+	String value(int slot) {
+		long handle = handle(slot);
+		int keyChars = keyChars(handle);
+		int length = arena.length(handle);
+		int valueChars = (length - KEY_LENGTH_SIZE) / 2 - keyChars;
+		if (valueChars < 0 || length > arena.capacity(handle)) {
+			throw new IllegalStateException("Slot changed while being read");
+		}
+		return read(handle, arena.dataOffset(handle) + KEY_LENGTH_SIZE + 2 * keyChars, valueChars);
+	}
+
+	int hash(int slot) {
+		return table.getInt(base + slot * TABLE_SLOT_SIZE);
+	}
+
+	void store(int slot, String key, int hash, String value) {
+		long handle = arena.allocate(length(key, value));
+		ByteBuffer slab = arena.slab(handle);
+		int offset = arena.dataOffset(handle);
+		slab.putInt(offset, key.length());
+		offset += KEY_LENGTH_SIZE;
+		for (int i = 0; i < key.length(); i++, offset += 2) {
+			slab.putChar(offset, key.charAt(i));
+		}
+		for (int i = 0; i < value.length(); i++, offset += 2) {
+			slab.putChar(offset, value.charAt(i));
+		}
+		long old = handle(slot);
+		table.putInt(base + slot * TABLE_SLOT_SIZE, hash);
+		table.putLong(base + slot * TABLE_SLOT_SIZE + HANDLE_OFFSET, handle);
+		if (old != EMPTY) {
+			arena.free(old);
+		}
+	}
+
+	void clear(int slot) {
+		long old = handle(slot);
+		table.putInt(base + slot * TABLE_SLOT_SIZE, 0);
+		table.putLong(base + slot * TABLE_SLOT_SIZE + HANDLE_OFFSET, EMPTY);
+		if (old != EMPTY) {
+			arena.free(old);
+		}
+	}
+
+	long weigh(String key, String value) {
+		return arena.sizeFor(length(key, value));
+	}
+
+	long weight(int slot) {
+		return arena.sizeFor(arena.length(handle(slot)));
+	}
+
+	private long handle(int slot) {
+		return table.getLong(base + slot * TABLE_SLOT_SIZE + HANDLE_OFFSET);
+	}
+
+	/**
+	 * Bounded by the slot's capacity, in case it is being reused under an
+	 * optimistic reader
+	 */
+	private int keyChars(long handle) {
+		int keyChars = arena.slab(handle).getInt(arena.dataOffset(handle));
+		if (keyChars < 0 || KEY_LENGTH_SIZE + 2L * keyChars > arena.capacity(handle)) {
+			throw new IllegalStateException("Slot changed while being read");
+		}
+		return keyChars;
+	}
+
+	private boolean keyEquals(long handle, String key) {
+		ByteBuffer slab = arena.slab(handle);
+		int offset = arena.dataOffset(handle);
+		if (slab.getInt(offset) != key.length()) {
+			return false;
+		}
+		offset += KEY_LENGTH_SIZE;
+		for (int i = 0; i < key.length(); i++, offset += 2) {
+			if (slab.getChar(offset) != key.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private String read(long handle, int offset, int chars) {
+		ByteBuffer slab = arena.slab(handle);
+		char[] out = new char[chars];
+		for (int i = 0; i < chars; i++, offset += 2) {
+			out[i] = slab.getChar(offset);
+		}
+		return new String(out);
+	}
+
+	private static int length(String key, String value) {
+		return KEY_LENGTH_SIZE + 2 * (key.length() + value.length());
+	}
+}
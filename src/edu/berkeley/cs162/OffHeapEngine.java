@@ -0,0 +1,162 @@
+/**
+ * StorageEngine that keeps values outside the Java heap
+ * 
+ * Copyright (c) 2012, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *    
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+import java.nio.charset.Charset;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Keeps values in direct memory from an OffHeapArena, so that large values
+ * (up to KVServer's 256 KB) do not pile up in the old generation and make
+ * every full GC slow. Only the keys and a Long handle per key stay on the
+ * heap. Like MemoryEngine, nothing survives a restart.
+ *
+ * Values are stored as UTF-8 and decoded again on every get. A value's
+ * slot is freed as soon as it is overwritten or removed. Keys hash to one
+ * of LOCK_STRIPES read-write locks; a get holds the read lock while it
+ * copies the value out, so its slot cannot be freed and reused under it.
+ *
+ * Direct memory is limited by -XX:MaxDirectMemorySize, which defaults to
+ * the maximum heap size.
+ */
+public class OffHeapEngine implements StorageEngine {
+	private static final int LOCK_STRIPES = 64;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private ConcurrentHashMap<String, Long> handles = new ConcurrentHashMap<String, Long>();
+	private OffHeapArena arena = null;
+	private ReentrantReadWriteLock[] locks = null;
+
+	public OffHeapEngine() {
+		this(OffHeapArena.DEFAULT_SLAB_SIZE);
+	}
+
+	/**
+	 * @param slabSize bytes of direct memory to reserve at a time per size
+	 * class of values
+	 */
+	public OffHeapEngine(int slabSize) {
+		arena = new OffHeapArena(slabSize);
+		locks = new ReentrantReadWriteLock[LOCK_STRIPES];
+		for (int i = 0; i < LOCK_STRIPES; i++) {
+			locks[i] = new ReentrantReadWriteLock();
+		}
+	}
+
+	public String get(String key) {
+		ReentrantReadWriteLock lock = lockFor(key);
+		lock.readLock().lock();
+		try {
+			Long handle = handles.get(key);
+			return handle == null ? null : new String(arena.read(handle), UTF8);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	public boolean put(String key, String value) {
+		// Encoding and copying happen before taking the lock
+		long handle = arena.allocate(value.getBytes(UTF8));
+		ReentrantReadWriteLock lock = lockFor(key);
+		lock.writeLock().lock();
+		try {
+			Long previous = handles.put(key, handle);
+			if (previous != null) {
+				arena.free(previous);
+			}
+			return previous == null;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	public boolean remove(String key) {
+		ReentrantReadWriteLock lock = lockFor(key);
+		lock.writeLock().lock();
+		try {
+			Long previous = handles.remove(key);
+			if (previous != null) {
+				arena.free(previous);
+			}
+			return previous != null;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	public boolean[] apply(WriteBatch batch) throws KVException {
+		return WriteBatch.applyEach(this, batch);
+	}
+
+	public Iterator<Map.Entry<String, String>> iterator() {
+		return new EngineIterator(handles.keys()) {
+			String lookup(String key) {
+				return get(key);
+			}
+		};
+	}
+
+	public void clear() {
+		for (ReentrantReadWriteLock lock : locks) {
+			lock.writeLock().lock();
+		}
+		try {
+			handles.clear();
+			arena.clear();
+		} finally {
+			for (ReentrantReadWriteLock lock : locks) {
+				lock.writeLock().unlock();
+			}
+		}
+	}
+
+	public void close() {
+		clear();
+	}
+
+	/**
+	 * @return bytes of direct memory reserved by the engine
+	 */
+	public long offHeapBytes() {
+		return arena.reservedBytes();
+	}
+
+	/**
+	 * @return bytes of direct memory taken up by live values
+	 */
+	public long usedOffHeapBytes() {
+		return arena.usedBytes();
+	}
+
+	private ReentrantReadWriteLock lockFor(String key) {
+		return locks[(key.hashCode() & Integer.MAX_VALUE) % LOCK_STRIPES];
+	}
+}
@@ -0,0 +1,62 @@
+package edu.berkeley.cs162;
+
+import static org.junit.Assert.*;
+
+import java.util.Iterator;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class OffHeapEngineTest {
+	OffHeapEngine engine = null;
+
+	@Before
+	public void setUp() {
+		engine = new OffHeapEngine(64 * 1024);
+	}
+
+	@After
+	public void tearDown() {
+		engine.close();
+	}
+
+	@Test
+	public void putGetRemove() {
+		assertTrue(engine.put("seven", "7"));
+		assertTrue(engine.put("\u00fcber", "\u00e9t\u00e9"));
+		assertFalse(engine.put("seven", "VII"));
+		assertEquals("VII", engine.get("seven"));
+		assertEquals("\u00e9t\u00e9", engine.get("\u00fcber"));
+
+		assertTrue(engine.remove("seven"));
+		assertFalse(engine.remove("seven"));
+		assertNull(engine.get("seven"));
+
+		Iterator<Map.Entry<String, String>> pairs = engine.iterator();
+		assertEquals("\u00fcber", pairs.next().getKey());
+		assertFalse(pairs.hasNext());
+	}
+
+	@Test
+	public void reusesFreedSlots() {
+		StringBuilder value = new StringBuilder();
+		for (int i = 0; i < 256 * 1024; i++) {
+			value.append((char) ('a' + i % 26));
+		}
+		for (int round = 0; round < 50; round++) {
+			for (int i = 0; i < 10; i++) {
+				engine.put("key" + i, value.toString() + round);
+			}
+		}
+		assertEquals(value.toString() + 49, engine.get("key3"));
+		// 10 live values, plus at most one slab per size class in flight
+		assertTrue(engine.offHeapBytes() <= 11 * 512 * 1024);
+
+		for (int i = 0; i < 10; i++) {
+			engine.remove("key" + i);
+		}
+		assertEquals(0, engine.usedOffHeapBytes());
+	}
+}
@@ -0,0 +1,186 @@
+/**
+ * Latency of KVServer gets that share a cache set with misses
+ * 
+ * Copyright (c) 2012, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *    
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Measures get latency on a cache with a single set, so that every key
+ * shares one lock, under a mixed load: HOT_READERS threads read a few
+ * cached keys, COLD_READERS threads read keys nobody read before (each one
+ * a store read), and a writer puts to the hot keys now and then. Each run
+ * is made with two ways of filling the cache on a miss:
+ *   locked   - the set's lock is held from the second cache lookup through
+ *              the store read to the put, as KVServer.get() used to
+ *   unlocked - KVServer.get(): the store is read with no lock held and the
+ *              value installed with KVCache.fill() under a version check
+ * Prints the p50, p99 and maximum latency of hot and of cold reads.
+ *
+ * USAGE: ReadLatencyBenchmark [storeDelayMillis] [seconds]
+ */
+public class ReadLatencyBenchmark {
+	private static final int HOT_KEYS = 8;
+	private static final int HOT_READERS = 4;
+	private static final int COLD_READERS = 2;
+	private static final int COLD_KEYS = 100000;
+	// Pause between one hot reader's gets, and between writes
+	private static final long READ_INTERVAL_NANOS = 100000;
+	private static final long WRITE_INTERVAL_MILLIS = 50;
+
+	public static void main(String[] args) throws Exception {
+		long storeDelay = args.length > 0 ? Long.parseLong(args[0]) : 10;
+		long seconds = args.length > 1 ? Long.parseLong(args[1]) : 5;
+		AutoGrader.setStoreDelay(storeDelay);
+
+		System.out.println("fill\thot p50\thot p99\thot max\tcold p50\tcold p99\tcold max (ms)");
+		for (boolean locked : new boolean[] { true, false }) {
+			Samples[] samples = run(locked, seconds * 1000);
+			StringBuilder line = new StringBuilder(locked ? "locked" : "unlocked");
+			for (Samples s : samples) {
+				long[] sorted = s.sorted();
+				line.append(String.format("\t%.2f\t%.2f\t%.2f", millis(percentile(sorted, 0.5)),
+						millis(percentile(sorted, 0.99)), millis(sorted[sorted.length - 1])));
+			}
+			System.out.println(line);
+		}
+	}
+
+	/**
+	 * @return latencies of hot reads, then of cold ones, in nanoseconds
+	 */
+	private static Samples[] run(final boolean locked, long millis) throws Exception {
+		StorageEngine engine = new MemoryEngine();
+		for (int i = 0; i < HOT_KEYS; i++) {
+			engine.put("hot" + i, "value");
+		}
+		for (int i = 0; i < COLD_KEYS; i++) {
+			engine.put("cold" + i, "value");
+		}
+		final KVStore store = new KVStore(engine);
+		final KVCache cache = new KVCache(1, 64);
+		final KVServer server = new KVServer(store, cache);
+		for (int i = 0; i < HOT_KEYS; i++) {
+			server.get("hot" + i);
+		}
+
+		final AtomicBoolean done = new AtomicBoolean();
+		final AtomicInteger nextCold = new AtomicInteger();
+		final Samples hot = new Samples();
+		final Samples cold = new Samples();
+		Thread[] threads = new Thread[HOT_READERS + COLD_READERS + 1];
+		for (int t = 0; t < threads.length; t++) {
+			final int role = t;
+			threads[t] = new Thread() {
+				public void run() {
+					try {
+						for (int i = 0; !done.get(); i++) {
+							if (role < HOT_READERS) {
+								long start = System.nanoTime();
+								get(locked, server, store, cache, "hot" + (i % HOT_KEYS));
+								hot.add(System.nanoTime() - start);
+								LockSupport.parkNanos(READ_INTERVAL_NANOS);
+							} else if (role < HOT_READERS + COLD_READERS) {
+								long start = System.nanoTime();
+								get(locked, server, store, cache, "cold" + nextCold.getAndIncrement() % COLD_KEYS);
+								cold.add(System.nanoTime() - start);
+							} else {
+								server.put("hot" + (i % HOT_KEYS), "value" + i);
+								Thread.sleep(WRITE_INTERVAL_MILLIS);
+							}
+						}
+					} catch (Exception e) {
+						throw new RuntimeException(e);
+					}
+				}
+			};
+			threads[t].start();
+		}
+		Thread.sleep(millis);
+		done.set(true);
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		return new Samples[] { hot, cold };
+	}
+
+	private static String get(boolean locked, KVServer server, KVStore store, KVCache cache, String key)
+			throws KVException {
+		if (!locked) {
+			return server.get(key);
+		}
+		String value = cache.getOptimistic(key);
+		if (value != null) {
+			return value;
+		}
+		Lock lock = cache.getWriteLock(key);
+		lock.lock();
+		try {
+			value = cache.get(key);
+			if (value == null) {
+				value = store.get(key);
+				cache.put(key, value);
+			}
+			return value;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private static long percentile(long[] sorted, double q) {
+		return sorted[Math.max(0, (int) Math.ceil(q * sorted.length) - 1)];
+	}
+
+	private static double millis(long nanos) {
+		return nanos / 1e6;
+	}
+
+	/**
+	 * Latencies recorded by several threads
+	 */
+	private static class Samples {
+		private long[] values = new long[1024];
+		private int size = 0;
+
+		synchronized void add(long value) {
+			if (size == values.length) {
+				values = Arrays.copyOf(values, size * 2);
+			}
+			values[size++] = value;
+		}
+
+		synchronized long[] sorted() {
+			long[] sorted = Arrays.copyOf(values, Math.max(1, size));
+			Arrays.sort(sorted);
+			return sorted;
+		}
+	}
+}
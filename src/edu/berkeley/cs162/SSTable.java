@@ -0,0 +1,297 @@
+/**
+ * Immutable sorted table file used by LSMEngine
+ * 
+ * Copyright (c) 2012, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *    
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * A sorted, immutable run of records on disk. The whole file is memory
+ * mapped; a sparse index (every INDEX_INTERVAL-th key) and a bloom filter
+ * are loaded onto the heap when the table is opened.
+ *
+ * File layout:
+ *   records:  [type:1][keyLength:4][valueLength:4][key][value] ...
+ *   index:    [count:4] ([keyLength:4][key][offset:4]) ...
+ *   bloom:    see BloomFilter.writeTo()
+ *   lastKey:  [keyLength:4][key]
+ *   footer:   [indexOffset:8][bloomOffset:8][lastKeyOffset:8][records:4][magic:4]
+ */
+class SSTable {
+	// Marks a deleted key, in memtables as well as in tables. Compared by identity.
+	static final String TOMBSTONE = new String("");
+
+	private static final byte PUT = 1;
+	private static final byte DELETE = 2;
+	private static final int INDEX_INTERVAL = 16;
+	private static final int BLOOM_BITS_PER_KEY = 10;
+	private static final int FOOTER_SIZE = 32;
+	private static final int MAGIC = 0x5354424c;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	final File file;
+	final int level;
+	final long seq;
+
+	private MappedByteBuffer buffer = null;
+	private int dataEnd = 0;
+	private int numRecords = 0;
+	private String[] indexKeys = null;
+	private int[] indexOffsets = null;
+	private BloomFilter bloom = null;
+	private String lastKey = null;
+
+	private SSTable(File file, int level, long seq) {
+		this.file = file;
+		this.level = level;
+		this.seq = seq;
+	}
+
+	/**
+	 * Writes the entries, which must be sorted by key, to a new table file
+	 * and opens it.
+	 * @param expectedRecords used to size the bloom filter
+	 */
+	static SSTable write(File file, int level, long seq, Iterator<Map.Entry<String, String>> entries,
+			int expectedRecords) throws IOException {
+		BloomFilter bloom = new BloomFilter(expectedRecords, BLOOM_BITS_PER_KEY);
+		ArrayList<byte[]> indexKeys = new ArrayList<byte[]>();
+		ArrayList<Integer> indexOffsets = new ArrayList<Integer>();
+
+		FileOutputStream fileOut = new FileOutputStream(file);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut, 64 * 1024));
+		try {
+			int records = 0;
+			byte[] lastKey = new byte[0];
+			while (entries.hasNext()) {
+				Map.Entry<String, String> entry = entries.next();
+				byte[] key = entry.getKey().getBytes(UTF8);
+				boolean deleted = entry.getValue() == TOMBSTONE;
+				byte[] value = deleted ? new byte[0] : entry.getValue().getBytes(UTF8);
+
+				if (records % INDEX_INTERVAL == 0) {
+					indexKeys.add(key);
+					indexOffsets.add(out.size());
+				}
+				out.writeByte(deleted ? DELETE : PUT);
+				out.writeInt(key.length);
+				out.writeInt(value.length);
+				out.write(key);
+				out.write(value);
+
+				bloom.add(entry.getKey());
+				lastKey = key;
+				records++;
+			}
+
+			long indexOffset = out.size();
+			out.writeInt(indexKeys.size());
+			for (int i = 0; i < indexKeys.size(); i++) {
+				out.writeInt(indexKeys.get(i).length);
+				out.write(indexKeys.get(i));
+				out.writeInt(indexOffsets.get(i));
+			}
+
+			long bloomOffset = out.size();
+			ByteBuffer bloomBytes = ByteBuffer.allocate(bloom.serializedSize());
+			bloom.writeTo(bloomBytes);
+			out.write(bloomBytes.array());
+
+			long lastKeyOffset = out.size();
+			out.writeInt(lastKey.length);
+			out.write(lastKey);
+
+			out.writeLong(indexOffset);
+			out.writeLong(bloomOffset);
+			out.writeLong(lastKeyOffset);
+			out.writeInt(records);
+			out.writeInt(MAGIC);
+			out.flush();
+			fileOut.getFD().sync();
+		} finally {
+			out.close();
+		}
+		return open(file, level, seq);
+	}
+
+	/**
+	 * Maps an existing table file
+	 */
+	static SSTable open(File file, int level, long seq) throws IOException {
+		SSTable table = new SSTable(file, level, seq);
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			// The mapping stays valid after the file is closed (or deleted)
+			table.buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+		} finally {
+			raf.close();
+		}
+		table.load();
+		return table;
+	}
+
+	private void load() throws IOException {
+		ByteBuffer in = buffer.duplicate();
+		int footer = in.capacity() - FOOTER_SIZE;
+		if (footer < 0 || in.getInt(footer + 28) != MAGIC) {
+			throw new IOException("Not an SSTable: " + file);
+		}
+		int indexOffset = (int) in.getLong(footer);
+		int bloomOffset = (int) in.getLong(footer + 8);
+		int lastKeyOffset = (int) in.getLong(footer + 16);
+		numRecords = in.getInt(footer + 24);
+		dataEnd = indexOffset;
+
+		in.position(indexOffset);
+		int indexSize = in.getInt();
+		indexKeys = new String[indexSize];
+		indexOffsets = new int[indexSize];
+		for (int i = 0; i < indexSize; i++) {
+			indexKeys[i] = readString(in, in.getInt());
+			indexOffsets[i] = in.getInt();
+		}
+
+		in.position(bloomOffset);
+		bloom = BloomFilter.readFrom(in);
+
+		in.position(lastKeyOffset);
+		lastKey = readString(in, in.getInt());
+	}
+
+	/**
+	 * @return the value of key, TOMBSTONE if this table records its deletion,
+	 * or null if this table knows nothing about key
+	 */
+	String get(String key) {
+		if (numRecords == 0 || key.compareTo(indexKeys[0]) < 0 || key.compareTo(lastKey) > 0) {
+			return null;
+		}
+		if (!bloom.mightContain(key)) {
+			return null;
+		}
+
+		// Last index entry whose key is <= key
+		int low = 0;
+		int high = indexKeys.length - 1;
+		while (low < high) {
+			int mid = (low + high + 1) >>> 1;
+			if (indexKeys[mid].compareTo(key) <= 0) {
+				low = mid;
+			} else {
+				high = mid - 1;
+			}
+		}
+
+		ByteBuffer in = buffer.duplicate();
+		in.position(indexOffsets[low]);
+		for (int i = 0; i < INDEX_INTERVAL && in.position() < dataEnd; i++) {
+			byte type = in.get();
+			int keyLength = in.getInt();
+			int valueLength = in.getInt();
+			int cmp = readString(in, keyLength).compareTo(key);
+			if (cmp == 0) {
+				return type == DELETE ? TOMBSTONE : readString(in, valueLength);
+			} else if (cmp > 0) {
+				return null;
+			}
+			in.position(in.position() + valueLength);
+		}
+		return null;
+	}
+
+	String firstKey() {
+		return numRecords == 0 ? null : indexKeys[0];
+	}
+
+	String lastKey() {
+		return numRecords == 0 ? null : lastKey;
+	}
+
+	int size() {
+		return buffer.capacity();
+	}
+
+	int records() {
+		return numRecords;
+	}
+
+	/**
+	 * @return true if any key in [first, last] might be in this table
+	 */
+	boolean overlaps(String first, String last) {
+		return numRecords > 0 && lastKey.compareTo(first) >= 0 && indexKeys[0].compareTo(last) <= 0;
+	}
+
+	/**
+	 * @return all records in key order, with deletions as TOMBSTONE values
+	 */
+	Iterator<Map.Entry<String, String>> iterator() {
+		final ByteBuffer in = buffer.duplicate();
+		in.position(0);
+		return new Iterator<Map.Entry<String, String>>() {
+			public boolean hasNext() {
+				return in.position() < dataEnd;
+			}
+
+			public Map.Entry<String, String> next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				byte type = in.get();
+				int keyLength = in.getInt();
+				int valueLength = in.getInt();
+				String key = readString(in, keyLength);
+				String value = type == DELETE ? TOMBSTONE : readString(in, valueLength);
+				return new AbstractMap.SimpleImmutableEntry<String, String>(key, value);
+			}
+
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	private static String readString(ByteBuffer in, int length) {
+		byte[] bytes = new byte[length];
+		in.get(bytes);
+		return new String(bytes, UTF8);
+	}
+}
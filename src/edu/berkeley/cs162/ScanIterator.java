@@ -0,0 +1,104 @@
+/**
+ * Pages through a range of keys in a KVStore
+ * 
+ * Copyright (c) 2012, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *    
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Streams the pairs of a key range out of a sorted KVStore, fetching them
+ * a page at a time with KVStore.scan() so that a long range is neither
+ * read into memory at once nor paid for with one store access per key.
+ * Each page resumes right after the last key of the previous one, so keys
+ * added or removed behind the scan do not disturb it.
+ *
+ * A store error while fetching a later page is thrown as an
+ * IllegalStateException from hasNext().
+ */
+class ScanIterator implements Iterator<Map.Entry<String, String>> {
+	private KVStore store = null;
+	private String endKey = null;
+	private int remaining = 0;
+	private int pageSize = 0;
+
+	private List<Map.Entry<String, String>> page = null;
+	private int position = 0;
+	private boolean lastPage = false;
+
+	/**
+	 * Fetches the first page right away, so that errors such as an
+	 * unsorted store are reported here.
+	 */
+	ScanIterator(KVStore store, String startKey, String endKey, int limit, int pageSize) throws KVException {
+		this.store = store;
+		this.endKey = endKey;
+		this.remaining = limit;
+		this.pageSize = pageSize;
+		if (limit > 0) {
+			fetch(startKey);
+		} else {
+			page = new ArrayList<Map.Entry<String, String>>();
+			lastPage = true;
+		}
+	}
+
+	public boolean hasNext() {
+		if (position == page.size() && !lastPage && remaining > 0) {
+			// The smallest key after the last one returned
+			String after = page.get(page.size() - 1).getKey() + '\u0000';
+			try {
+				fetch(after);
+			} catch (KVException e) {
+				throw new IllegalStateException(e.getMsg().getMessage());
+			}
+		}
+		return position < page.size();
+	}
+
+	public Map.Entry<String, String> next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		remaining--;
+		return page.get(position++);
+	}
+
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	private void fetch(String startKey) throws KVException {
+		int size = Math.min(pageSize, remaining);
+		page = store.scan(startKey, endKey, size);
+		position = 0;
+		lastPage = page.size() < size;
+	}
+}
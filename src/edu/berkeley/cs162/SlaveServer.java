@@ -33,6 +33,7 @@ import java.net.InetAddress;
 
 public class SlaveServer {
 	static String logPath = null;
+	static String dataPath = null;
 	static TPCLog tpcLog = null;	
 	
 	static KVServer keyServer = null;
@@ -42,6 +43,8 @@ public class SlaveServer {
 	static String masterHostName = null;
 	static int masterPort = 8080;
 	static int registrationPort = 9090;
+	// 1000 pairs of up to 256 KB each would be 256 MB
+	static final long CACHE_BYTES = 32L * 1024 * 1024;
 	
 	/**
 	 * @param args
@@ -58,8 +61,20 @@ public class SlaveServer {
 		
 		// Create TPCMasterHandler
 		System.out.println("Binding SlaveServer:");
-		keyServer = new KVServer(100, 10);
 		server = new SocketServer(InetAddress.getLocalHost().getHostAddress());
+		
+		// Keep the data on disk, next to the TPCLog, compressing large values,
+		// with the frequently read pairs also held in memory. A write is
+		// acknowledged once it is on the device, concurrent writes sharing
+		// one force of their segment. A failed force fails only the writes
+		// waiting on it; later writes are forced again.
+		dataPath = slaveID + "@" + server.getHostname() + ".data";
+		LogStructuredEngine engine = new LogStructuredEngine(dataPath,
+				LogStructuredEngine.DEFAULT_SEGMENT_SIZE, new ValueCompressor(),
+				GroupCommitLog.DEFAULT_MAX_BATCH, GroupCommitLog.DEFAULT_MAX_WAIT_MICROS);
+		TieredEngine tiered = new TieredEngine(engine, TieredEngine.DEFAULT_HOT_BYTES);
+		keyServer = new KVServer(100, 10, new KVStore(tiered, KVStore.DEFAULT_EXPECTED_KEYS, true),
+				EvictionPolicies.CLOCK, CACHE_BYTES);
 		TPCMasterHandler handler = new TPCMasterHandler(keyServer, slaveID);
 		server.addHandler(handler);
 		server.connect();
@@ -0,0 +1,87 @@
+/**
+ * Backing storage used underneath KVStore
+ * 
+ * Copyright (c) 2012, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *    
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * A StorageEngine only knows how to hold key-value pairs. KVStore wraps
+ * an engine and adds the AutoGrader hooks, the simulated store delay and
+ * the error messages that are sent back to clients, so engines should
+ * signal a missing key by returning null/false rather than throwing.
+ */
+public interface StorageEngine {
+	/**
+	 * @param key is the object used to index into the store
+	 * @return the value associated with key, or null if it does not exist
+	 * @throws KVException if the underlying storage could not be read
+	 */
+	public String get(String key) throws KVException;
+
+	/**
+	 * Insert or overwrite the value associated with key
+	 * @return true if key did not exist before
+	 * @throws KVException if the underlying storage could not be written
+	 */
+	public boolean put(String key, String value) throws KVException;
+
+	/**
+	 * @return true if key existed and has been removed
+	 * @throws KVException if the underlying storage could not be written
+	 */
+	public boolean remove(String key) throws KVException;
+
+	/**
+	 * Applies the operations of a batch in order. Engines with a log make
+	 * the batch atomic across a crash: after recovery either all of it or
+	 * none of it is there. Readers may see part of a batch while it is
+	 * being applied.
+	 * @return for each operation, what put() or remove() would have
+	 * returned for it
+	 * @throws KVException if the underlying storage could not be written
+	 */
+	public boolean[] apply(WriteBatch batch) throws KVException;
+
+	/**
+	 * Iterates over every key-value pair without blocking writers. Pairs
+	 * written or removed while the iteration is in progress may or may not
+	 * be seen.
+	 */
+	public Iterator<Map.Entry<String, String>> iterator();
+
+	/**
+	 * Removes every key-value pair from the engine
+	 */
+	public void clear() throws KVException;
+
+	/**
+	 * Releases files and other resources held by the engine
+	 */
+	public void close();
+}
@@ -0,0 +1,148 @@
+/**
+ * Compares the old Hashtable store with MemoryEngine under contention
+ * 
+ * Copyright (c) 2012, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *    
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Runs the same mix of gets and puts against a Hashtable (what KVStore
+ * used before StorageEngines) and against MemoryEngine, with an increasing
+ * number of threads, and prints the throughput of each. The simulated
+ * store delay is not involved; this measures the index alone.
+ *
+ * USAGE: StoreContentionBenchmark [keys] [opsPerThread] [putPercent]
+ */
+public class StoreContentionBenchmark {
+	private static int numKeys = 100000;
+	private static int opsPerThread = 1000000;
+	private static int putPercent = 10;
+
+	public static void main(String[] args) throws Exception {
+		if (args.length > 0) {
+			numKeys = Integer.parseInt(args[0]);
+		}
+		if (args.length > 1) {
+			opsPerThread = Integer.parseInt(args[1]);
+		}
+		if (args.length > 2) {
+			putPercent = Integer.parseInt(args[2]);
+		}
+
+		int maxThreads = Math.max(8, Runtime.getRuntime().availableProcessors() * 2);
+		System.out.println("threads\tHashtable ops/s\tMemoryEngine ops/s");
+		for (int threads = 1; threads <= maxThreads; threads *= 2) {
+			// Warm up both before measuring
+			run(new HashtableEngine(), threads);
+			run(new MemoryEngine(), threads);
+			double hashtable = run(new HashtableEngine(), threads);
+			double memory = run(new MemoryEngine(), threads);
+			System.out.println(threads + "\t" + (long) hashtable + "\t" + (long) memory);
+		}
+	}
+
+	/**
+	 * @return operations per second over all threads
+	 */
+	private static double run(final StorageEngine engine, int threads) throws Exception {
+		final String[] keys = new String[numKeys];
+		for (int i = 0; i < numKeys; i++) {
+			keys[i] = "key" + i;
+			engine.put(keys[i], "value" + i);
+		}
+
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(threads);
+		for (int t = 0; t < threads; t++) {
+			final long seed = t;
+			new Thread(new Runnable() {
+				public void run() {
+					Random random = new Random(seed);
+					try {
+						start.await();
+						for (int i = 0; i < opsPerThread; i++) {
+							String key = keys[random.nextInt(keys.length)];
+							if (random.nextInt(100) < putPercent) {
+								engine.put(key, key);
+							} else {
+								engine.get(key);
+							}
+						}
+					} catch (Exception e) {
+						e.printStackTrace();
+					} finally {
+						done.countDown();
+					}
+				}
+			}).start();
+		}
+
+		long begin = System.nanoTime();
+		start.countDown();
+		done.await();
+		long elapsed = System.nanoTime() - begin;
+		return (double) threads * opsPerThread * 1e9 / elapsed;
+	}
+
+	/**
+	 * The store as it was before StorageEngines: one Hashtable
+	 */
+	private static class HashtableEngine implements StorageEngine {
+		private Hashtable<String, String> store = new Hashtable<String, String>();
+
+		public String get(String key) {
+			return store.get(key);
+		}
+
+		public boolean put(String key, String value) {
+			return store.put(key, value) == null;
+		}
+
+		public boolean remove(String key) {
+			return store.remove(key) != null;
+		}
+
+		public boolean[] apply(WriteBatch batch) throws KVException {
+			return WriteBatch.applyEach(this, batch);
+		}
+
+		public Iterator<Map.Entry<String, String>> iterator() {
+			return store.entrySet().iterator();
+		}
+
+		public void clear() {
+			store.clear();
+		}
+
+		public void close() {
+		}
+	}
+}
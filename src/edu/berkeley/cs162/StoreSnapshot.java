@@ -0,0 +1,409 @@
+/**
+ * Streaming snapshots of a StorageEngine
+ * 
+ * Copyright (c) 2012, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *    
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+
+/**
+ * Writes and reads snapshots of a StorageEngine one pair at a time, so the
+ * memory needed does not depend on the size of the store. Two formats are
+ * supported:
+ *
+ * XML, as produced by KVStore.toXML():
+ *   <KVStore><KVPair><Key>k</Key><Value>v</Value></KVPair>...</KVStore>
+ *
+ * Binary, which is several times smaller and faster to parse:
+ *   [magic:4] partition ... footer [footerOffset:8][magic:4]
+ *   partition: ([keyLength:4][key][valueLength:4][value]) ...
+ *   footer:    [partitions:4] ([offset:8][length:8][records:4]) ...
+ *
+ * Partitions are cut every partitionSize bytes (16 MB unless changed with
+ * setPartitionSize) and do not depend on each other, so a binary snapshot is restored by mapping each partition and
+ * loading them all in parallel on a fork-join pool.
+ *
+ * Writing goes through a FileChannel in BUFFER_SIZE chunks.
+ */
+class StoreSnapshot {
+	static final int BINARY_MAGIC = 0x4b565332; // "KVS2"
+	private static final int BUFFER_SIZE = 1024 * 1024;
+	static final int DEFAULT_PARTITION_SIZE = 16 * 1024 * 1024;
+	private static final int TRAILER_SIZE = 12;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static volatile int partitionSize = DEFAULT_PARTITION_SIZE;
+
+	/**
+	 * Sets the number of bytes of records after which binary snapshots
+	 * written from now on start a new partition
+	 */
+	static void setPartitionSize(int bytes) {
+		if (bytes <= 0) {
+			throw new IllegalArgumentException("Partition size must be positive");
+		}
+		partitionSize = bytes;
+	}
+
+	/**
+	 * Streams every pair of the engine out as XML
+	 */
+	static void writeXML(StorageEngine engine, Writer out) throws KVException {
+		try {
+			XMLStreamWriter writer = XMLOutputFactory.newInstance().createXMLStreamWriter(out);
+			writeXML(engine, writer);
+		} catch (XMLStreamException e) {
+			throw new KVException(new KVMessage("resp", "XML Error: Could not write store"));
+		}
+	}
+
+	static void writeXMLFile(StorageEngine engine, String fileName) throws KVException {
+		RandomAccessFile file = openForWrite(fileName);
+		try {
+			OutputStream out = new BufferedOutputStream(Channels.newOutputStream(file.getChannel()), BUFFER_SIZE);
+			XMLStreamWriter writer = XMLOutputFactory.newInstance().createXMLStreamWriter(out, "UTF-8");
+			writeXML(engine, writer);
+			out.flush();
+		} catch (XMLStreamException e) {
+			throw new KVException(new KVMessage("resp", "XML Error: Could not write store"));
+		} catch (IOException e) {
+			throw ioError("Could not write " + fileName);
+		} finally {
+			close(file);
+		}
+	}
+
+	private static void writeXML(StorageEngine engine, XMLStreamWriter writer) throws XMLStreamException {
+		writer.writeStartDocument("UTF-8", "1.0");
+		writer.writeStartElement("KVStore");
+		Iterator<Map.Entry<String, String>> pairs = engine.iterator();
+		while (pairs.hasNext()) {
+			Map.Entry<String, String> pair = pairs.next();
+			writer.writeStartElement("KVPair");
+			writer.writeStartElement("Key");
+			writer.writeCharacters(pair.getKey());
+			writer.writeEndElement();
+			writer.writeStartElement("Value");
+			writer.writeCharacters(pair.getValue());
+			writer.writeEndElement();
+			writer.writeEndElement();
+		}
+		writer.writeEndElement();
+		writer.writeEndDocument();
+		writer.flush();
+		writer.close();
+	}
+
+	static void writeBinaryFile(StorageEngine engine, String fileName) throws KVException {
+		RandomAccessFile file = openForWrite(fileName);
+		try {
+			FileChannel channel = file.getChannel();
+			ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+			buffer.putInt(BINARY_MAGIC);
+			int partitionSize = StoreSnapshot.partitionSize;
+
+			// offset, length and record count of every partition
+			ArrayList<long[]> partitions = new ArrayList<long[]>();
+			long[] partition = new long[] { 4, 0, 0 };
+
+			Iterator<Map.Entry<String, String>> pairs = engine.iterator();
+			while (pairs.hasNext()) {
+				Map.Entry<String, String> pair = pairs.next();
+				byte[] key = pair.getKey().getBytes(UTF8);
+				byte[] value = pair.getValue().getBytes(UTF8);
+				int recordSize = 8 + key.length + value.length;
+
+				if (partition[1] >= partitionSize) {
+					partitions.add(partition);
+					partition = new long[] { partition[0] + partition[1], 0, 0 };
+				}
+				if (buffer.remaining() < recordSize) {
+					drain(channel, buffer);
+				}
+				if (buffer.remaining() < recordSize) {
+					// Larger than a whole buffer; hand it to the channel as is
+					ByteBuffer record = ByteBuffer.allocate(recordSize);
+					record.putInt(key.length).put(key).putInt(value.length).put(value);
+					drain(channel, record);
+				} else {
+					buffer.putInt(key.length).put(key).putInt(value.length).put(value);
+				}
+				partition[1] += recordSize;
+				partition[2]++;
+			}
+			partitions.add(partition);
+
+			long footerOffset = partition[0] + partition[1];
+			if (buffer.remaining() < 4) {
+				drain(channel, buffer);
+			}
+			buffer.putInt(partitions.size());
+			for (long[] entry : partitions) {
+				if (buffer.remaining() < 20) {
+					drain(channel, buffer);
+				}
+				buffer.putLong(entry[0]).putLong(entry[1]).putInt((int) entry[2]);
+			}
+			if (buffer.remaining() < TRAILER_SIZE) {
+				drain(channel, buffer);
+			}
+			buffer.putLong(footerOffset).putInt(BINARY_MAGIC);
+			drain(channel, buffer);
+		} catch (IOException e) {
+			throw ioError("Could not write " + fileName);
+		} finally {
+			close(file);
+		}
+	}
+
+	/**
+	 * Loads a snapshot in either format into the engine, which is expected
+	 * to have been cleared. The format is recognized from the first bytes.
+	 */
+	static void readFile(StorageEngine engine, String fileName) throws KVException {
+		RandomAccessFile file = null;
+		try {
+			file = new RandomAccessFile(fileName, "r");
+			FileChannel channel = file.getChannel();
+			ByteBuffer magic = ByteBuffer.allocate(4);
+			int read = 0;
+			while (magic.hasRemaining() && read >= 0) {
+				read = channel.read(magic);
+			}
+			magic.flip();
+			boolean binary = magic.remaining() == 4 && magic.getInt() == BINARY_MAGIC;
+			channel.position(binary ? 4 : 0);
+
+			if (binary) {
+				readBinary(engine, channel);
+			} else {
+				readXML(engine, new BufferedInputStream(Channels.newInputStream(channel), BUFFER_SIZE));
+			}
+		} catch (IOException e) {
+			throw ioError("Could not read " + fileName);
+		} finally {
+			close(file);
+		}
+	}
+
+	/**
+	 * Reads the footer and loads every partition on its own fork-join task.
+	 * A damaged footer or partition shows up as a bad offset or length, or
+	 * as a buffer running out in the middle of a record; all of them are
+	 * reported as an IO Error rather than escaping unchecked.
+	 */
+	private static void readBinary(StorageEngine engine, FileChannel channel) throws IOException, KVException {
+		try {
+			loadBinary(engine, channel);
+		} catch (LoadFailure e) {
+			throw e.failure;
+		} catch (RuntimeException e) {
+			throw ioError("Corrupt snapshot");
+		}
+	}
+
+	private static void loadBinary(StorageEngine engine, FileChannel channel) throws IOException {
+		long size = channel.size();
+		if (size < 4 + TRAILER_SIZE) {
+			throw new IOException("Truncated snapshot");
+		}
+		ByteBuffer trailer = channel.map(FileChannel.MapMode.READ_ONLY, size - TRAILER_SIZE, TRAILER_SIZE);
+		long footerOffset = trailer.getLong();
+		if (trailer.getInt() != BINARY_MAGIC) {
+			throw new IOException("Truncated snapshot");
+		}
+		if (footerOffset < 4 || footerOffset > size - TRAILER_SIZE - 4) {
+			throw new IOException("Bad footer offset " + footerOffset);
+		}
+
+		ByteBuffer footer = channel.map(FileChannel.MapMode.READ_ONLY, footerOffset, size - TRAILER_SIZE - footerOffset);
+		int count = footer.getInt();
+		if (count < 0 || count > footer.remaining() / 20) {
+			throw new IOException("Bad partition count " + count);
+		}
+		MappedByteBuffer[] partitions = new MappedByteBuffer[count];
+		for (int i = 0; i < count; i++) {
+			long offset = footer.getLong();
+			long length = footer.getLong();
+			footer.getInt();
+			if (offset < 4 || length < 0 || offset + length > footerOffset) {
+				throw new IOException("Bad partition " + i);
+			}
+			partitions[i] = channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+		}
+
+		ForkJoinPool pool = new ForkJoinPool();
+		try {
+			pool.invoke(new PartitionLoader(engine, partitions, 0, count));
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * Splits the range of partitions in half until a single partition is
+	 * left, which it decodes into the engine.
+	 */
+	private static class PartitionLoader extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private StorageEngine engine;
+		private MappedByteBuffer[] partitions;
+		private int from;
+		private int to;
+
+		PartitionLoader(StorageEngine engine, MappedByteBuffer[] partitions, int from, int to) {
+			this.engine = engine;
+			this.partitions = partitions;
+			this.from = from;
+			this.to = to;
+		}
+
+		protected void compute() {
+			if (to - from > 1) {
+				int middle = (from + to) >>> 1;
+				invokeAll(new PartitionLoader(engine, partitions, from, middle),
+						new PartitionLoader(engine, partitions, middle, to));
+				return;
+			}
+			if (to == from) {
+				return;
+			}
+			ByteBuffer in = partitions[from];
+			try {
+				while (in.hasRemaining()) {
+					String key = readString(in, in.getInt());
+					engine.put(key, readString(in, in.getInt()));
+				}
+			} catch (KVException e) {
+				throw new LoadFailure(e);
+			}
+		}
+	}
+
+	/**
+	 * Carries a KVException out of a fork-join task
+	 */
+	private static class LoadFailure extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+		private KVException failure;
+
+		LoadFailure(KVException failure) {
+			this.failure = failure;
+		}
+	}
+
+	private static void readXML(StorageEngine engine, InputStream in) throws KVException {
+		try {
+			XMLInputFactory factory = XMLInputFactory.newInstance();
+			factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+			XMLStreamReader reader = factory.createXMLStreamReader(in);
+			String key = null;
+			while (reader.hasNext()) {
+				if (reader.next() != XMLStreamConstants.START_ELEMENT) {
+					continue;
+				}
+				if (reader.getLocalName().equals("Key")) {
+					key = reader.getElementText();
+				} else if (reader.getLocalName().equals("Value")) {
+					if (key == null) {
+						throw new KVException(new KVMessage("resp", "XML Error: Value without Key"));
+					}
+					engine.put(key, reader.getElementText());
+					key = null;
+				}
+			}
+			reader.close();
+		} catch (XMLStreamException e) {
+			throw new KVException(new KVMessage("resp", "XML Error: Could not parse store"));
+		}
+	}
+
+	private static String readString(ByteBuffer in, int length) {
+		if (length < 0 || length > in.remaining()) {
+			// A damaged length; do not let it size the array
+			throw new BufferUnderflowException();
+		}
+		byte[] bytes = new byte[length];
+		in.get(bytes);
+		return new String(bytes, UTF8);
+	}
+
+	private static void drain(FileChannel channel, ByteBuffer buffer) throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		buffer.clear();
+	}
+
+	private static RandomAccessFile openForWrite(String fileName) throws KVException {
+		try {
+			RandomAccessFile file = new RandomAccessFile(fileName, "rw");
+			file.setLength(0);
+			return file;
+		} catch (IOException e) {
+			throw ioError("Could not open " + fileName);
+		}
+	}
+
+	private static void close(RandomAccessFile file) {
+		try {
+			if (file != null) {
+				file.close();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private static KVException ioError(String what) throws KVException {
+		return new KVException(new KVMessage("resp", "IO Error: " + what));
+	}
+}
@@ -29,18 +29,31 @@
  */
 package edu.berkeley.cs162;
 
+import java.io.BufferedInputStream;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
 
 public class TPCLog {
 
+	// First byte of a zlib stream; a serialized stream starts with 0xAC
+	private static final int ZLIB_HEADER = 0x78;
+	
 	// Path to log file
 	private String logPath = null;
+	// Compresses the log as it is written, or null to write it plain. Put
+	// values are often large and repetitive, and the whole log is
+	// rewritten on every append.
+	private Deflater deflater = null;
 	// Reference to the KVServer of this slave. Populated by rebuildKeyServer()
 	private KVServer kvServer = null;
 
@@ -54,6 +67,11 @@ public class TPCLog {
 	 Set in  rebuildKeyServer() during recovery */ 
 	private KVMessage interruptedTpcOperation = null;
 	
+	// Replay batches are written once they reach this size, which with the
+	// largest pair on top is still well inside the smallest segment of a
+	// LogStructuredEngine, however long the log has grown
+	private static final long REPLAY_BATCH_BYTES = 1024 * 1024;
+	
 	/**
 	 * 
 	 * @param logPath 
@@ -61,9 +79,20 @@ public class TPCLog {
 	 * rebuildKeyServer() during start. 
 	 */
 	public TPCLog(String logPath, KVServer kvServer) {
+		this(logPath, kvServer, true);
+	}
+
+	/**
+	 * @param compress whether to deflate the log on disk. Logs are read
+	 * correctly either way.
+	 */
+	public TPCLog(String logPath, KVServer kvServer, boolean compress) {
 		this.logPath = logPath;
 		entries = null;
 		this.kvServer = kvServer;
+		if (compress) {
+			deflater = new Deflater(Deflater.BEST_SPEED);
+		}
 	}
 
 	public ArrayList<KVMessage> getEntries() {
@@ -92,7 +121,14 @@ public class TPCLog {
 		ObjectInputStream inputStream = null;
 		
 		try {
-			inputStream = new ObjectInputStream(new FileInputStream(logPath));			
+			InputStream in = new BufferedInputStream(new FileInputStream(logPath));
+			in.mark(1);
+			int first = in.read();
+			in.reset();
+			if (first == ZLIB_HEADER) {
+				in = new InflaterInputStream(in);
+			}
+			inputStream = new ObjectInputStream(in);
 			entries = (ArrayList<KVMessage>) inputStream.readObject();
 		} catch (Exception e) {
 			
@@ -119,7 +155,12 @@ public class TPCLog {
 		ObjectOutputStream outputStream = null;
 		
 		try {
-			outputStream = new ObjectOutputStream(new FileOutputStream(logPath));
+			OutputStream out = new FileOutputStream(logPath);
+			if (deflater != null) {
+				deflater.reset();
+				out = new DeflaterOutputStream(out, deflater, 64 * 1024);
+			}
+			outputStream = new ObjectOutputStream(out);
 			outputStream.writeObject(entries);
 		} catch (Exception e) {
 			e.printStackTrace();
@@ -175,27 +216,42 @@ public class TPCLog {
 			}
 		}
 		
-		//now reEntry should be full of KVMessages to send to KVServer
+		//now reEntry should be full of KVMessages to send to KVServer.
+		//Consecutive puts and dels are replayed as one batch, which costs
+		//one store write per REPLAY_BATCH_BYTES instead of one per key
+		WriteBatch batch = new WriteBatch();
 		Iterator<KVMessage> reIter = reEntry.iterator();
 		while(reIter.hasNext()){
 			KVMessage reMess = reIter.next();
 			if(reMess.getMsgType().equals("getreq")){
+				replay(batch);
 				System.out.println("Getting: " + reMess.getKey());
 				kvServer.get(reMess.getKey());
 			}
 			if(reMess.getMsgType().equals("putreq")){
-				System.out.println("Putting: "  + reMess.getKey() + " " + reMess.getValue());
-				kvServer.put(reMess.getKey(), reMess.getValue());
+				//A TTL starts over from the replay
+				batch.put(reMess.getKey(), reMess.getValue(), reMess.getTtl());
 			}
 			if(reMess.getMsgType().equals("delreq")){
-				System.out.println("Deleting: "  + reMess.getKey());
-				kvServer.del(reMess.getKey());
+				batch.delete(reMess.getKey());
+			}
+			if(batch.bytes() >= REPLAY_BATCH_BYTES){
+				replay(batch);
 			}
 		}
+		replay(batch);
 
 		reEntry.clear();	//empty reEntry so that it can be filled again
 	}
 	
+	private void replay(WriteBatch batch) throws KVException {
+		if(!batch.isEmpty()){
+			System.out.println("Replaying " + batch.size() + " puts and dels");
+			kvServer.apply(batch);
+			batch.clear();
+		}
+	}
+	
 	/**
 	 * 
 	 * @return Interrupted 2PC operation, if any 
@@ -2,6 +2,7 @@ package edu.berkeley.cs162;
 
 import static org.junit.Assert.*;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.Socket;
@@ -152,4 +153,49 @@ public class TPCLogTest {
 //		fail("Not yet implemented");
 //	}
 
+	@Test
+	public void replaysLogsLargerThanASegment() throws KVException {
+		String logPath = "TPCLogTest.log";
+		File dir = new File("TPCLogTest.data");
+		new File(logPath).delete();
+		deleteDir(dir);
+		StringBuilder big = new StringBuilder();
+		for (int i = 0; i < 200000; i++) {
+			big.append((char) ('a' + i % 26));
+		}
+
+		// 3MB of values against segments of 2MB, the smallest there are
+		TPCLog tpcLog = new TPCLog(logPath, null);
+		for (int i = 0; i < 15; i++) {
+			KVMessage put = new KVMessage("putreq");
+			put.setKey("key" + i);
+			put.setValue(big.toString());
+			put.setTpcOpId("t" + i);
+			tpcLog.appendAndFlush(put);
+			KVMessage commit = new KVMessage("commit");
+			commit.setTpcOpId("t" + i);
+			tpcLog.appendAndFlush(commit);
+		}
+
+		LogStructuredEngine engine = new LogStructuredEngine(dir.getPath(), 1);
+		try {
+			new TPCLog(logPath, new KVServer(10, 10, new KVStore(engine))).rebuildKeyServer();
+			assertEquals(15, engine.size());
+			assertEquals(big.toString(), engine.get("key14"));
+		} finally {
+			engine.close();
+			new File(logPath).delete();
+			deleteDir(dir);
+		}
+	}
+
+	private static void deleteDir(File dir) {
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		dir.delete();
+	}
 }
@@ -391,7 +391,8 @@ public class TPCMaster{
 		KVMessage tpcOperation;
 		if(isPutReq){
 			tpcOperation = new KVMessage( "putreq");
-			tpcOperation.setValue(msg.getValue());			
+			tpcOperation.setValue(msg.getValue());
+			tpcOperation.setTtl(msg.getTtl());			
 		} else {
 			tpcOperation = new KVMessage( "delreq");
 		}
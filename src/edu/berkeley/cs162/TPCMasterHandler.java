@@ -51,13 +51,11 @@ public class TPCMasterHandler implements NetworkHandler {
 	private boolean ignoreNext = false;
 	
 	
-	// States carried from the first to the second phase of a 2PC operation
+	// States carried from the first to the second phase of a 2PC operation.
+	// The write itself waits in the KVServer as a pending version.
 	private KVMessage originalMessage = null;
 	private boolean aborted = false;	
 	
-	private boolean overwrite = false;
-	private String placeHolderInCaseOfAbort = null;
-	
 	public TPCMasterHandler(KVServer keyserver) {
 		this(keyserver, 1);
 	}
@@ -137,14 +135,25 @@ public class TPCMasterHandler implements NetworkHandler {
 			else if (msg.getMsgType().equals("commit") || msg.getMsgType().equals("abort")) {
 				// Check in TPCLog for the case when SlaveServer is restarted
 				// Implement me	
-				handleMasterResponse(msg, originalMessage, aborted);
+				try {
+					handleMasterResponse(msg, originalMessage, aborted);
+				} catch (KVException e) {
+					// Not acknowledged, so the master sends its decision again;
+					// the prepared version stays pending until a commit succeeds
+					System.err.println("Commit " + msg.getTpcOpId() + " failed: " + e.getMsg().getMessage());
+					try {
+						e.getMsg().sendMessage(client);
+					} catch (KVException e1) {
+						e1.printStackTrace();
+					}
+					closeConn();
+					return;
+				}
 				tpcLog.appendAndFlush(msg);
 				
 				sendACK(client, msg.getTpcOpId());
 				// Reset state
-				overwrite = false;
 				ignoreNext = false;
-				placeHolderInCaseOfAbort = null;
 				aborted = false;
 			}
 			
@@ -162,17 +171,9 @@ public class TPCMasterHandler implements NetworkHandler {
 			// Store for use in the second phase
 			originalMessage = new KVMessage(msg);
 			
-			try {
-				placeHolderInCaseOfAbort = kvServer.get(key);
-				if(placeHolderInCaseOfAbort != null){
-					overwrite = true;
-				}
-			} catch (KVException e) {
-				//Do Nothing
-			}
-
+			//Staged only; nothing is visible until the commit
 			try{
-				kvServer.put(key, msg.getValue());
+				kvServer.preparePut(txnId(msg), key, msg.getValue(), msg.getTtl());
 			} catch (KVException e) {
 				aborted = true;
 				sendAbort(client, msg.getTpcOpId());
@@ -218,23 +219,14 @@ public class TPCMasterHandler implements NetworkHandler {
 				return;
 			}
 			
-			//Get Original value and store in case of abort
-			try {
-				placeHolderInCaseOfAbort = kvServer.get(key);
-				System.out.println("PlaceHolder: " + placeHolderInCaseOfAbort);
-				if(placeHolderInCaseOfAbort != null){
-					overwrite = true;
-				}
-			} catch (KVException e) {
-				//Do Nothing
-			}
-			
+			//Staged only; nothing is visible until the commit
 			try {
-				kvServer.del(key);
-				
+				kvServer.prepareDel(txnId(msg), key);
 			} catch (KVException e) {
 				aborted = true;
 				sendAbort(client, msg.getTpcOpId());
+				AutoGrader.agTPCDelFinished(slaveID, msg, key);
+				return;
 			}
 			sendReady(client, msg.getTpcOpId());
 			AutoGrader.agTPCDelFinished(slaveID, msg, key);
@@ -246,30 +238,20 @@ public class TPCMasterHandler implements NetworkHandler {
 		 * @param masterResp Global decision taken by the master
 		 * @param origMsg Message from the actual client (received via the coordinator/master)
 		 * @param origAborted Did this slave server abort it in the first phase 
+		 * @throws KVException if a commit could not be written; it must not
+		 * be acknowledged
 		 */
-		private void handleMasterResponse(KVMessage masterResp, KVMessage origMsg, boolean origAborted) {
+		private void handleMasterResponse(KVMessage masterResp, KVMessage origMsg, boolean origAborted) throws KVException {
 			AutoGrader.agSecondPhaseStarted(slaveID, origMsg, origAborted);
 			
 			if(origAborted){
 				System.out.println("OrinAborted");
 				return;
 			} else if( masterResp.getMsgType().equals("abort")) {
-				try{
-					if( origMsg.getMsgType().equals("put")){
-						if(overwrite){
-							kvServer.put(origMsg.getKey(), placeHolderInCaseOfAbort);
-						} else{
-							kvServer.del(origMsg.getKey());
-						}
-					}
-					if( origMsg.getMsgType().equals("del")){
-							kvServer.put(origMsg.getKey(), placeHolderInCaseOfAbort);
-					}
-				} catch (KVException e){
-					
-				}
+				//Discard the pending version; the committed one never changed
+				kvServer.abort(txnId(origMsg));
 			} else if( masterResp.getMsgType().equals("commit")) {
-				
+				kvServer.commit(txnId(origMsg));
 			}
 			
 			AutoGrader.agSecondPhaseFinished(slaveID, origMsg, origAborted);
@@ -281,6 +263,13 @@ public class TPCMasterHandler implements NetworkHandler {
 		}
 	}
 
+	/**
+	 * @return the id the KVServer keeps msg's pending version under
+	 */
+	private static String txnId(KVMessage msg) {
+		return msg == null || msg.getTpcOpId() == null ? "" : msg.getTpcOpId();
+	}
+	
 	public void sendACK(Socket aClient, String tpcID){
 		try {
 			KVMessage ack = new KVMessage("ack");
@@ -329,6 +318,22 @@ public class TPCMasterHandler implements NetworkHandler {
 	 */
 	public void setTPCLog(TPCLog tpcLog) {
 		this.tpcLog  = tpcLog;
+		
+		//An operation that was prepared but not decided before a restart is
+		//staged again, so that the master's decision still applies to it
+		if(tpcLog.hasInterruptedTpcOperation()){
+			KVMessage msg = tpcLog.getInterruptedTpcOperation();
+			originalMessage = msg;
+			try {
+				if(msg.getMsgType().equals("putreq")){
+					kvServer.preparePut(txnId(msg), msg.getKey(), msg.getValue(), msg.getTtl());
+				} else {
+					kvServer.prepareDel(txnId(msg), msg.getKey());
+				}
+			} catch (KVException e) {
+				aborted = true;
+			}
+		}
 	}
 
 	/**
@@ -0,0 +1,114 @@
+package edu.berkeley.cs162;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TPCMasterHandlerTest {
+	static final String LOG_PATH = "TPCMasterHandlerTest.log";
+
+	boolean[] broken = { false };
+	KVServer server = null;
+	TPCMasterHandler handler = null;
+	ServerSocket listener = null;
+
+	@Before
+	public void setUp() throws Exception {
+		StorageEngine engine = new MemoryEngine() {
+			public boolean[] apply(WriteBatch batch) throws KVException {
+				if (broken[0]) {
+					throw new KVException(new KVMessage("resp", "Disk full"));
+				}
+				return super.apply(batch);
+			}
+		};
+		engine.put("seven", "7");
+		server = new KVServer(10, 10, new KVStore(engine));
+		handler = new TPCMasterHandler(server);
+		handler.setTPCLog(new TPCLog(LOG_PATH, server));
+		listener = new ServerSocket(0);
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		listener.close();
+		new File(LOG_PATH).delete();
+	}
+
+	@Test
+	public void votesAgainstConflictingPrepares() throws Exception {
+		KVMessage resp = send(putreq("1", "seven", "VII"));
+		assertEquals("ready", resp.getMsgType());
+		assertEquals("1", resp.getTpcOpId());
+
+		// Another transaction may not replace the version 1 prepared
+		resp = send(putreq("2", "seven", "SEVEN"));
+		assertEquals("abort", resp.getMsgType());
+		assertEquals("2", resp.getTpcOpId());
+
+		assertEquals("7", server.get("seven"));
+		server.commit("1");
+		assertEquals("VII", server.get("seven"));
+	}
+
+	@Test
+	public void withholdsAckForFailedCommits() throws Exception {
+		KVMessage delreq = new KVMessage("delreq");
+		delreq.setKey("seven");
+		delreq.setTpcOpId("1");
+		assertEquals("ready", send(delreq).getMsgType());
+
+		broken[0] = true;
+		KVMessage resp = send(decision("commit", "1"));
+		assertEquals("resp", resp.getMsgType());
+		assertEquals("Disk full", resp.getMessage());
+		assertEquals("7", server.get("seven"));
+
+		// The master sends its decision again until it is acknowledged
+		broken[0] = false;
+		resp = send(decision("commit", "1"));
+		assertEquals("ack", resp.getMsgType());
+		assertEquals("1", resp.getTpcOpId());
+		try {
+			server.get("seven");
+			fail("committed del");
+		} catch (KVException e) {
+		}
+	}
+
+	private static KVMessage putreq(String tpcOpId, String key, String value) throws KVException {
+		KVMessage msg = new KVMessage("putreq");
+		msg.setKey(key);
+		msg.setValue(value);
+		msg.setTpcOpId(tpcOpId);
+		return msg;
+	}
+
+	private static KVMessage decision(String msgType, String tpcOpId) throws KVException {
+		KVMessage msg = new KVMessage(msgType);
+		msg.setTpcOpId(tpcOpId);
+		return msg;
+	}
+
+	/**
+	 * Sends msg to the handler as XML, as the master does, and parses its
+	 * reply
+	 */
+	private KVMessage send(KVMessage msg) throws Exception {
+		Socket master = new Socket("localhost", listener.getLocalPort());
+		try {
+			handler.handle(listener.accept());
+			msg.sendMessage(master);
+			return new KVMessage(master.getInputStream());
+		} finally {
+			master.close();
+		}
+	}
+}
@@ -0,0 +1,261 @@
+/**
+ * StorageEngine with a hot in-memory tier over a cold one
+ * 
+ * Copyright (c) 2012, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *    
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Keeps the frequently read pairs in memory, in front of a cold engine
+ * (e.g. a LogStructuredEngine) that holds all of them. Memory use of the
+ * hot tier is bounded by a budget in bytes; when it is exceeded the least
+ * frequently used hot pairs are demoted, and a cold pair is promoted again
+ * when it is read.
+ *
+ * Writes go through to the cold engine before they reach the hot tier, so
+ * the hot tier never holds the only copy of anything and demoting a pair
+ * is just dropping it. That keeps the cold engine's durability, and lets
+ * iteration and snapshots read the cold engine alone.
+ *
+ * Demotion is a CLOCK over frequency counters: every read of a hot pair
+ * bumps its counter, and the demoter sweeps the hot tier halving counters
+ * until it finds pairs whose counter has dropped to zero. Pairs that are
+ * read often survive several sweeps, pairs that are not go first.
+ *
+ * Hot reads take no lock. Writes, and reads that go to the cold engine, lock
+ * the key's stripe so a promotion can never install a value older than one
+ * just written.
+ */
+public class TieredEngine implements StorageEngine {
+	public static final long DEFAULT_HOT_BYTES = 64L * 1024 * 1024;
+	private static final int LOCK_STRIPES = 64;
+	private static final int MAX_FREQUENCY = 255;
+	// Estimated cost of a hot entry beyond its characters
+	private static final int ENTRY_OVERHEAD = 96;
+
+	private StorageEngine cold = null;
+	private long hotBytesBudget = DEFAULT_HOT_BYTES;
+
+	private ConcurrentHashMap<String, HotEntry> hot = new ConcurrentHashMap<String, HotEntry>();
+	private AtomicLong hotBytes = new AtomicLong();
+	private Object[] locks = null;
+
+	// Only used by the demoter, under its lock
+	private ReentrantLock demoter = new ReentrantLock();
+	private Iterator<Map.Entry<String, HotEntry>> clockHand = null;
+
+	private static class HotEntry {
+		final String value;
+		final int size;
+		// Racy increments only make the count approximate
+		volatile int frequency;
+
+		HotEntry(String key, String value, int frequency) {
+			this.value = value;
+			this.size = 2 * (key.length() + value.length()) + ENTRY_OVERHEAD;
+			this.frequency = frequency;
+		}
+	}
+
+	/**
+	 * @param cold engine that holds every pair
+	 * @param hotBytesBudget approximate most memory the hot tier may use
+	 */
+	public TieredEngine(StorageEngine cold, long hotBytesBudget) {
+		this.cold = cold;
+		this.hotBytesBudget = hotBytesBudget;
+		locks = new Object[LOCK_STRIPES];
+		for (int i = 0; i < LOCK_STRIPES; i++) {
+			locks[i] = new Object();
+		}
+	}
+
+	public String get(String key) throws KVException {
+		HotEntry entry = hot.get(key);
+		if (entry != null) {
+			if (entry.frequency < MAX_FREQUENCY) {
+				entry.frequency++;
+			}
+			return entry.value;
+		}
+
+		String value;
+		synchronized (lockFor(key)) {
+			entry = hot.get(key);
+			if (entry != null) {
+				return entry.value;
+			}
+			value = cold.get(key);
+			if (value != null) {
+				install(key, value, 1);
+			}
+		}
+		demoteOverBudget();
+		return value;
+	}
+
+	public boolean put(String key, String value) throws KVException {
+		boolean created;
+		synchronized (lockFor(key)) {
+			created = cold.put(key, value);
+			// Only reads make a key hot; an overwrite keeps it as hot as it was
+			HotEntry previous = hot.get(key);
+			install(key, value, previous == null ? 0 : previous.frequency);
+		}
+		demoteOverBudget();
+		return created;
+	}
+
+	public boolean remove(String key) throws KVException {
+		synchronized (lockFor(key)) {
+			HotEntry previous = hot.remove(key);
+			if (previous != null) {
+				hotBytes.addAndGet(-previous.size);
+			}
+			return cold.remove(key);
+		}
+	}
+
+	/**
+	 * Hands the whole batch to the cold engine, then brings the hot tier up
+	 * to date key by key. Until it has, hot reads of the batch's keys may
+	 * still see their old values.
+	 */
+	public boolean[] apply(WriteBatch batch) throws KVException {
+		boolean[] changed = cold.apply(batch);
+		for (WriteBatch.Op op : batch.ops()) {
+			synchronized (lockFor(op.key)) {
+				HotEntry previous = hot.get(op.key);
+				if (op.isDelete()) {
+					if (previous != null && hot.remove(op.key, previous)) {
+						hotBytes.addAndGet(-previous.size);
+					}
+				} else {
+					install(op.key, op.value, previous == null ? 0 : previous.frequency);
+				}
+			}
+		}
+		demoteOverBudget();
+		return changed;
+	}
+
+	public Iterator<Map.Entry<String, String>> iterator() {
+		return cold.iterator();
+	}
+
+	public void clear() throws KVException {
+		demoter.lock();
+		try {
+			hot.clear();
+			hotBytes.set(0);
+			clockHand = null;
+			cold.clear();
+		} finally {
+			demoter.unlock();
+		}
+	}
+
+	public void close() {
+		cold.close();
+	}
+
+	/**
+	 * @return estimated bytes used by the hot tier
+	 */
+	public long hotBytes() {
+		return hotBytes.get();
+	}
+
+	/**
+	 * @return number of pairs in the hot tier
+	 */
+	public int hotSize() {
+		return hot.size();
+	}
+
+	/**
+	 * Puts the pair in the hot tier, unless it would not fit even on its
+	 * own. Called with the key's lock held.
+	 */
+	private void install(String key, String value, int frequency) {
+		HotEntry entry = new HotEntry(key, value, frequency);
+		HotEntry previous;
+		if (entry.size > hotBytesBudget) {
+			previous = hot.remove(key);
+		} else {
+			previous = hot.put(key, entry);
+			hotBytes.addAndGet(entry.size);
+		}
+		if (previous != null) {
+			hotBytes.addAndGet(-previous.size);
+		}
+	}
+
+	/**
+	 * Sweeps the hot tier, demoting pairs whose frequency has decayed to
+	 * zero, until it fits in its budget again. Only one thread sweeps at a
+	 * time; the others do not wait for it.
+	 */
+	private void demoteOverBudget() {
+		if (hotBytes.get() <= hotBytesBudget || !demoter.tryLock()) {
+			return;
+		}
+		try {
+			while (hotBytes.get() > hotBytesBudget && !hot.isEmpty()) {
+				if (clockHand == null || !clockHand.hasNext()) {
+					clockHand = hot.entrySet().iterator();
+					if (!clockHand.hasNext()) {
+						break;
+					}
+				}
+				Map.Entry<String, HotEntry> candidate = clockHand.next();
+				HotEntry entry = candidate.getValue();
+				if (entry.frequency > 0) {
+					entry.frequency /= 2;
+					continue;
+				}
+				String key = candidate.getKey();
+				synchronized (lockFor(key)) {
+					// Only if it has not been replaced in the meantime
+					if (hot.remove(key, entry)) {
+						hotBytes.addAndGet(-entry.size);
+					}
+				}
+			}
+		} finally {
+			demoter.unlock();
+		}
+	}
+
+	private Object lockFor(String key) {
+		return locks[(key.hashCode() & Integer.MAX_VALUE) % LOCK_STRIPES];
+	}
+}
@@ -0,0 +1,72 @@
+package edu.berkeley.cs162;
+
+import static org.junit.Assert.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TieredEngineTest {
+	MemoryEngine cold = null;
+	TieredEngine engine = null;
+
+	@Before
+	public void setUp() {
+		cold = new MemoryEngine();
+		engine = new TieredEngine(cold, 64 * 1024);
+	}
+
+	@After
+	public void tearDown() {
+		engine.close();
+	}
+
+	@Test
+	public void writesThroughToCold() throws KVException {
+		assertTrue(engine.put("seven", "7"));
+		assertFalse(engine.put("seven", "VII"));
+		assertEquals("VII", cold.get("seven"));
+		assertEquals("VII", engine.get("seven"));
+
+		assertTrue(engine.remove("seven"));
+		assertNull(engine.get("seven"));
+		assertNull(cold.get("seven"));
+		assertEquals(0, engine.hotBytes());
+	}
+
+	@Test
+	public void keepsFrequentKeysHotWithinBudget() throws KVException {
+		StringBuilder value = new StringBuilder();
+		for (int i = 0; i < 1000; i++) {
+			value.append('v');
+		}
+		for (int i = 0; i < 10; i++) {
+			engine.put("hot" + i, value.toString());
+		}
+		for (int round = 0; round < 20; round++) {
+			for (int reads = 0; reads < 3; reads++) {
+				for (int i = 0; i < 10; i++) {
+					engine.get("hot" + i);
+				}
+			}
+			// A stream of keys that are written and read at most once
+			for (int i = 0; i < 20; i++) {
+				engine.put("cold" + round + "-" + i, value.toString());
+				engine.get("cold" + round + "-" + (i / 2));
+			}
+		}
+		assertTrue(engine.hotBytes() <= 64 * 1024);
+		int hot = 0;
+		for (int i = 0; i < 10; i++) {
+			cold.remove("hot" + i);
+			// Still answered from the hot tier
+			if (engine.get("hot" + i) != null) {
+				hot++;
+			}
+		}
+		assertTrue(hot >= 8);
+
+		// Demoted pairs are still in the cold tier, and come back when read
+		assertEquals(value.toString(), engine.get("cold0-0"));
+	}
+}
@@ -0,0 +1,182 @@
+/**
+ * Hierarchical timing wheel for key expiry
+ * 
+ * Copyright (c) 2012, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *    
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tracks when keys expire, so that expired keys can be found without
+ * scanning or sorting all of them. There are LEVELS wheels of SLOTS slots;
+ * a slot of level 0 spans one tick, and a slot of each further level spans
+ * a whole turn of the level below. A deadline is filed in the lowest level
+ * whose range still reaches it; as time passes, the slots of higher levels
+ * are cascaded down into the lower ones. Scheduling is O(1), and each
+ * deadline is moved at most LEVELS times before it comes due.
+ *
+ * Deadlines further out than the top level reaches are parked in its last
+ * slot and refiled every time it is cascaded.
+ *
+ * The wheel does not support cancellation; a key that is overwritten or
+ * deleted simply comes due anyway, and the caller must check whether it
+ * still has that deadline. Not thread safe on its own: KVStore serializes
+ * access to it.
+ */
+class TimingWheel {
+	private static final int SLOT_BITS = 6;
+	private static final int SLOTS = 1 << SLOT_BITS;
+	private static final int LEVELS = 4;
+
+	private long tickMillis = 0;
+	private long currentTick = 0;
+	private ArrayList<ArrayList<Entry>> slots = null;
+	// Deadlines that were already due when scheduled
+	private ArrayList<Entry> overdue = new ArrayList<Entry>();
+	private int size = 0;
+
+	private static class Entry {
+		final String key;
+		final long tick;
+
+		Entry(String key, long tick) {
+			this.key = key;
+			this.tick = tick;
+		}
+	}
+
+	/**
+	 * @param tickMillis granularity of the wheel; keys come due up to one
+	 * tick after their deadline
+	 * @param nowMillis the current time
+	 */
+	TimingWheel(long tickMillis, long nowMillis) {
+		this.tickMillis = tickMillis;
+		currentTick = nowMillis / tickMillis;
+		slots = new ArrayList<ArrayList<Entry>>(LEVELS * SLOTS);
+		for (int i = 0; i < LEVELS * SLOTS; i++) {
+			slots.add(null);
+		}
+	}
+
+	/**
+	 * Files key to come due at deadlineMillis
+	 */
+	void schedule(String key, long deadlineMillis) {
+		// Rounded up, so that a key never comes due before its deadline
+		insert(new Entry(key, (deadlineMillis + tickMillis - 1) / tickMillis));
+		size++;
+	}
+
+	/**
+	 * Moves the wheel forward to nowMillis
+	 * @return the keys whose deadlines have passed since the last call
+	 */
+	List<String> advance(long nowMillis) {
+		ArrayList<String> due = new ArrayList<String>();
+		drain(overdue, due);
+		long nowTick = nowMillis / tickMillis;
+		while (currentTick < nowTick) {
+			currentTick++;
+			// Refill the lower levels first if a turn of them just ended
+			for (int level = LEVELS - 1; level > 0; level--) {
+				if ((currentTick & ((1L << (SLOT_BITS * level)) - 1)) == 0) {
+					cascade(level);
+				}
+			}
+			ArrayList<Entry> slot = take(0, (int) (currentTick & (SLOTS - 1)));
+			if (slot != null) {
+				drain(slot, due);
+			}
+			drain(overdue, due);
+		}
+		return due;
+	}
+
+	/**
+	 * @return number of deadlines filed and not yet due
+	 */
+	int size() {
+		return size;
+	}
+
+	void clear() {
+		for (int i = 0; i < slots.size(); i++) {
+			slots.set(i, null);
+		}
+		overdue.clear();
+		size = 0;
+	}
+
+	private void insert(Entry entry) {
+		long delta = entry.tick - currentTick;
+		if (delta <= 0) {
+			overdue.add(entry);
+			return;
+		}
+		for (int level = 0; level < LEVELS; level++) {
+			if (delta < 1L << (SLOT_BITS * (level + 1))) {
+				slot(level, (int) ((entry.tick >>> (SLOT_BITS * level)) & (SLOTS - 1))).add(entry);
+				return;
+			}
+		}
+		// Beyond the top level: park it in the slot cascaded last
+		int top = LEVELS - 1;
+		long last = currentTick + (1L << (SLOT_BITS * LEVELS)) - 1;
+		slot(top, (int) ((last >>> (SLOT_BITS * top)) & (SLOTS - 1))).add(entry);
+	}
+
+	private void cascade(int level) {
+		ArrayList<Entry> slot = take(level, (int) ((currentTick >>> (SLOT_BITS * level)) & (SLOTS - 1)));
+		if (slot != null) {
+			for (Entry entry : slot) {
+				insert(entry);
+			}
+		}
+	}
+
+	private void drain(ArrayList<Entry> entries, ArrayList<String> due) {
+		for (Entry entry : entries) {
+			due.add(entry.key);
+		}
+		size -= entries.size();
+		entries.clear();
+	}
+
+	private ArrayList<Entry> slot(int level, int index) {
+		ArrayList<Entry> slot = slots.get(level * SLOTS + index);
+		if (slot == null) {
+			slot = new ArrayList<Entry>();
+			slots.set(level * SLOTS + index, slot);
+		}
+		return slot;
+	}
+
+	private ArrayList<Entry> take(int level, int index) {
+		return slots.set(level * SLOTS + index, null);
+	}
+}
@@ -0,0 +1,45 @@
+package edu.berkeley.cs162;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+
+import org.junit.Test;
+
+public class TimingWheelTest {
+	@Test
+	public void keysComeDueAfterTheirDeadline() {
+		TimingWheel wheel = new TimingWheel(10, 0);
+		wheel.schedule("soon", 25);
+		wheel.schedule("later", 5000);
+		// Beyond what level 1 covers, so it has to cascade twice
+		wheel.schedule("much later", 1000000);
+		wheel.schedule("overdue", 0);
+		assertEquals(4, wheel.size());
+
+		assertEquals("overdue", wheel.advance(0).get(0));
+		assertTrue(wheel.advance(29).isEmpty());
+		assertEquals("soon", wheel.advance(30).get(0));
+
+		List<String> due = wheel.advance(4999);
+		assertTrue(due.isEmpty());
+		assertEquals("later", wheel.advance(5000).get(0));
+
+		assertTrue(wheel.advance(999990).isEmpty());
+		assertEquals("much later", wheel.advance(1000000).get(0));
+		assertEquals(0, wheel.size());
+	}
+
+	@Test
+	public void parksDeadlinesBeyondTheTopLevel() {
+		TimingWheel wheel = new TimingWheel(1, 0);
+		long far = 3L << 24;
+		wheel.schedule("far", far);
+		int found = 0;
+		for (long now = 0; now <= far; now += 1 << 16) {
+			found += wheel.advance(Math.min(now, far - 1)).size();
+		}
+		assertEquals(0, found);
+		assertEquals("far", wheel.advance(far).get(0));
+	}
+}
@@ -0,0 +1,166 @@
+/**
+ * W-TinyLFU eviction and admission
+ * 
+ * Copyright (c) 2012, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *    
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+/**
+ * W-TinyLFU (Einziger, Friedman and Manes), per set. New entries go into a
+ * small LRU window. The main part of the set is a segmented LRU: entries
+ * enter it on probation and are promoted to the protected segment when read
+ * again. When the window overflows into a full set, its oldest entry only
+ * gets into the main part if the frequency sketch, shared by all the sets
+ * of the cache, says it has been used more often than the entry it would
+ * evict from probation; otherwise it is the one evicted. A scan passes
+ * through the window without displacing anything that is in demand.
+ *
+ * Each slot holds its segment and the tick of its last access. A hit counts
+ * the key in the sketch and may promote a probation entry; overflow of the
+ * protected segment is only dealt with under the lock, in victim().
+ */
+class TinyLFUPolicy implements EvictionPolicy {
+	private static final byte EMPTY = 0;
+	private static final byte WINDOW = 1;
+	private static final byte PROBATION = 2;
+	private static final byte PROTECTED = 3;
+	// Percent of the set
+	private static final int WINDOW_PERCENT = 1;
+	// Percent of the main part
+	private static final int PROTECTED_PERCENT = 80;
+
+	private final CountMinSketch sketch;
+	private final int windowSize;
+	private final int protectedSize;
+	private final byte[] segment;
+	private final long[] lastUsed;
+	private final int[] hashes;
+	private long tick = 0;
+
+	static final Factory FACTORY = new Factory() {
+		public EvictionPolicy[] create(int numSets, int maxElemsPerSet) {
+			CountMinSketch sketch = new CountMinSketch(numSets * maxElemsPerSet);
+			EvictionPolicy[] policies = new EvictionPolicy[numSets];
+			for (int i = 0; i < numSets; i++) {
+				policies[i] = new TinyLFUPolicy(maxElemsPerSet, sketch);
+			}
+			return policies;
+		}
+	};
+
+	TinyLFUPolicy(int slots, CountMinSketch sketch) {
+		this.sketch = sketch;
+		windowSize = Math.max(1, slots * WINDOW_PERCENT / 100);
+		protectedSize = (slots - windowSize) * PROTECTED_PERCENT / 100;
+		segment = new byte[slots];
+		lastUsed = new long[slots];
+		hashes = new int[slots];
+	}
+
+	public void hit(int slot) {
+		sketch.increment(hashes[slot]);
+		lastUsed[slot] = ++tick;
+		if (segment[slot] == PROBATION) {
+			segment[slot] = PROTECTED;
+		}
+	}
+
+	public void inserted(int slot, int hash) {
+		sketch.increment(hash);
+		segment[slot] = WINDOW;
+		lastUsed[slot] = ++tick;
+		hashes[slot] = hash;
+		// With free slots left, the window just spills into probation
+		while (count(WINDOW) > windowSize) {
+			segment[oldest(WINDOW, null)] = PROBATION;
+		}
+	}
+
+	public void updated(int slot) {
+		lastUsed[slot] = ++tick;
+	}
+
+	public void removed(int slot) {
+		segment[slot] = EMPTY;
+	}
+
+	public int victim(int hash, long[] pinned) {
+		while (count(PROTECTED) > protectedSize) {
+			segment[oldest(PROTECTED, null)] = PROBATION;
+		}
+		int candidate = oldest(WINDOW, pinned);
+		if (candidate >= 0 && count(WINDOW) < windowSize) {
+			// The window has room for the new entry: make it in main
+			candidate = -1;
+		}
+		int victim = oldest(PROBATION, pinned);
+		if (victim < 0) {
+			victim = oldest(PROTECTED, pinned);
+		}
+		if (candidate < 0) {
+			return victim;
+		}
+		if (victim < 0) {
+			return candidate;
+		}
+		if (sketch.frequency(hashes[candidate]) > sketch.frequency(hashes[victim])) {
+			segment[candidate] = PROBATION;
+			return victim;
+		}
+		return candidate;
+	}
+
+	public boolean isReferenced(int slot) {
+		return segment[slot] == PROTECTED;
+	}
+
+	private int count(byte of) {
+		int count = 0;
+		for (int i = 0; i < segment.length; i++) {
+			if (segment[i] == of) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * @param pinned slots to pass over, or null for none
+	 * @return the least recently used slot in a segment, or -1 if it has
+	 * none that is not pinned
+	 */
+	private int oldest(byte of, long[] pinned) {
+		int oldest = -1;
+		for (int i = 0; i < segment.length; i++) {
+			if (pinned != null && EvictionPolicies.isPinned(pinned, i)) {
+				continue;
+			}
+			if (segment[i] == of && (oldest < 0 || lastUsed[i] < lastUsed[oldest])) {
+				oldest = i;
+			}
+		}
+		return oldest;
+	}
+}
@@ -0,0 +1,217 @@
+/**
+ * Deflate codec for stored values
+ * 
+ * Copyright (c) 2012, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *    
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses values with the JDK's Deflater for engines that store bytes.
+ * Deflaters and Inflaters hold native memory and are expensive to create,
+ * so they are pooled and reset between uses rather than made per value.
+ *
+ * Values shorter than the threshold are left alone, as are values that do
+ * not shrink by at least an eighth; compress() returns null for those and
+ * the engine stores the raw bytes instead.
+ *
+ * Compressed form: [rawLength:4][deflate stream without zlib header]
+ *
+ * The counters are shared by everything using this compressor, and are
+ * meant for judging whether compression pays off: see toString().
+ */
+public class ValueCompressor {
+	public static final int DEFAULT_THRESHOLD = 1024;
+	private static final int MAX_POOLED = 16;
+
+	private int threshold = DEFAULT_THRESHOLD;
+	private int level = Deflater.BEST_SPEED;
+
+	private ConcurrentLinkedQueue<Deflater> deflaters = new ConcurrentLinkedQueue<Deflater>();
+	private ConcurrentLinkedQueue<Inflater> inflaters = new ConcurrentLinkedQueue<Inflater>();
+	private AtomicInteger pooledDeflaters = new AtomicInteger();
+	private AtomicInteger pooledInflaters = new AtomicInteger();
+
+	private AtomicLong valuesSeen = new AtomicLong();
+	private AtomicLong valuesCompressed = new AtomicLong();
+	private AtomicLong rawBytes = new AtomicLong();
+	private AtomicLong storedBytes = new AtomicLong();
+	private AtomicLong compressNanos = new AtomicLong();
+	private AtomicLong decompressNanos = new AtomicLong();
+
+	public ValueCompressor() {
+		this(DEFAULT_THRESHOLD, Deflater.BEST_SPEED);
+	}
+
+	/**
+	 * @param threshold values of fewer bytes than this are not compressed
+	 * @param level Deflater compression level, 1 (fastest) to 9 (smallest)
+	 */
+	public ValueCompressor(int threshold, int level) {
+		this.threshold = threshold;
+		this.level = level;
+	}
+
+	/**
+	 * @return the compressed form of raw, or null if raw should be stored
+	 * as is
+	 */
+	public byte[] compress(byte[] raw) {
+		valuesSeen.incrementAndGet();
+		rawBytes.addAndGet(raw.length);
+		if (raw.length < threshold) {
+			storedBytes.addAndGet(raw.length);
+			return null;
+		}
+
+		long start = System.nanoTime();
+		Deflater deflater = borrowDeflater();
+		try {
+			deflater.setInput(raw);
+			deflater.finish();
+			// Anything that does not fit here did not shrink enough
+			byte[] out = new byte[4 + raw.length - raw.length / 8];
+			int length = 4;
+			while (!deflater.finished() && length < out.length) {
+				length += deflater.deflate(out, length, out.length - length);
+			}
+			if (!deflater.finished()) {
+				storedBytes.addAndGet(raw.length);
+				return null;
+			}
+			ByteBuffer.wrap(out).putInt(raw.length);
+			byte[] compressed = new byte[length];
+			System.arraycopy(out, 0, compressed, 0, length);
+			valuesCompressed.incrementAndGet();
+			storedBytes.addAndGet(length);
+			return compressed;
+		} finally {
+			returnDeflater(deflater);
+			compressNanos.addAndGet(System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * @param compressed bytes returned by compress()
+	 * @return the original bytes
+	 * @throws DataFormatException if compressed is corrupt
+	 */
+	public byte[] decompress(byte[] compressed) throws DataFormatException {
+		long start = System.nanoTime();
+		Inflater inflater = borrowInflater();
+		try {
+			byte[] raw = new byte[ByteBuffer.wrap(compressed).getInt()];
+			inflater.setInput(compressed, 4, compressed.length - 4);
+			int length = 0;
+			while (length < raw.length) {
+				int inflated = inflater.inflate(raw, length, raw.length - length);
+				if (inflated == 0 && (inflater.finished() || inflater.needsInput())) {
+					throw new DataFormatException("Truncated value");
+				}
+				length += inflated;
+			}
+			return raw;
+		} finally {
+			returnInflater(inflater);
+			decompressNanos.addAndGet(System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * @return bytes stored over bytes given, for every value seen; 1.0
+	 * means compression saved nothing
+	 */
+	public double compressionRatio() {
+		long raw = rawBytes.get();
+		return raw == 0 ? 1.0 : (double) storedBytes.get() / raw;
+	}
+
+	/**
+	 * @return CPU time spent compressing, in nanoseconds
+	 */
+	public long compressNanos() {
+		return compressNanos.get();
+	}
+
+	/**
+	 * @return CPU time spent decompressing, in nanoseconds
+	 */
+	public long decompressNanos() {
+		return decompressNanos.get();
+	}
+
+	public String toString() {
+		return "compressed " + valuesCompressed.get() + " of " + valuesSeen.get() + " values, "
+				+ rawBytes.get() + " -> " + storedBytes.get() + " bytes (ratio "
+				+ String.format("%.3f", compressionRatio()) + "), "
+				+ compressNanos.get() / 1000000 + " ms compressing, "
+				+ decompressNanos.get() / 1000000 + " ms decompressing";
+	}
+
+	private Deflater borrowDeflater() {
+		Deflater deflater = deflaters.poll();
+		if (deflater == null) {
+			return new Deflater(level, true);
+		}
+		pooledDeflaters.decrementAndGet();
+		return deflater;
+	}
+
+	private void returnDeflater(Deflater deflater) {
+		deflater.reset();
+		if (pooledDeflaters.incrementAndGet() <= MAX_POOLED) {
+			deflaters.offer(deflater);
+		} else {
+			pooledDeflaters.decrementAndGet();
+			deflater.end();
+		}
+	}
+
+	private Inflater borrowInflater() {
+		Inflater inflater = inflaters.poll();
+		if (inflater == null) {
+			return new Inflater(true);
+		}
+		pooledInflaters.decrementAndGet();
+		return inflater;
+	}
+
+	private void returnInflater(Inflater inflater) {
+		inflater.reset();
+		if (pooledInflaters.incrementAndGet() <= MAX_POOLED) {
+			inflaters.offer(inflater);
+		} else {
+			pooledInflaters.decrementAndGet();
+			inflater.end();
+		}
+	}
+}
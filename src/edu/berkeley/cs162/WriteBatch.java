@@ -0,0 +1,134 @@
+/**
+ * Puts and deletes applied together
+ * 
+ * Copyright (c) 2012, University of California at Berkeley
+ * All rights reserved.
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *  * Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *  * Neither the name of University of California, Berkeley nor the
+ *    names of its contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *    
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY
+ *  DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.berkeley.cs162;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A list of puts and deletes that KVServer.apply() and KVStore.apply()
+ * carry out as one operation: one store delay, one lock of each cache set
+ * and store stripe involved, and one write to the engine, which engines
+ * with a log make atomic (see StorageEngine.apply()).
+ *
+ * Operations take effect in the order they were added, so a later one on
+ * the same key wins. Deleting a key that does not exist is not an error.
+ * Not thread safe; build a batch in one thread and then apply it.
+ */
+public class WriteBatch {
+	// Allowance for what an operation takes in a log besides its key and value
+	static final int OP_OVERHEAD = 32;
+
+	private ArrayList<Op> ops = new ArrayList<Op>();
+	private long bytes = 0;
+
+	/**
+	 * One put or delete
+	 */
+	static class Op {
+		final String key;
+		// null for a delete
+		final String value;
+		final long ttlMillis;
+
+		Op(String key, String value, long ttlMillis) {
+			this.key = key;
+			this.value = value;
+			this.ttlMillis = ttlMillis;
+		}
+
+		boolean isDelete() {
+			return value == null;
+		}
+	}
+
+	public WriteBatch put(String key, String value) {
+		return put(key, value, 0);
+	}
+
+	/**
+	 * @param ttlMillis time to live, or 0 for none
+	 */
+	public WriteBatch put(String key, String value, long ttlMillis) {
+		if (key == null || value == null) {
+			throw new IllegalArgumentException("Null key or value");
+		}
+		ops.add(new Op(key, value, ttlMillis));
+		bytes += OP_OVERHEAD + 3L * (key.length() + value.length());
+		return this;
+	}
+
+	public WriteBatch delete(String key) {
+		if (key == null) {
+			throw new IllegalArgumentException("Null key");
+		}
+		ops.add(new Op(key, null, 0));
+		bytes += OP_OVERHEAD + 3L * key.length();
+		return this;
+	}
+
+	public int size() {
+		return ops.size();
+	}
+
+	/**
+	 * @return at least what the batch takes written to a log: its keys and
+	 * values at three bytes a char, the most UTF-8 needs, plus OP_OVERHEAD
+	 * an operation. A LogStructuredEngine has to fit it in one segment.
+	 */
+	public long bytes() {
+		return bytes;
+	}
+
+	public boolean isEmpty() {
+		return ops.isEmpty();
+	}
+
+	public void clear() {
+		ops.clear();
+		bytes = 0;
+	}
+
+	List<Op> ops() {
+		return ops;
+	}
+
+	/**
+	 * Applies the batch one operation at a time, for engines that have
+	 * nothing better to do with it
+	 * @return see StorageEngine.apply()
+	 */
+	static boolean[] applyEach(StorageEngine engine, WriteBatch batch) throws KVException {
+		boolean[] changed = new boolean[batch.ops.size()];
+		for (int i = 0; i < changed.length; i++) {
+			Op op = batch.ops.get(i);
+			changed[i] = op.isDelete() ? engine.remove(op.key) : engine.put(op.key, op.value);
+		}
+		return changed;
+	}
+}